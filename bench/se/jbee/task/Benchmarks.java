@@ -0,0 +1,23 @@
+package se.jbee.task;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all benchmarks or those matching the given pattern, e.g.
+ * <code>CacheWorker</code>.
+ *
+ * The benchmarks are in the <code>bench</code> source folder next to the
+ * classes they measure. They need the JMH jars and annotation processor on
+ * the classpath (see <code>.classpath</code>).
+ */
+public final class Benchmarks {
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(args.length > 0 ? args[0] : "se\\.jbee\\.task\\..*Benchmark")
+				.forks(1)
+				.build()).run();
+	}
+}
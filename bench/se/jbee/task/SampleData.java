@@ -0,0 +1,108 @@
+package se.jbee.task;
+
+import static se.jbee.task.engine.Sample.sample;
+import static se.jbee.task.model.Email.email;
+import static se.jbee.task.model.Gist.gist;
+import static se.jbee.task.model.Name.as;
+import static se.jbee.task.model.Names.names;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.lmdbjava.Env;
+
+import se.jbee.task.db.DB;
+import se.jbee.task.db.HeapMapDB;
+import se.jbee.task.db.LMDB;
+import se.jbee.task.engine.Change;
+import se.jbee.task.engine.ChangeLog;
+import se.jbee.task.engine.DAO;
+import se.jbee.task.engine.Limits;
+import se.jbee.task.engine.Repository;
+import se.jbee.task.engine.Server;
+import se.jbee.task.engine.Server.Switch;
+import se.jbee.task.engine.Transaction;
+import se.jbee.task.model.Name;
+import se.jbee.task.model.Names;
+import se.jbee.task.model.User;
+
+/**
+ * Realistic data for benchmarks created using {@link se.jbee.task.engine.Sample}:
+ * a few outputs with dozens of areas and users and thousands of tasks.
+ */
+public final class SampleData {
+
+	public static final Name ADMIN = as("admin");
+	public static final Names OUTPUTS = names("shop", "crm", "billing", "search");
+
+	public static final String LMDB = "lmdb";
+	public static final String HEAP = "heap";
+
+	private SampleData() {
+		throw new UnsupportedOperationException("util");
+	}
+
+	public static Server server() {
+		return new Server().with(Limits.NONE).with(Switch.OPEN);
+	}
+
+	/**
+	 * @param kind {@link #LMDB} or {@link #HEAP}
+	 */
+	public static DB open(String kind) throws IOException {
+		if (HEAP.equals(kind))
+			return new HeapMapDB(true);
+		File path = Files.createTempDirectory("bench").toFile();
+		path.deleteOnExit();
+		return new LMDB(Env.create().setMapSize(1L << 30), path, 64);
+	}
+
+	/**
+	 * Fills the given {@link DB} with about the given number of tasks spread
+	 * over {@link #OUTPUTS}.
+	 *
+	 * A {@link Transaction} can only have one acting user and reporting in an
+	 * area requires to be its maintainer. Therefore the admin creates all
+	 * outputs, areas and versions and reports half of the tasks into areas.
+	 * The other half is proposed by 40 other users without an area.
+	 *
+	 * @return the admin user that created the data
+	 */
+	public static User fill(DB db, int tasks) {
+		Server server = server();
+		Names users = numbered("user", 40);
+		Names areas = numbered("area", 48);
+		Names versions = names("1.0", "1.1", "2.0");
+		Names categories = names("web", "backend");
+		int batch = 250;
+		for (int i = 0; i < tasks/2; i += batch)
+			Transaction.run(sample(new Names(ADMIN), OUTPUTS, versions, areas, categories, Math.min(batch, tasks/2-i), ADMIN), db, server);
+		int perUser = (tasks - tasks/2) / users.count();
+		Random rnd = new Random(42);
+		for (Name user : users) {
+			register(db, server, user);
+			for (int i = 0; i < perUser; i++) {
+				Name output = OUTPUTS.at(rnd.nextInt(OUTPUTS.count()));
+				Transaction.run(Change.propose(output, gist("Task "+i+" of "+user), user, Name.UNKNOWN), db, server);
+			}
+		}
+		try (Repository rep = new DAO(db.read())) {
+			return rep.user(ADMIN);
+		}
+	}
+
+	private static void register(DB db, Server server, Name user) {
+		ChangeLog changes = Transaction.run(Change.register(user, email(user+"@example.com")), db, server);
+		User u = (User) changes.get(0).after;
+		Transaction.run(Change.authenticate(user, u.otp), db, server);
+	}
+
+	private static Names numbered(String prefix, int n) {
+		Name[] res = new Name[n];
+		for (int i = 0; i < n; i++)
+			res[i] = as(prefix+(i+1));
+		return new Names(res);
+	}
+}
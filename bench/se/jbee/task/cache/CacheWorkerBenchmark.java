@@ -0,0 +1,69 @@
+package se.jbee.task.cache;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.jbee.task.SampleData;
+import se.jbee.task.db.DB;
+import se.jbee.task.model.Criteria;
+import se.jbee.task.model.Date;
+import se.jbee.task.model.User;
+
+/**
+ * Lookups of typical page queries within a single output.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CacheWorkerBenchmark {
+
+	@Param({
+		"[status=unsolved][order<<temperature][length=20]",
+		"[reporter=user1][order>>id]",
+		"[area={area1,area2,area3}][cause=finding][temperature>=10]",
+		"[watcher=user3][status!=resolved][order<<emphasis]",
+		"[gist~factory][length=10]" })
+	public String query;
+
+	@Param({ "10000" })
+	public int tasks;
+
+	private DB db;
+	private CacheWorker worker;
+	private User actor;
+	private Criteria criteria;
+
+	@Setup
+	public void setup() throws IOException {
+		db = SampleData.open(SampleData.HEAP);
+		actor = SampleData.fill(db, tasks);
+		worker = new CacheWorker(SampleData.OUTPUTS.first(), db, Date.today());
+		criteria = Criteria.parse(query);
+	}
+
+	@TearDown
+	public void tearDown() {
+		worker.close();
+		db.close();
+	}
+
+	@Benchmark
+	public Matches lookup() throws InterruptedException, ExecutionException {
+		return worker.matchesFor(actor, criteria).get();
+	}
+}
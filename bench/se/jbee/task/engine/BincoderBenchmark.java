@@ -0,0 +1,105 @@
+package se.jbee.task.engine;
+
+import static se.jbee.task.engine.Bincoder.bin2task;
+import static se.jbee.task.engine.Bincoder.task2bin;
+import static se.jbee.task.engine.Bincoder.task2binEVN1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.jbee.task.SampleData;
+import se.jbee.task.db.DB;
+import se.jbee.task.model.Name;
+import se.jbee.task.model.Task;
+
+/**
+ * Encoding and decoding of single {@link Task} records in the format of the
+ * given EVN.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BincoderBenchmark {
+
+	@Param({"1", "2"})
+	public int evn;
+
+	private DB db;
+	private Bincoder<Task, ByteBuffer> encoder;
+	private Repository rep;
+	private Task[] tasks;
+	private ByteBuffer[] records;
+	private final ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+	private final TaskView view = new TaskView();
+	private int next;
+
+	@Setup
+	public void setup() throws IOException {
+		db = SampleData.open(SampleData.HEAP);
+		SampleData.fill(db, 2000);
+		rep = new DAO(db.read());
+		List<Task> all = new ArrayList<>();
+		for (Name output : SampleData.OUTPUTS)
+			rep.tasks(output, all::add);
+		tasks = all.toArray(new Task[0]);
+		encoder = evn == 1 ? task2binEVN1 : task2bin;
+		records = new ByteBuffer[tasks.length];
+		for (int i = 0; i < tasks.length; i++) {
+			buf.clear();
+			encoder.convert(tasks[i], buf).flip();
+			records[i] = ByteBuffer.allocateDirect(buf.remaining()).put(buf);
+			records[i].flip();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		rep.close();
+		db.close();
+	}
+
+	private int next() {
+		next = next+1 < tasks.length ? next+1 : 0;
+		return next;
+	}
+
+	@Benchmark
+	public ByteBuffer task2bin() {
+		buf.clear();
+		return encoder.convert(tasks[next()], buf);
+	}
+
+	@Benchmark
+	public Task bin2task() {
+		return bin2task.convert(rep, records[next()].duplicate());
+	}
+
+	@Benchmark
+	public Task roundTrip() {
+		buf.clear();
+		encoder.convert(tasks[next()], buf).flip();
+		return bin2task.convert(rep, buf);
+	}
+
+	@Benchmark
+	public boolean viewOutputEquals() {
+		return view.wrap(records[next()]).outputEquals(SampleData.OUTPUTS.at(0));
+	}
+}
@@ -0,0 +1,59 @@
+package se.jbee.task.engine;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import se.jbee.task.SampleData;
+import se.jbee.task.db.DB;
+import se.jbee.task.model.Name;
+
+/**
+ * Range scans of all tasks of an output as done when a cache is build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DAOBenchmark {
+
+	@Param({ SampleData.LMDB, SampleData.HEAP })
+	public String db;
+
+	@Param({ "5000" })
+	public int tasks;
+
+	private DB store;
+	private final Name output = SampleData.OUTPUTS.first();
+
+	@Setup
+	public void setup() throws IOException {
+		store = SampleData.open(db);
+		SampleData.fill(store, tasks);
+	}
+
+	@TearDown
+	public void tearDown() {
+		store.close();
+	}
+
+	@Benchmark
+	public void tasks(Blackhole bh) {
+		try (Repository rep = new DAO(store.read())) {
+			rep.tasks(output, t -> { bh.consume(t); return true; });
+		}
+	}
+}
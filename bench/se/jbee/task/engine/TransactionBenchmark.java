@@ -0,0 +1,67 @@
+package se.jbee.task.engine;
+
+import static se.jbee.task.model.Gist.gist;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.jbee.task.SampleData;
+import se.jbee.task.db.DB;
+import se.jbee.task.model.Name;
+
+/**
+ * Throughput of committing new tasks from concurrent users, with and without
+ * group commit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TransactionBenchmark {
+
+	@Param({ SampleData.LMDB, SampleData.HEAP })
+	public String db;
+
+	/**
+	 * 1 = no group commit
+	 */
+	@Param({ "1", "32" })
+	public int batch;
+
+	private DB store;
+	private Server server;
+	private final Name output = SampleData.OUTPUTS.first();
+
+	@Setup
+	public void setup() throws IOException {
+		store = SampleData.open(db);
+		SampleData.fill(store, 500);
+		server = SampleData.server().withGroupCommit(batch, 1);
+	}
+
+	@TearDown
+	public void tearDown() {
+		Transaction.closeGroupCommit(store);
+		store.close();
+	}
+
+	@Benchmark
+	@Threads(8)
+	public ChangeLog propose() {
+		return Transaction.run(Change.propose(output, gist("Benchmark task"), SampleData.ADMIN, Name.UNKNOWN), store, server);
+	}
+}
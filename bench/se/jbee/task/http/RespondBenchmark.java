@@ -0,0 +1,156 @@
+package se.jbee.task.http;
+
+import java.io.IOException;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.jbee.task.Application;
+import se.jbee.task.SampleData;
+import se.jbee.task.api.CachedViewService;
+import se.jbee.task.api.Params;
+import se.jbee.task.api.Response;
+import se.jbee.task.api.UserInterface;
+import se.jbee.task.cache.Cache;
+import se.jbee.task.cache.CacheCluster;
+import se.jbee.task.cache.Matches;
+import se.jbee.task.db.DB;
+import se.jbee.task.engine.ChangeLog;
+import se.jbee.task.model.Criteria;
+import se.jbee.task.model.User;
+
+/**
+ * A load test of many concurrent page views on a small HTTP thread pool
+ * while each cache lookup takes a while (as it does when the
+ * {@link se.jbee.task.cache.CacheWorker}s are busy).
+ *
+ * {@link #blocking()} is how requests are responded by default: each waits
+ * for its lookups on one of the threads. {@link #async()} is the
+ * {@link se.jbee.task.engine.Server.Switch#ASYNC} mode: threads only render,
+ * waiting requests do not occupy them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RespondBenchmark {
+
+	@Param({ "2000" })
+	public int requests;
+
+	@Param({ "32" })
+	public int threads;
+
+	@Param({ "5" })
+	public int latencyMillis;
+
+	@Param({ "1000" })
+	public int tasks;
+
+	private DB db;
+	private Cache cache;
+	private ScheduledExecutorService delays;
+	private ExecutorService pool;
+	private UserInterface ui;
+
+	@Setup
+	public void setup() throws IOException {
+		db = SampleData.open(SampleData.HEAP);
+		SampleData.fill(db, tasks);
+		delays = Executors.newSingleThreadScheduledExecutor();
+		cache = new SlowCache(new CacheCluster(db, System::currentTimeMillis), delays, latencyMillis);
+		pool = Executors.newFixedThreadPool(threads);
+		ui = Application.createHttpUserInterface(new CachedViewService(SampleData.server(), db, cache));
+	}
+
+	@TearDown
+	public void tearDown() {
+		pool.shutdown();
+		delays.shutdown();
+		cache.close();
+		db.close();
+	}
+
+	@Benchmark
+	public int blocking() throws Exception {
+		List<Future<Integer>> responses = new ArrayList<>(requests);
+		for (int i = 0; i < requests; i++)
+			responses.add(pool.submit(() -> ui.respond(request(), Response.of(new ByteArrayOutputStream()))));
+		int ok = 0;
+		for (Future<Integer> res : responses)
+			ok += res.get() == 200 ? 1 : 0;
+		return ok;
+	}
+
+	@Benchmark
+	public int async() {
+		List<CompletableFuture<Integer>> responses = new ArrayList<>(requests);
+		for (int i = 0; i < requests; i++)
+			responses.add(ui.respondAsync(request(), Response.of(new ByteArrayOutputStream()), pool));
+		int ok = 0;
+		for (CompletableFuture<Integer> res : responses)
+			ok += res.join() == 200 ? 1 : 0;
+		return ok;
+	}
+
+	private static Params request() {
+		return new Params()
+				.set(se.jbee.task.api.Param.output, SampleData.OUTPUTS.first().toString())
+				.set(se.jbee.task.api.Param.area, "area1");
+	}
+
+	/**
+	 * Completes lookups only after the given latency without occupying a
+	 * thread meanwhile.
+	 */
+	private static final class SlowCache implements Cache {
+
+		private final Cache cache;
+		private final ScheduledExecutorService delays;
+		private final long latencyMillis;
+
+		SlowCache(Cache cache, ScheduledExecutorService delays, long latencyMillis) {
+			this.cache = cache;
+			this.delays = delays;
+			this.latencyMillis = latencyMillis;
+		}
+
+		@Override
+		public CompletableFuture<Matches> matchesFor(User actor, Criteria criteria) {
+			CompletableFuture<Matches> res = new CompletableFuture<>();
+			cache.matchesFor(actor, criteria).whenComplete((m, e) -> delays.schedule(() -> {
+				if (e == null) res.complete(m); else res.completeExceptionally(e);
+			}, latencyMillis, TimeUnit.MILLISECONDS));
+			return res;
+		}
+
+		@Override
+		public Future<Void> invalidate(ChangeLog changes) {
+			return cache.invalidate(changes);
+		}
+
+		@Override
+		public void close() {
+			cache.close();
+		}
+	}
+}
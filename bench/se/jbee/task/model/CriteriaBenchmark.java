@@ -0,0 +1,46 @@
+package se.jbee.task.model;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of {@link Criteria} as done for each page query and compiling them
+ * for the {@link se.jbee.task.cache.CacheWorker}s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CriteriaBenchmark {
+
+	@Param({
+		"[status=unsolved][order<<temperature][length=20]",
+		"[output=@][area=@][cause=finding][temperature<0][length=5][offset=0][coloration=cause]",
+		"[area={area1,area2,area3}][reporter~{user1,user2}][reported=2016][order>>{heat,id}]" })
+	public String query;
+
+	@Benchmark
+	public Criteria parse() {
+		return Criteria.parseUncached(query);
+	}
+
+	@Benchmark
+	public Criteria parseCached() {
+		return Criteria.parse(query);
+	}
+
+	@Benchmark
+	public TaskPredicate compile() {
+		return Criteria.parseUncached(query).compile();
+	}
+}
@@ -1,5 +1,6 @@
 package se.jbee.task;
 
+import java.io.File;
 import java.util.IdentityHashMap;
 import java.util.Map;
 
@@ -14,7 +15,13 @@ import se.jbee.task.cache.Cache;
 import se.jbee.task.cache.CacheCluster;
 import se.jbee.task.db.DB;
 import se.jbee.task.db.LMDB;
+import se.jbee.task.db.ShardedDB;
+import se.jbee.task.engine.EntityCache;
+import se.jbee.task.engine.HistoryCompactor;
+import se.jbee.task.engine.Indexes;
+import se.jbee.task.engine.Migration;
 import se.jbee.task.engine.Server;
+import se.jbee.task.engine.Transaction;
 import se.jbee.task.html.HtmlRenderer;
 import se.jbee.task.html.ListViewHtmlRenderer;
 import se.jbee.task.html.SampleViewHtmlRenderer;
@@ -32,6 +39,8 @@ import se.jbee.task.http.JettyHttpServer;
  */
 public final class Application {
 
+	private static final int BACKGROUND_READERS = 2;
+
 	/**
 	 * Start the collaborate application with the given command line arguments.
 	 *
@@ -42,16 +51,22 @@ public final class Application {
 	 * @throws Exception
 	 *             on problems to open DB or start the web server
 	 */
+	@SuppressWarnings("try") // migration and compactor work in the background, they are only closed
 	public static void main(String[] args) throws Exception {
 		Server config = Server.parse(args);
 		config = config.with(config.pathDB); // force check and creation of dir
 		try (DB db = createDB(config)) {
-			try (Cache cache = new CacheCluster(db, config.clock)) {
+			try (Cache cache = new CacheCluster(db, config.clock, new File(config.pathDB, "cache"));
+					Migration migration = Migration.start(db, new File(config.pathDB, "migration"));
+					HistoryCompactor compactor = config.isDeferred() ? HistoryCompactor.start(db, config.clock) : null) {
 				ViewService views = new CachedViewService(config, db, cache);
 				UserInterface ui = createHttpUserInterface(views);
 				org.eclipse.jetty.server.Server server = JettyHttpServer.create(config, ui);
 				server.start();
 				server.join();
+			} finally {
+				Transaction.closeGroupCommit(db);
+				EntityCache.close(db);
 			}
 		}
 	}
@@ -64,6 +79,18 @@ public final class Application {
 	}
 
 	private static DB createDB(Server config) {
-		return new LMDB(Env.create().setMapSize(config.sizeDB).setMaxReaders(8), config.pathDB);
+		// HTTP threads (which also build the cache of an output on first use),
+		// the async lookup pool of the cache cluster, the migration, the
+		// compactor and the cache workers catching up
+		int readers = config.threads + Runtime.getRuntime().availableProcessors()
+				+ BACKGROUND_READERS + CacheCluster.CATCH_UP_READERS;
+		DB db = config.isSharded()
+				? new ShardedDB(() -> Env.create().setMapSize(config.sizeDB), config.pathDB, readers, config.isIndexed())
+				: new LMDB(Env.create().setMapSize(config.sizeDB), config.pathDB, readers, config.isIndexed());
+		EntityCache.open(db, EntityCache.DEFAULT_CAPACITY);
+		Indexes.build(db);
+		if (!config.isDeferred())
+			HistoryCompactor.drain(db);
+		return db;
 	}
 }
@@ -1,10 +1,11 @@
 package se.jbee.task.api;
 
 import static java.lang.Integer.parseInt;
-import static se.jbee.task.cache.Matches.matches;
+import static se.jbee.task.cache.Matches.orNone;
 
 import java.util.EnumMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 
 import se.jbee.task.api.Param.Command;
@@ -20,9 +21,11 @@ import se.jbee.task.engine.TransitionDenied;
 import se.jbee.task.engine.TransitionDenied.Error;
 import se.jbee.task.model.Criteria;
 import se.jbee.task.model.Criteria.Property;
+import se.jbee.task.model.Date;
 import se.jbee.task.model.Email;
 import se.jbee.task.model.Name;
 import se.jbee.task.model.Names;
+import se.jbee.task.model.Output;
 import se.jbee.task.model.Page;
 import se.jbee.task.model.Template;
 import se.jbee.task.model.User;
@@ -30,6 +33,14 @@ import se.jbee.task.model.User.AuthState;
 
 public class CachedViewService implements ViewService {
 
+	/**
+	 * {@link ChangeLog#serial}s are not persisted so validators of different
+	 * runs must not be the same.
+	 */
+	private static final long STARTED = System.currentTimeMillis();
+
+	private static final String LIST_QUERY = "[output=@][area=@][cause=finding][temperature < 0][length=5][offset=0][coloration=cause]";
+
 	private final Server server;
 	private final DB db;
 	private final Cache cache;
@@ -47,13 +58,54 @@ public class CachedViewService implements ViewService {
 			throws ViewNotAvailable {
 		Command cmd = request.value(Param.command, Command.query);
 		switch (cmd) {
-		case query:  if (response == ListView.class) return (T)list(request);
+		case query:  if (response == ListView.class) return (T)list(request).join();
 		case sample: if (response == SampleView.class) return (T)sample(request);
 		default:
 			throw new ViewNotAvailable(request, response);
 		}
 	}
 
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T extends View> CompletableFuture<T> runAsync(Params request, Class<T> response) {
+		if (response == ListView.class && request.value(Param.command, Command.query) == Command.query)
+			return (CompletableFuture<T>) list(request);
+		return ViewService.super.runAsync(request, response);
+	}
+
+	@Override
+	public String validator(Params request, Class<? extends View> response) {
+		if (response != ListView.class || request.value(Param.command, Command.query) != Command.query)
+			return null;
+		return validator(user(request.get(Param.actor)), page(request), Names.empty().add(request.name(Param.output)));
+	}
+
+	/**
+	 * A {@link ListView} shows the same as long as the actor, the version of
+	 * the {@link Page} and its {@link Template} and the day (temperatures
+	 * change with it) are the same and no further {@link ChangeLog} was
+	 * applied to any of the involved {@link Output}s.
+	 *
+	 * @return the validator as quoted HTTP ETag or null if any of the
+	 *         {@link Output}s is not cached
+	 */
+	private String validator(User actor, Page page, Names outputs) {
+		StringBuilder state = new StringBuilder();
+		state.append(STARTED).append(' ').append(actor.alias).append(' ').append(actor.version())
+			.append(' ').append(page.name).append(' ').append(page.version())
+			.append(' ').append(Date.date(System.currentTimeMillis()).epochDay);
+		for (Name output : outputs) {
+			long serial = cache.serial(output);
+			if (serial < 0L)
+				return null;
+			state.append(' ').append(output).append(':').append(serial);
+		}
+		long hash = 0xcbf29ce484222325L; // FNV-1a
+		for (int i = 0; i < state.length(); i++)
+			hash = (hash ^ state.charAt(i)) * 0x100000001b3L;
+		return "\""+Long.toHexString(hash)+"\"";
+	}
+
 	private User user(String id) {
 		User res = new User(0);
 		res.email = server.admin;
@@ -83,20 +135,43 @@ public class CachedViewService implements ViewService {
 			throw new TransitionDenied(Error.E25_ADMIN_REQUIRED, server.admin());
 	}
 
-	private ListView list(Params request) {
+	private static Page page(Params request) {
+		return new Page(1, Name.as("prod"), Name.as("area"), Name.as("xyz"), Template.parseTemplate("Hello\n"+LIST_QUERY+"\n"));
+	}
+
+	/**
+	 * The indexing request is queued before the lookup so both can be
+	 * requested without waiting for the first.
+	 *
+	 * The validator is computed before the lookups so that changes applied
+	 * meanwhile make it outdated. It is only used if all involved
+	 * {@link Output}s were included in the {@link Matches}.
+	 */
+	private CompletableFuture<ListView> list(Params request) {
 		User actor = user(request.get(Param.actor));
 		Name output = request.name(Param.output);
-		Matches indexing = matches(cache.matchesFor(actor, Criteria.index(output)));
-		String query = "[output=@][area=@][cause=finding][temperature < 0][length=5][offset=0][coloration=cause]";
+		Page page = page(request);
+		Names outputs = Names.empty().add(output);
+		String validator = validator(actor, page, outputs);
+		CompletableFuture<Matches> indexing = orNone(cache.matchesFor(actor, Criteria.index(output)), outputs);
+		String query = LIST_QUERY;
 		Map<Property, Name> args = new EnumMap<>(Property.class);
 		args.put(Property.output, output);
 		Name area = request.name(Param.area);
 		if (area != Name.UNKNOWN) {
 			args.put(Property.area, area);
 		}
-		Matches matches = matches(cache.matchesFor(actor, Criteria.parse(query).bindTo(args)));
+		CompletableFuture<Matches> lookup = orNone(cache.matchesFor(actor, Criteria.parse(query).bindTo(args)), outputs);
 		//TODO the results must replace the generic Criteria with the bound one for rendering
-		return new ListView(new User(1), System.currentTimeMillis(), new Page[0], new Page(1, Name.as("prod"), Name.as("area"), Name.as("xyz"), Template.parseTemplate("Hello\n"+query+"\n")), matches);
+		return indexing.thenCombine(lookup, (indexed, matches) -> new ListView(new User(1), System.currentTimeMillis(), new Page[0], page,
+				includesAll(matches, outputs) ? validator : null, matches));
+	}
+
+	private static boolean includesAll(Matches matches, Names outputs) {
+		for (Name output : outputs)
+			if (!matches.includedOutputs.contains(output))
+				return false;
+		return true;
 	}
 
 
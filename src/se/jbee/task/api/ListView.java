@@ -25,11 +25,21 @@ public final class ListView extends View {
 	 */
 	public final Matches[] results;
 	//TODO replace this with a list of rendable items derived by running the page
+	/**
+	 * Identifies the state the view shows (used as HTTP ETag) or null if it
+	 * cannot be identified. A view with the same validator looks the same.
+	 */
+	public final String validator;
 
 	public ListView(User actor, long now, Page[] menu, Page page, Matches... results) {
+		this(actor, now, menu, page, null, results);
+	}
+
+	public ListView(User actor, long now, Page[] menu, Page page, String validator, Matches... results) {
 		super(actor, now);
 		this.menu = menu;
 		this.page = page;
+		this.validator = validator;
 		this.results = results;
 	}
 
@@ -0,0 +1,48 @@
+package se.jbee.task.api;
+
+import java.io.OutputStream;
+
+/**
+ * The target a {@link UserInterface} responds to.
+ *
+ * The {@link #body()} is flushed in parts while it is written so anything
+ * that goes before it, like the {@link #status(int)}, has to be set before
+ * the first byte is written.
+ */
+public interface Response {
+
+	/**
+	 * @param code the result status code (the HTTP status code in case of an
+	 *        HTTP impl), must be set before the {@link #body()} is written
+	 */
+	void status(int code);
+
+	/**
+	 * @param validator identifies the written response (the HTTP ETag), like
+	 *        the status it must be set before the {@link #body()} is written.
+	 *        Null when the response cannot be identified.
+	 */
+	default void validator(String validator) {
+		// by default there is no use for it
+	}
+
+	OutputStream body();
+
+	/**
+	 * @return a {@link Response} that just has a body (e.g. for testing)
+	 */
+	static Response of(OutputStream body) {
+		return new Response() {
+
+			@Override
+			public void status(int code) {
+				// not of interest
+			}
+
+			@Override
+			public OutputStream body() {
+				return body;
+			}
+		};
+	}
+}
@@ -1,6 +1,7 @@
 package se.jbee.task.api;
 
-import java.io.PrintWriter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * A interface to decouple the user interface from any particular HTTP
@@ -18,12 +19,36 @@ import java.io.PrintWriter;
 public interface UserInterface {
 
 	/**
-	 * Responds the request by writing to output stream.
+	 * Responds the request by writing to the {@link Response#body()}. The
+	 * output is flushed in parts while it is written so the
+	 * {@link Response#status(int)} is set before.
 	 *
 	 * @param params user input (what to do)
-	 * @param out target for the user interface output
+	 * @param response target for the user interface output
 	 * @return result status code (the HTTP status code in case of an HTTP impl)
 	 */
-	int respond(Params params, PrintWriter out);
+	int respond(Params params, Response response);
+
+	/**
+	 * Like {@link #respond(Params, Response)} but no thread waits for
+	 * results computed in the background. Once they are available the output
+	 * is written by the given {@link Executor}.
+	 *
+	 * By default the whole request is responded by the {@link Executor}.
+	 *
+	 * @return the result status code, see {@link #respond(Params, Response)}
+	 */
+	default CompletableFuture<Integer> respondAsync(Params params, Response response, Executor executor) {
+		return CompletableFuture.supplyAsync(() -> respond(params, response), executor);
+	}
+
+	/**
+	 * @return a validator identifying the response to the request (the HTTP
+	 *         ETag) without responding it or null if the response cannot be
+	 *         identified, see {@link ViewService#validator(Params, Class)}
+	 */
+	default String validator(Params params) {
+		return null;
+	}
 
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package se.jbee.task.api;
 
+import java.util.concurrent.CompletableFuture;
 
 /**
  * The {@link View} API is meant for internal consumption to provide different
@@ -17,4 +18,34 @@ package se.jbee.task.api;
 public interface ViewService {
 
 	<T extends View> T run(Params request, Class<T> response) throws ViewNotAvailable;
+
+	/**
+	 * Like {@link #run(Params, Class)} but without waiting for results that
+	 * are computed in the background. The returned {@link View} is completed
+	 * by the thread that completes the last of them.
+	 *
+	 * By default the request is run by the calling thread.
+	 */
+	default <T extends View> CompletableFuture<T> runAsync(Params request, Class<T> response) {
+		CompletableFuture<T> res = new CompletableFuture<>();
+		try {
+			res.complete(run(request, response));
+		} catch (RuntimeException e) {
+			res.completeExceptionally(e);
+		}
+		return res;
+	}
+
+	/**
+	 * Identifies the {@link View} a request would result in without running
+	 * it. When a client already has a {@link View} with the same validator it
+	 * does not need to be run again.
+	 *
+	 * By default {@link View}s cannot be identified.
+	 *
+	 * @return the validator or null if the {@link View} cannot be identified
+	 */
+	default String validator(Params request, Class<? extends View> response) {
+		return null;
+	}
 }
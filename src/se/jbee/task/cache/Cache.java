@@ -1,9 +1,11 @@
 package se.jbee.task.cache;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 
 import se.jbee.task.engine.ChangeLog;
 import se.jbee.task.model.Criteria;
+import se.jbee.task.model.Name;
 import se.jbee.task.model.Output;
 import se.jbee.task.model.Task;
 import se.jbee.task.model.User;
@@ -24,11 +26,22 @@ public interface Cache extends AutoCloseable {
 	/**
 	 * Note: To cause indexing of a specific {@link Output} use
 	 * {@link Criteria#index(se.jbee.task.model.Name)}.
+	 *
+	 * The result is completed by the thread doing the lookup so callers can
+	 * continue with it without waiting.
 	 */
-	Future<Matches> matchesFor(User actor, Criteria criteria);
+	CompletableFuture<Matches> matchesFor(User actor, Criteria criteria);
 
 	Future<Void> invalidate(ChangeLog changes);
 
+	/**
+	 * @return the {@link ChangeLog#serial} of the latest change applied to
+	 *         the given {@link Output} or -1 if it is not cached
+	 */
+	default long serial(Name output) {
+		return -1L;
+	}
+
 	/**
 	 * Does not throw an {@link Exception}.
 	 */
@@ -5,9 +5,9 @@ import static se.jbee.task.model.Criteria.Operator.in;
 import static se.jbee.task.model.Criteria.Operator.neq;
 import static se.jbee.task.model.Criteria.Operator.nin;
 import static se.jbee.task.model.Criteria.Property.output;
-import static se.jbee.task.util.Array.fold;
-import static se.jbee.task.util.Array.map;
+import static java.util.Arrays.copyOfRange;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -18,19 +18,28 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import se.jbee.task.db.DB;
+import se.jbee.task.db.DB.Index;
+import se.jbee.task.db.DB.Read;
 import se.jbee.task.engine.ChangeLog;
 import se.jbee.task.engine.ChangeLog.Entry;
 import se.jbee.task.engine.Clock;
+import se.jbee.task.engine.DAO;
+import se.jbee.task.engine.EntityCache;
+import se.jbee.task.engine.Repository;
 import se.jbee.task.model.Criteria;
+import se.jbee.task.model.Criteria.Criterium;
 import se.jbee.task.model.Criteria.Property;
 import se.jbee.task.model.Date;
 import se.jbee.task.model.Name;
 import se.jbee.task.model.Names;
 import se.jbee.task.model.Output;
 import se.jbee.task.model.Task;
+import se.jbee.task.model.TaskPredicate;
 import se.jbee.task.model.User;
 import se.jbee.task.util.Log;
 
@@ -42,19 +51,66 @@ import se.jbee.task.util.Log;
  * {@link Output}-specific queries are delegated to a {@link CacheWorker}. Each
  * {@link CacheWorker} caches a specific {@link Output}.
  *
- * The content of a {@link CacheWorker} is valid one day. On a new day now
- * outdated caches are {@link #shutdown()} and a fresh {@link CacheWorker}
- * instance is created for the new day. This way the cache updates itself when
- * needed.
+ * For cross-output queries all involved {@link CacheWorker}s are asked in
+ * parallel for their first <code>offset+length</code> matches in order. These
+ * partial results are then merged. The {@link ExecutorService} has a thread
+ * per core so that concurrent queries do not wait for each other.
+ *
+ * The content of a {@link CacheWorker} depends on the day. On a new day each
+ * {@link CacheWorker} is asked to {@link CacheWorker#rollover(Date)} which
+ * recomputes the day dependent parts in place.
+ *
+ * Changes are passed on to the {@link CacheWorker}s in order of their
+ * {@link ChangeLog#sequence} using a {@link ChangeSequencer}. Only
+ * {@link ChangeLog}s published to a listener are sequenced, commits without
+ * one leave no gap.
+ *
+ * If a directory for snapshots is given each {@link CacheWorker} saves its
+ * state there when closed. On next start the {@link CacheWorker} is restored
+ * from that snapshot instead of being build from a full scan of the DB.
+ *
+ * Complete results are kept in a {@link ResultCache} so that repeated lookups
+ * are answered without asking the {@link CacheWorker}s again until one of the
+ * involved {@link Output}s changed.
+ *
+ * Lookups in {@link Output}s that are not cached yet are answered from the
+ * {@link Index}es of an {@link DB#isIndexed()} {@link DB} when they select by
+ * an indexed property. Otherwise such {@link Output}s are excluded from the
+ * result until their {@link CacheWorker} is build.
  */
 public class CacheCluster implements Cache {
 
 	private static final Log LOG = Log.forClass(CacheCluster.class);
 
+	/**
+	 * How long to wait for a missing {@link ChangeLog} before the changes
+	 * since the last one are reloaded instead.
+	 */
+	private static final long GAP_TIMEOUT_MILLIS = 1000L;
+
+	/**
+	 * The maximum total cost of the {@link ResultCache}, about the number of
+	 * {@link Task} references kept.
+	 */
+	private static final long RESULT_CACHE_COST = 64 * 1024;
+
+	/**
+	 * The number of {@link CacheWorker}s that read to catch up at the same
+	 * time. Each {@link CacheWorker} has a thread of its own (one per
+	 * {@link Output}) so without a bound the number of readers would grow
+	 * with the number of {@link Output}s.
+	 */
+	public static final int CATCH_UP_READERS = 1;
+
 	private final ExecutorService es;
 	private final DB db;
 	private final Clock clock;
-	private final Map<Name, Cache> outputCaches = new ConcurrentHashMap<>();
+	private final File snapshots;
+	private final Map<Name, CacheWorker> outputCaches = new ConcurrentHashMap<>();
+	private final AtomicInteger threads = new AtomicInteger();
+	private final ChangeSequencer sequencer;
+	private final ResultCache results = new ResultCache(RESULT_CACHE_COST);
+	private final Semaphore catchUpReaders = new Semaphore(CATCH_UP_READERS);
 
 	/**
 	 * The date the existing caches have been build for.
@@ -62,44 +118,65 @@ public class CacheCluster implements Cache {
 	private AtomicReference<Date> cacheValidity;
 
 	public CacheCluster(DB db, Clock clock) {
-		this.es = Executors.newSingleThreadExecutor(this::factory);
+		this(db, clock, null);
+	}
+
+	/**
+	 * @param snapshots directory to save and restore {@link CacheWorker}
+	 *        snapshots, null to not use snapshots
+	 */
+	public CacheCluster(DB db, Clock clock, File snapshots) {
+		this.es = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), this::factory);
 		this.db = db;
 		this.clock = clock;
+		this.snapshots = snapshots;
+		if (snapshots != null)
+			snapshots.mkdirs();
 		this.cacheValidity = new AtomicReference<>(Date.date(clock.time()));
+		this.sequencer = new ChangeSequencer(ChangeLog.latestSequence(), clock.time(), GAP_TIMEOUT_MILLIS, this::dispatch, this::catchUp);
 	}
 
 	@Override
 	public void close() {
+		sequencer.close();
 		es.shutdown();
+		results.close();
 		closeAndClearCaches();
 	}
 
 	private void closeAndClearCaches() {
-		LOG.info("Invalidating caches for outputs: " + outputCaches.keySet());
+		LOG.info("Closing caches for outputs: " + outputCaches.keySet());
 		for (Cache c : outputCaches.values()) c.close();
 			outputCaches.clear();
 	}
 
+	private void rolloverCaches(Date today) {
+		LOG.info("Rolling over caches for outputs: " + outputCaches.keySet());
+		for (CacheWorker c : outputCaches.values()) c.rollover(today);
+		results.clear();
+	}
+
 	private Thread factory(Runnable target) {
 		Thread t = new Thread(target);
 		t.setDaemon(true);
-		t.setName("task-cache: *");
+		t.setName("task-cache: *"+threads.incrementAndGet());
 		return t;
 	}
 
 	@Override
-	public Future<Matches> matchesFor(User actor, Criteria criteria) {
-		// throw away old caches
+	public CompletableFuture<Matches> matchesFor(User actor, Criteria criteria) {
+		// move caches on to the new day
 		Date before = cacheValidity.get();
-		Date today = Date.date(clock.time());
+		long now = clock.time();
+		Date today = Date.date(now);
 		if (today.after(before)) {
-			if (cacheValidity.compareAndSet(before, today)) // make sure only one thread does the shutdown
-				closeAndClearCaches();
+			if (cacheValidity.compareAndSet(before, today)) // make sure only one thread does the rollover
+				rolloverCaches(today);
 		}
 		// might be a indexing request
 		if (criteria.isIndexRequest()) {
 			Name output = (Name) criteria.get(0).rvalues[0];
-			Cache cache = outputCaches.computeIfAbsent(output, (k) -> new CacheWorker(k, db, before));
+			Cache cache = outputCaches.computeIfAbsent(output, (k) -> new CacheWorker(k, db, today, snapshotFile(k), now));
 			return cache.matchesFor(actor, criteria.without(Property.output));
 		}
 		// lookup request
@@ -115,72 +192,210 @@ public class CacheCluster implements Cache {
 		if (outputs.isEmpty())
 			return readyFuture(Matches.none()); // if no outputs are involved there cannot be any matches
 		criteria = criteria.without(output);
+		long[] generations = generations(outputs);
+		if (generations == null)
+			return lookup(actor, outputs, criteria); // some outputs are not cached yet
+		String key = ResultCache.key(outputs, criteria);
+		Matches cached = results.get(key, generations);
+		if (cached != null)
+			return readyFuture(cached);
+		final Names lookupOutputs = outputs;
+		return lookup(actor, outputs, criteria).thenApply((m) -> {
+			if (m.erroneousOutputs.isEmpty())
+				results.put(key, lookupOutputs, generations, m);
+			return m;
+		});
+	}
+
+	private CompletableFuture<Matches> lookup(User actor, Names outputs, Criteria criteria) {
 		if (outputs.count() == 1) {
 			Cache cache = cacheFor(outputs.first());
-			if (cache == null)
+			if (cache != null)
+				return cache.matchesFor(actor, criteria).thenApply((m) -> m.inContext(outputs, Names.empty(), Names.empty()));
+			if (selector(criteria) == null)
 				return readyFuture(Matches.none().inContext(Names.empty(), outputs, Names.empty())); // there was just 1 output but it was not cached yet
-			return cache.matchesFor(actor, criteria);
 		}
-		final Criteria lookupCriteria = criteria;
-		final Names lookupOutputs = outputs;
-		return es.submit(() -> lookup(actor, lookupOutputs, lookupCriteria));
+		return lookupAll(actor, outputs, criteria);
+	}
+
+	/**
+	 * Read before the lookup is queued so that changes applied meanwhile
+	 * make the result outdated right away.
+	 *
+	 * @return the {@link CacheWorker#generation()}s of the given outputs or
+	 *         null if any of them is not cached
+	 */
+	private long[] generations(Names outputs) {
+		long[] res = new long[outputs.count()];
+		int i = 0;
+		for (Name o : outputs) {
+			CacheWorker cache = cacheFor(o);
+			if (cache == null)
+				return null;
+			res[i++] = cache.generation();
+		}
+		return res;
 	}
 
 	/**
 	 * This is a multi-output lookup that fetches results from the individual
 	 * output caches and then joins them to a single result.
 	 *
-	 * Like the lookup within a output this is ran by an
-	 * {@link ExecutorService} so that {@link #matchesFor(User, Criteria)}
-	 * returns without doing the actual work or waiting for other {@link Future}
-	 * s.
+	 * Each output only contributes its first <code>offset+length</code>
+	 * matches in order. These are merged so that the overall order is never
+	 * computed for more than those.
+	 *
+	 * No thread waits for the individual output caches: once all of them are
+	 * done the merge is ran by the {@link ExecutorService} so that
+	 * {@link #matchesFor(User, Criteria)} returns without doing the actual
+	 * work or waiting for other {@link Future}s.
 	 */
-	private Matches lookup(User actor, Names outputs, Criteria criteria) {
-		Criteria filterCriteria = criteria.without(Property.order, Property.length, Property.offset);
+	private CompletableFuture<Matches> lookupAll(User actor, Names outputs, Criteria criteria) {
+		int offset = CacheWorker.offset(criteria);
+		int limit = offset + CacheWorker.length(criteria);
+		Criteria filterCriteria = criteria.without(Property.length, Property.offset);
+		Criterium selector = selector(filterCriteria);
 		Names uncached = Names.empty();
-		Names erroneous = Names.empty();
-		Map<Name, Future<Matches>> futures = new LinkedHashMap<>();
+		Map<Name, CompletableFuture<Matches>> futures = new LinkedHashMap<>();
 		for (Name o : outputs) {
-			Cache cache = cacheFor(o);
-			if (cache == null) {
-				uncached = uncached.add(o);
+			CacheWorker cache = cacheFor(o);
+			if (cache != null) {
+				futures.put(o, cache.matchesFor(filterCriteria, limit));
+			} else if (selector != null) {
+				futures.put(o, lookupIndexed(o, selector, filterCriteria, limit));
 			} else {
-				futures.put(o, cache.matchesFor(actor, filterCriteria));
+				uncached = uncached.add(o);
+			}
+		}
+		final Names lookupUncached = uncached;
+		return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0]))
+				.handle((done, e) -> done) // failed outputs are reported as erroneous
+				.thenApplyAsync((done) -> merge(futures, lookupUncached, offset, limit, criteria), es);
+	}
+
+	/**
+	 * The {@link Task}s selected by the {@link Index} are loaded from the
+	 * {@link DB} and checked against all {@link Criteria}. This is ran by the
+	 * {@link ExecutorService}.
+	 *
+	 * @return the first <code>limit</code> matches in order
+	 */
+	private CompletableFuture<Matches> lookupIndexed(Name output, Criterium selector, Criteria criteria, int limit) {
+		Index index = index(selector.left);
+		Name value = (Name) selector.rvalues[0];
+		return CompletableFuture.supplyAsync(() -> {
+			Date today = cacheValidity.get();
+			TaskPredicate filter = criteria.compile();
+			List<Task> matches = new ArrayList<>();
+			try (Read tx = db.read();
+					Repository rep = new DAO(tx, EntityCache.of(db))) {
+				// user indexes span all outputs
+				rep.tasks(index, output, value, (t) -> {
+					if (t.output().equalTo(output) && filter.test(t, today))
+						matches.add(t);
+					return true;
+				});
 			}
+			Task[] all = matches.toArray(new Task[0]);
+			Task[] res = criteria.contains(Property.order)
+					? Ordering.order(all, limit, criteria, today)
+					: all.length > limit ? copyOfRange(all, 0, limit) : all;
+			return new Matches(res, all.length).explained("db "+selector+" => "+all.length);
+		}, es);
+	}
+
+	/**
+	 * @return the {@link Criterium} that selects by the most selective
+	 *         property that has an {@link Index} or null if there is none or
+	 *         the {@link DB} is not indexed
+	 */
+	private Criterium selector(Criteria criteria) {
+		if (!db.isIndexed())
+			return null;
+		Criterium selector = null;
+		for (Criterium c : criteria) {
+			if (c.op == eq && index(c.left) != null && c.rvalues[0] instanceof Name && !c.unbound
+					&& (selector == null || c.left.selectivity > selector.left.selectivity))
+				selector = c;
+		}
+		return selector;
+	}
+
+	private static Index index(Property p) {
+		switch (p) {
+		case reporter: return Index.reporter;
+		case watcher: return Index.watcher;
+		case area: return Index.area;
+		case version: return Index.version;
+		default: return null;
 		}
+	}
+
+	private Matches merge(Map<Name, CompletableFuture<Matches>> futures, Names uncached, int offset, int limit, Criteria criteria) {
+		Names erroneous = Names.empty();
 		Names included = Names.empty();
-		List<Matches> outputMatches = new ArrayList<>();
-		for (java.util.Map.Entry<Name, Future<Matches>> o : futures.entrySet()) {
+		List<Task[]> runs = new ArrayList<>();
+		int total = 0;
+		StringBuilder plan = new StringBuilder();
+		for (java.util.Map.Entry<Name, CompletableFuture<Matches>> o : futures.entrySet()) {
 			try {
-				outputMatches.add(o.getValue().get());
-				included.add(o.getKey());
+				Matches m = o.getValue().join();
+				runs.add(m.tasks);
+				total += m.total;
+				included = included.add(o.getKey());
+				plan.append(plan.length() == 0 ? "" : "; ").append(o.getKey()).append(": ").append(m.plan);
 			} catch (Exception e) {
-				erroneous.add(o.getKey());
+				erroneous = erroneous.add(o.getKey());
 			}
 		}
-		Task[] mergedMatches = outputMatches.isEmpty() ? new Task[0] : fold(map(outputMatches, m -> m.tasks));
-		return CacheWorker.orderAndSlice(mergedMatches, criteria, cacheValidity.get()).inContext(included, uncached, erroneous);
+		Task[] top = Ordering.merge(runs.toArray(new Task[0][]), limit, criteria, cacheValidity.get());
+		Task[] matches = offset >= top.length ? new Task[0] : copyOfRange(top, offset, top.length);
+		return new Matches(matches, total).inContext(included, uncached, erroneous).explained(plan.toString());
 	}
 
 	@Override
 	public Future<Void> invalidate(ChangeLog changes) {
+		if (changes.isEmpty())
+			return readyFuture(null);
+		if (changes.sequence < 0) // not published to a listener, so not sequenced
+			return dispatch(changes);
+		return sequencer.accept(changes);
+	}
+
+	private CompletableFuture<Void> dispatch(ChangeLog changes) {
 		Iterator<Entry<?>> iter = changes.iterator();
 		Name output = Name.ORIGIN;
 		while (iter.hasNext() && output.isOrigin())
 			output = iter.next().after.output();
 		if (!output.isOrigin()) {
-			Cache cache = cacheFor(output);
+			results.invalidate(output);
+			CacheWorker cache = cacheFor(output);
 			if (cache != null)
 				return cache.invalidate(changes);
 		}
-		return readyFuture(null);
+		return CompletableFuture.completedFuture(null);
+	}
+
+	private void catchUp(long since) {
+		for (CacheWorker c : outputCaches.values()) c.catchUp(db, since, catchUpReaders);
+		results.clear();
+	}
+
+	@Override
+	public long serial(Name output) {
+		CacheWorker cache = cacheFor(output);
+		return cache == null ? -1L : cache.serial();
 	}
 
-	private Cache cacheFor(Name output) {
+	private CacheWorker cacheFor(Name output) {
 		return outputCaches.get(output);
 	}
 
-	private static <T> Future<T> readyFuture(T res) {
+	private File snapshotFile(Name output) {
+		return snapshots == null ? null : new File(snapshots, output+".cache");
+	}
+
+	private static <T> CompletableFuture<T> readyFuture(T res) {
 		return CompletableFuture.completedFuture(res);
 	}
 
@@ -5,38 +5,67 @@ import static java.lang.Math.min;
 import static java.lang.System.arraycopy;
 import static java.util.Arrays.asList;
 import static java.util.Arrays.copyOfRange;
+import static java.util.Comparator.comparingInt;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static se.jbee.task.engine.Bincoder.bin2event;
+import static se.jbee.task.engine.Bincoder.bin2task;
+import static se.jbee.task.engine.Bincoder.task2bin;
 import static se.jbee.task.model.Criteria.Operator.eq;
+import static se.jbee.task.model.Criteria.Operator.in;
+import static se.jbee.task.model.Criteria.Operator.neq;
+import static se.jbee.task.model.Criteria.Operator.nin;
 import static se.jbee.task.model.Criteria.Property.length;
 import static se.jbee.task.util.Array.nextPowerOf2;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.function.BiConsumer;
 
 import se.jbee.task.db.DB;
 import se.jbee.task.db.DB.Read;
+import se.jbee.task.engine.Bincoder;
 import se.jbee.task.engine.Change;
 import se.jbee.task.engine.ChangeLog;
 import se.jbee.task.engine.ChangeLog.Entry;
 import se.jbee.task.engine.DAO;
+import se.jbee.task.engine.EntityCache;
 import se.jbee.task.engine.Event;
 import se.jbee.task.engine.History;
 import se.jbee.task.engine.Repository;
+import se.jbee.task.engine.TaskView;
 import se.jbee.task.model.Area;
 import se.jbee.task.model.Cause;
 import se.jbee.task.model.Criteria;
 import se.jbee.task.model.Criteria.Criterium;
-import se.jbee.task.model.Criteria.Operator;
 import se.jbee.task.model.Criteria.Property;
 import se.jbee.task.model.Date;
 import se.jbee.task.model.Goal;
+import se.jbee.task.model.ID;
 import se.jbee.task.model.ID.Type;
 import se.jbee.task.model.IDN;
 import se.jbee.task.model.Name;
@@ -49,6 +78,8 @@ import se.jbee.task.model.Task;
 import se.jbee.task.model.User;
 import se.jbee.task.model.Version;
 import se.jbee.task.util.Log;
+import se.jbee.task.util.Metrics;
+import se.jbee.task.util.Metrics.Histogram;
 
 /**
  * Each worker is responsible for a single {@link Output}.
@@ -56,15 +87,60 @@ import se.jbee.task.util.Log;
  * This way there is only 1 thread working with the data what makes it trivial
  * to not have inconsistent states leaving the cache while updating the cached
  * entities in place.
+ *
+ * When a snapshot file is given the worker writes its state to that file when
+ * it is closed. A new worker for the same {@link Output} starts from that
+ * snapshot and only replays the {@link Event}s that happened after it was
+ * taken instead of scanning all {@link Task}s of the {@link Output}.
  */
 final class CacheWorker implements Cache {
 
 	private static final Log LOG = Log.forClass(CacheWorker.class);
 
+	private static final Histogram LOOKUP_ALL = lookups("all");
+	private static final Histogram LOOKUP_INDEX = lookups("index");
+	private static final Histogram LOOKUP_SCAN = lookups("scan");
+
+	private static Histogram lookups(String plan) {
+		return Metrics.histogram("cache_lookup_seconds", "Time to find the matches within an output by kind of plan", "plan", plan);
+	}
+
+	private static final int SNAPSHOT_FORMAT = 3;
+
+	/**
+	 * {@link Event}s are replayed starting a little earlier than the snapshot
+	 * watermark. Transactions get their timestamp before they are committed so
+	 * a slightly older one might have been committed after a newer one.
+	 * Replaying a {@link Task} twice does no harm.
+	 */
+	private static final long REPLAY_MARGIN_MILLIS = 60_000L;
+
 	private final Name output;
-	private final Date today;
+	private final File snapshot;
 	private final ExecutorService work;
 
+	/**
+	 * Only changed by the worker thread
+	 */
+	private Date today;
+	/**
+	 * The timestamp of the latest {@link ChangeLog} applied. As the
+	 * {@link ChangeLog#serial} is not persistent the timestamp is used to find
+	 * the {@link Event}s to replay after a restart.
+	 */
+	private long watermark;
+	/**
+	 * Counts the changes to the cached state: each {@link ChangeLog} applied,
+	 * catch up and rollover. Results looked up at the same generation are
+	 * the same, see {@link ResultCache}.
+	 */
+	private volatile long generation;
+	/**
+	 * The {@link ChangeLog#serial} of the latest {@link ChangeLog} applied
+	 * (or the latest serial when the cache was build or caught up).
+	 */
+	private volatile long serial;
+
 	/**
 	 * The {@link IDN} order is also the order by reported {@link Date}.
 	 * This can be used to narrow down with related date ranges.
@@ -91,19 +167,75 @@ final class CacheWorker implements Cache {
 	private EnumMap<Status, TaskSet> byStatus = new EnumMap<>(Status.class); // almost fixed
 
 	// special caches:
-	private TaskSet[] byTemperature = new TaskSet[100]; // not fix, has to be recomputed every day
+	private TaskSet[] byTemperature = new TaskSet[101]; // not fix, has to be recomputed every day
+	private TaskSet archivedToday = new TaskSet(); // removed from caches on rollover
+	private Map<Long, TaskSet> byTrigram = new HashMap<>(); // changes with the texts, see Trigrams
 
 	public CacheWorker(Name output, DB db, Date today) {
+		this(output, db, today, null, 0L);
+	}
+
+	/**
+	 * @param snapshot the file to restore from and save to, null to always
+	 *        build the cache from the DB
+	 * @param now the current time, the cache is consistent with changes up to
+	 *        that point in time when build from the DB
+	 */
+	public CacheWorker(Name output, DB db, Date today, File snapshot, long now) {
 		this.output = output;
 		this.today = today;
+		this.snapshot = snapshot;
+		this.watermark = now;
 		this.byIDN = new Task[128]; // initial capacity
-		this.work = Executors.newSingleThreadExecutor(this::factory);
+		this.work = new ThreadPoolExecutor(1, 1, 0L, MILLISECONDS, new LinkedBlockingQueue<>(), this::factory);
+		Metrics.gauge("cache_queue_depth", "Tasks waiting for the cache worker of an output",
+				() -> ((ThreadPoolExecutor) work).getQueue().size(), "output", output.toString());
 		init(db);
 	}
 
 	@Override
 	public void close() {
+		Metrics.remove("cache_queue_depth", "output", output.toString());
+		if (snapshot != null) {
+			work.submit(this::save);
+		}
 		work.shutdown();
+		if (snapshot != null) {
+			try {
+				work.awaitTermination(10, SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of changes applied so far, read by any thread
+	 */
+	long generation() {
+		return generation;
+	}
+
+	/**
+	 * @return the {@link ChangeLog#serial} the cache is up to date with, read
+	 *         by any thread
+	 */
+	long serial() {
+		return serial;
+	}
+
+	@Override
+	public long serial(Name output) {
+		return this.output.equalTo(output) ? serial : -1L;
+	}
+
+	/**
+	 * Moves the cache on to a new day without rebuilding it. {@link Task}s
+	 * archived since the last rollover are removed from the caches and the
+	 * {@link #byTemperature} cache is recomputed in place.
+	 */
+	public Future<Void> rollover(Date day) {
+		return work.submit(() -> { recompute(day); generation++; return null; });
 	}
 
 	private Thread factory(Runnable target) {
@@ -119,48 +251,64 @@ final class CacheWorker implements Cache {
 	}
 
 	private void init(DB db) {
+		long t0 = System.nanoTime();
+		serial = ChangeLog.latestSerial();
+		String source = "db";
 		try (Read tx = db.read()) {
-			try (Repository rep = new DAO(tx)) {
-				rep.tasks(output, (t) -> { index(t, TaskSet::init); return true; });
+			try (Repository rep = new DAO(tx, EntityCache.of(db))) {
+				if (snapshot != null && snapshot.exists() && restore(rep)) {
+					replay(tx, rep, watermark);
+					recompute(today);
+					source = "snapshot";
+				} else {
+					rep.tasks(output, (t) -> { index(t, TaskSet::init); return true; });
+				}
 			}
 		}
+		Metrics.histogram("cache_build_seconds", "Time to build the cache of an output", "output", output.toString(), "source", source).since(t0);
 	}
 
 	private void index(Task t, BiConsumer<TaskSet, IDN> f) {
-		final IDN id = t.id;
-		int idn = id.num;
+		int idn = t.id.num;
 		if (idn >= byIDN.length) {
-			Task[] tmp = new Task[nextPowerOf2(idn)];
-			arraycopy(tmp, 0, tmp, 0, usage+1);
+			Task[] tmp = new Task[nextPowerOf2(idn+1)];
+			arraycopy(byIDN, 0, tmp, 0, usage+1);
 			byIDN = tmp;
 		}
 		usage = Math.max(idn, usage);
 		byIDN[idn] = t;
 		if (!t.archived) {
-			for (Name n : t.participants)
-				f.accept(tasks(bySupporter, n), id);
-			for (Name n : t.aspirants)
-				f.accept(tasks(bySupporter, n), id);
-			for (Name n : t.area.maintainers)
-				f.accept(tasks(byMaintainer, n), id);
-			f.accept(tasks(byReporter, t.reporter), id);
-			if (t.isSolved())
-				f.accept(tasks(bySolver, t.solver), id);
-			for (Name n : t.watchers)
-				f.accept(tasks(byWatcher, n), id);
-			f.accept(tasks(byArea, t.area.name), id);
-			f.accept(tasks(byCategory, t.area.category), id);
-			f.accept(tasks(byVersion, t.base.name), id);
-			f.accept(tasks(byStatus, t.status), id);
-			f.accept(tasks(byGoal, t.goal), id);
-			f.accept(tasks(byCause, t.cause), id);
-			f.accept(tasks(byTemperature, t.temperature(today)), id);
-			f.accept(tasks(bySerial, t.serial), id);
-			f.accept(tasks(byBasis, t.basis), id);
-			f.accept(tasks(byOrigin, t.origin), id);
+			index(t, f, true);
 		}
 	}
 
+	private void index(Task t, BiConsumer<TaskSet, IDN> f, boolean temperature) {
+		final IDN id = t.id;
+		for (Name n : t.participants)
+			f.accept(tasks(bySupporter, n), id);
+		for (Name n : t.aspirants)
+			f.accept(tasks(bySupporter, n), id);
+		for (Name n : t.area.maintainers)
+			f.accept(tasks(byMaintainer, n), id);
+		f.accept(tasks(byReporter, t.reporter), id);
+		if (t.isSolved())
+			f.accept(tasks(bySolver, t.solver), id);
+		for (Name n : t.watchers)
+			f.accept(tasks(byWatcher, n), id);
+		f.accept(tasks(byArea, t.area.name), id);
+		f.accept(tasks(byCategory, t.area.category), id);
+		f.accept(tasks(byVersion, t.base.name), id);
+		f.accept(tasks(byStatus, t.status), id);
+		f.accept(tasks(byGoal, t.goal), id);
+		f.accept(tasks(byCause, t.cause), id);
+		if (temperature)
+			f.accept(tasks(byTemperature, t.temperature(today)), id);
+		f.accept(tasks(bySerial, t.serial), id);
+		f.accept(tasks(byBasis, t.basis), id);
+		f.accept(tasks(byOrigin, t.origin), id);
+		Trigrams.of(t, (key) -> f.accept(tasks(byTrigram, key), id));
+	}
+
 	private static <K> TaskSet tasks(Map<K, TaskSet> map, K key) {
 		TaskSet set = map.get(key);
 		if (set == null) {
@@ -177,108 +325,292 @@ final class CacheWorker implements Cache {
 	}
 
 	@Override
-	public Future<Matches> matchesFor(User actor, Criteria criteria) {
-		return work.submit(() -> lookup(criteria));
+	public CompletableFuture<Matches> matchesFor(User actor, Criteria criteria) {
+		if (criteria.count() == 0)
+			return CompletableFuture.supplyAsync(() -> lookup(criteria), work);
+		return CompletableFuture.supplyAsync(() -> orderAndSlice(lookup(criteria), criteria), work);
+	}
+
+	/**
+	 * Used by {@link CacheCluster} to get the partial result of this
+	 * {@link Output} for a cross-output query. The matches are in order but
+	 * only the first <code>limit</code> are included so that partial results
+	 * can be merged cheaply.
+	 */
+	CompletableFuture<Matches> matchesFor(Criteria criteria, int limit) {
+		return CompletableFuture.supplyAsync(() -> {
+			Matches all = lookup(criteria);
+			Task[] matches = criteria.contains(Property.order)
+				? Ordering.order(all.tasks, limit, criteria, today)
+				: all.tasks.length > limit ? copyOfRange(all.tasks, 0, limit) : all.tasks;
+			return new Matches(matches, all.total).explained(all.plan);
+		}, work);
 	}
 
 	@Override
-	public Future<Void> invalidate(ChangeLog changes) {
-		//TODO reordering is a hard problem. better: connect the cache directly to transactions so that they push changes as soon as they are happen in order
-		return work.submit(() -> { update(changes); return null; } );
+	public CompletableFuture<Void> invalidate(ChangeLog changes) {
+		// changes are expected in order, see ChangeSequencer
+		return CompletableFuture.runAsync(() -> update(changes), work);
+	}
+
+	/**
+	 * Reloads all {@link Task}s changed since the given time. This is used
+	 * when {@link ChangeLog}s went missing.
+	 *
+	 * @param readers shared by the {@link CacheWorker}s catching up at the
+	 *        same time, one is held while reading
+	 */
+	Future<Void> catchUp(DB db, long since, Semaphore readers) {
+		return work.submit(() -> {
+			readers.acquire();
+			try (Read tx = db.read()) {
+				try (Repository rep = new DAO(tx, EntityCache.of(db))) {
+					replay(tx, rep, since);
+				}
+			} finally {
+				readers.release();
+			}
+			serial = max(serial, ChangeLog.latestSerial());
+			generation++;
+			return null;
+		});
 	}
 
 	/**
-	 * As soon the set of potential hits has been narrowed down to less then
-	 * about 100 we use the remaining criteria to filter that list of potential
-	 * matches. Merging different sets of potential matches is most likely more
-	 * expensive. In any case it creates more short lived objects => garbage.
+	 * The indexes are used to narrow down the potential hits as far as possible
+	 * using set operations on {@link TaskSet}s (see {@link QueryPlan}). As
+	 * these are bitmaps this is cheap compared to checking the {@link Task}s.
+	 * Only the criteria not answered exactly by an index are then used to
+	 * filter that list of potential matches.
 	 */
 	private Matches lookup(Criteria criteria) {
+		long t0 = System.nanoTime();
 		// 0. if there is not a single criteria return all
 		if (criteria.count() == 0) {
-			return new Matches(copyOfRange(byIDN, 1, usage+1), usage);
-		}
-		// 1. find the "eq" selector that yields the smallest set
-		TaskSet candidates = null;
-		Criterium selector = null;
-		int i = 1;
-		while (i < criteria.count() && criteria.get(i).op == eq) {
-			Criterium c = criteria.get(i);
-			Map<?, TaskSet> table = select(c.left);
-			if (table != null) {
-				TaskSet index = table.get(c.rvalues[0]);
-				if (index == null)
-					return Matches.none(); // there are no matches for this selector - we are done
-				if (candidates == null || index.size() < candidates.size()) {
-					selector = c;
-					candidates = index;
+			Matches all = new Matches(copyOfRange(byIDN, 1, usage+1), usage);
+			LOOKUP_ALL.since(t0);
+			return all;
+		}
+		QueryPlan plan = plan(criteria);
+		TaskSet candidates = plan.candidates();
+		Task[] matches = candidates == null
+				? filter(byIDN, usage+1, plan.residual())
+				: filter(candidates, plan.residual());
+		(candidates == null ? LOOKUP_SCAN : LOOKUP_INDEX).since(t0);
+		return new Matches(matches, matches.length).explained(plan.explain());
+	}
+
+	private Matches orderAndSlice(Matches all, Criteria criteria) {
+		return orderAndSlice(all.tasks, criteria, today).explained(all.plan);
+	}
+
+	/**
+	 * Each {@link Criterium} that can be answered using an index becomes a
+	 * step in the {@link QueryPlan}.
+	 */
+	QueryPlan plan(Criteria criteria) {
+		QueryPlan plan = new QueryPlan(usage);
+		for (Criterium c : criteria) {
+			if (!c.left.isResultProperty()) {
+				QueryPlan.Step step = c.isPropertyComparison() || c.unbound ? null : step(c);
+				if (step != null) {
+					plan.add(step);
+				} else {
+					plan.add(c);
+				}
+			}
+		}
+		return plan;
+	}
+
+	private QueryPlan.Step step(Criterium c) {
+		final Property p = c.left;
+		final boolean excluding = c.op == neq || c.op == nin;
+		if (c.rvalues.length == 0)
+			return null;
+		switch (p) {
+		case id:
+			if (c.op.allowsMultipleArguments) {
+				TaskSet ids = new TaskSet();
+				for (Object v : c.rvalues) {
+					int idn = (Integer) v;
+					if (idn > 0 && idn <= usage && byIDN[idn] != null)
+						ids.add(idn);
 				}
+				return new QueryPlan.Step(c, excluding, true, ids.size(), () -> ids);
 			}
-			i++;
+			final int lo = max(1, lowerBound(c)), hi = min(usage, upperBound(c));
+			return new QueryPlan.Step(c, false, true, max(0, hi-lo+1), () -> TaskSet.range(lo, hi));
+		case temperature:
+			if (excluding)
+				return null;
+			List<TaskSet> buckets = new ArrayList<>();
+			for (int t = max(0, lowerBound(c)); t <= min(100, upperBound(c)); t++)
+				if (byTemperature[t] != null)
+					buckets.add(byTemperature[t]);
+			return step(c, false, true, buckets);
+		case gist:
+		case conclusion:
+		case url:
+			return excluding ? null : textStep(c);
+		default:
 		}
-		if (selector != null) {
-			return orderAndSlice(filter(candidates, criteria), criteria, today);
+		Map<?, TaskSet> table = select(p);
+		if (table == null)
+			return null;
+		final boolean exact = !INEXACT_INDEXES.contains(p);
+		if (c.op == eq || c.op == in || excluding) {
+			if (excluding && !exact)
+				return null;
+			List<TaskSet> sets = new ArrayList<>();
+			for (Object v : c.rvalues) {
+				TaskSet set = table.get(key(p, v));
+				if (set != null) {
+					sets.add(set);
+				} else if (c.op == eq && p.isSetValue()) {
+					sets.clear(); // a set has to contain all values
+					break;
+				}
+			}
+			if (c.op == eq && p.isSetValue()) // contains all values is necessary but not sufficient for the set being equal
+				return new QueryPlan.Step(c, false, false, sets.isEmpty() ? 0 : sets.get(0).size(), () -> intersection(sets));
+			if (c.op == neq && p.isSetValue())
+				return null;
+			return step(c, excluding, exact, sets);
+		}
+		if (p == Property.serial || p == Property.origin || p == Property.basis) {
+			int lo = lowerBound(c), hi = upperBound(c);
+			List<TaskSet> sets = new ArrayList<>();
+			for (Map.Entry<?, TaskSet> e : table.entrySet()) {
+				IDN key = (IDN) e.getKey();
+				if (key != null && key.num >= lo && key.num <= hi)
+					sets.add(e.getValue());
+			}
+			return step(c, false, exact, sets);
+		}
+		return null;
+	}
+
+	/**
+	 * A text matches if it contains all trigrams of the term (see
+	 * {@link Trigrams}) so the candidates of a value are the intersection of
+	 * the {@link TaskSet}s of its trigrams. Alternative values are united. A
+	 * term too short to have trigrams does not narrow down the candidates.
+	 */
+	private QueryPlan.Step textStep(Criterium c) {
+		if (c.op == eq && c.rvalues.length > 1)
+			return new QueryPlan.Step(c, false, true, 0, TaskSet::new);
+		List<List<TaskSet>> alternatives = new ArrayList<>();
+		int estimate = 0;
+		for (Object v : c.rvalues) {
+			long[] keys = Trigrams.of(c.left, c.op, (CharSequence) v);
+			if (keys == null)
+				return null;
+			List<TaskSet> sets = new ArrayList<>();
+			for (long key : keys) {
+				TaskSet set = byTrigram.get(key);
+				if (set == null) {
+					sets.clear();
+					break;
+				}
+				sets.add(set);
+			}
+			if (!sets.isEmpty()) {
+				sets.sort(comparingInt(TaskSet::size));
+				estimate += sets.get(0).size();
+				alternatives.add(sets);
+			}
 		}
-		// 2. or (if no eq available) use the first "in" clause
+		return new QueryPlan.Step(c, false, false, estimate, () -> {
+			List<TaskSet> sets = new ArrayList<>();
+			for (List<TaskSet> alternative : alternatives)
+				sets.add(intersection(alternative));
+			return union(sets);
+		});
+	}
+
+	/**
+	 * These indexes are either a superset or might not be up to date with
+	 * changes to other entities than the {@link Task}.
+	 */
+	private static final EnumSet<Property> INEXACT_INDEXES = EnumSet.of(
+			Property.aspirant, Property.participant, Property.maintainer,
+			Property.category, Property.solver);
 
-		// 3. or use a range (serial, heat, temperature)
+	private static QueryPlan.Step step(Criterium c, boolean excluding, boolean exact, List<TaskSet> sets) {
+		int estimate = 0;
+		for (TaskSet set : sets)
+			estimate += set.size();
+		return new QueryPlan.Step(c, excluding, exact, estimate, () -> union(sets));
+	}
 
-		// 4. or just plain filter every known task ;(
-		return orderAndSlice(filter(byIDN, usage+1, criteria), criteria, today);
+	private static TaskSet union(List<TaskSet> sets) {
+		if (sets.isEmpty())
+			return new TaskSet();
+		TaskSet res = sets.get(0);
+		for (int i = 1; i < sets.size(); i++)
+			res = res.or(sets.get(i));
+		return res;
 	}
 
-	static Matches orderAndSlice(Task[] matches, Criteria criteria, Date today) {
-		int len = 50;
-		int offset = 0;
-		if (criteria.contains(length)) {
-			len = criteria.get(criteria.indexOf(length)).intValue(len);
+	private static TaskSet intersection(List<TaskSet> sets) {
+		if (sets.isEmpty())
+			return new TaskSet();
+		TaskSet res = sets.get(0);
+		for (int i = 1; i < sets.size() && !res.isEmpty(); i++)
+			res = res.and(sets.get(i));
+		return res;
+	}
+
+	private static Object key(Property p, Object value) {
+		if (value instanceof Integer && (p == Property.serial || p == Property.origin || p == Property.basis))
+			return IDN.idn((Integer) value);
+		return value;
+	}
+
+	private static int lowerBound(Criterium c) {
+		int v = (Integer) c.rvalues[0];
+		switch (c.op) {
+		case gt: return v+1;
+		case ge:
+		case eq: return v;
+		default: return Integer.MIN_VALUE;
 		}
-		if (criteria.contains(Property.offset)) {
-			offset = criteria.get(criteria.indexOf(Property.offset)).intValue(offset);
+	}
+
+	private static int upperBound(Criterium c) {
+		int v = (Integer) c.rvalues[0];
+		switch (c.op) {
+		case lt: return v-1;
+		case le:
+		case eq: return v;
+		default: return Integer.MAX_VALUE;
 		}
+	}
+
+	static Matches orderAndSlice(Task[] matches, Criteria criteria, Date today) {
+		int len = length(criteria);
+		int offset = offset(criteria);
 		int total = matches.length;
 		if (offset > total) {
 			matches = new Task[0];
 		} else {
 			if (criteria.contains(Property.order)) {
-				order(matches, criteria, today);
+				matches = Ordering.order(matches, offset+len, criteria, today);
 			}
-			if (offset > 0 || offset+total > len) {
-				matches = copyOfRange(matches, offset, min(total, offset+len));
+			if (offset > 0 || total > len) {
+				matches = copyOfRange(matches, offset, min(matches.length, offset+len));
 			}
 		}
 		return new Matches(matches, total);
 	}
 
+	static int length(Criteria criteria) {
+		return criteria.contains(length) ? criteria.get(criteria.indexOf(length)).intValue(50) : 50;
+	}
 
-	static void order(Task[] matches, Criteria criteria, Date today) {
-		int len = 0;
-		int i = criteria.indexOf(Property.order);
-		while (i >= 0) {
-			len += criteria.get(i).rvalues.length;
-			i = criteria.indexOf(Property.order, i+1);
-		}
-		final Property[] props = new Property[len];
-		final int[] factors = new int[len];
-		i = criteria.indexOf(Property.order);
-		int s = 0;
-		while (i >= 0) {
-			Criterium criterium = criteria.get(i);
-			Object[] orders = criterium.rvalues;
-			System.arraycopy(orders, 0, props, s, orders.length);
-			Arrays.fill(factors, criterium.op == Operator.asc ? 1 : -1, s, s+orders.length);
-			s+=orders.length;
-			i = criteria.indexOf(Property.order, i+1);
-		}
-		Arrays.sort(matches, (a,b) -> {
-			for (int k = 0; k < props.length; k++) {
-				Property p = props[k];
-				int res = cmp(p.access(a, today), p.access(b, today));
-				if (res != 0)
-					return factors[k] * res;
-			}
-			return 0;
-		});
+	static int offset(Criteria criteria) {
+		return criteria.contains(Property.offset) ? criteria.get(criteria.indexOf(Property.offset)).intValue(0) : 0;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -287,19 +619,19 @@ final class CacheWorker implements Cache {
 	}
 
 	private Task[] filter(TaskSet set, Criteria criteria) {
-		final int size = set.size();
 		return criteria.filter(new Iterator<Task>() {
 
-			int i = 0;
+			int idn = set.first();
 			@Override
 			public Task next() {
-				while (set.members[i] == 0) i++; // skip gaps
-				return byIDN[set.members[i++]];
+				Task t = byIDN[idn];
+				idn = set.next(idn+1);
+				return t;
 			}
 
 			@Override
 			public boolean hasNext() {
-				return i < size-1;
+				return idn >= 0;
 			}
 		}, today);
 	}
@@ -344,8 +676,20 @@ final class CacheWorker implements Cache {
 	@SuppressWarnings("unchecked")
 	private void update(ChangeLog changes) {
 		for (ChangeLog.Entry<?> e : changes)
-			if (e.type() == Type.Task)
+			if (e.type() == Type.Task && !isCurrent((Task) e.after))
 				updateTask((Entry<Task>) e);
+		watermark = max(watermark, changes.timestamp);
+		serial = max(serial, changes.serial);
+		generation++;
+	}
+
+	/**
+	 * @return true, if the cache already has the given version (or a later
+	 *         one) of the {@link Task}, e.g. because it was reloaded
+	 */
+	private boolean isCurrent(Task after) {
+		int idn = after.id.num;
+		return idn <= usage && byIDN[idn] != null && byIDN[idn].version() >= after.version();
 	}
 
 	/**
@@ -377,6 +721,7 @@ final class CacheWorker implements Cache {
 				tasks(bySolver, after.solver).add(idn);
 				removeMissing(before.participants, after.participants, bySupporter, idn);
 				removeMissing(before.aspirants, after.aspirants, bySupporter, idn);
+				retext(before, after); // conclusion
 				break;
 			case relocate: // change of area
 				tasks(byArea, before.area.name).remove(idn);
@@ -386,7 +731,11 @@ final class CacheWorker implements Cache {
 				tasks(byVersion, before.base.name).remove(idn);
 				tasks(byVersion, after.base.name).add(idn);
 				break;
-			case attach: // attach/detach
+			case rephrase: // change of texts
+			case attach:
+			case detach:
+				retext(before, after);
+				break;
 			case aspire: // become a user 1
 				addMissing(after.aspirants, before.aspirants, bySupporter, idn);
 				break;
@@ -410,7 +759,8 @@ final class CacheWorker implements Cache {
 				index(after, TaskSet::add);
 				break;
 			case archive:
-				// we do not remove it right away from all caches since this will happen on next day anyway when new cache instance is build
+				// we do not remove it right away from all caches since this will happen on next day anyway on rollover
+				archivedToday.add(idn);
 				break;
 			}
 		}
@@ -418,6 +768,13 @@ final class CacheWorker implements Cache {
 			byIDN[idn.num] = after;
 	}
 
+	private void retext(Task before, Task after) {
+		final IDN idn = after.id;
+		if (before != null)
+			Trigrams.of(before, (key) -> tasks(byTrigram, key).remove(idn));
+		Trigrams.of(after, (key) -> tasks(byTrigram, key).add(idn));
+	}
+
 	private static void removeMissing(Names a, Names b, Map<Name, TaskSet> map, IDN idn) {
 		for (Name n : a) {
 			if (!b.contains(n)) { tasks(map, n).remove(idn); }
@@ -430,122 +787,565 @@ final class CacheWorker implements Cache {
 		}
 	}
 
+	private void recompute(Date day) {
+		today = day;
+		for (int idn = archivedToday.first(); idn >= 0; idn = archivedToday.next(idn+1))
+			index(byIDN[idn], TaskSet::remove, false);
+		archivedToday = new TaskSet();
+		byTemperature = new TaskSet[101];
+		for (int i = 1; i <= usage; i++) {
+			Task t = byIDN[i];
+			if (t != null && !t.archived)
+				tasks(byTemperature, t.temperature(today)).init(t.id);
+		}
+	}
+
+	/**
+	 * Brings a restored cache up to date with the {@link Task}s changed since
+	 * the snapshot was taken. The {@link Event}s are just used to know which
+	 * {@link Task}s did change, their current state is read from the DB.
+	 */
+	private void replay(Read tx, Repository rep, long after) {
+		final long since = max(0L, after - REPLAY_MARGIN_MILLIS);
+		final TaskView view = new TaskView();
+		tx.range(ID.eventId(since), (k,v) -> {
+			Event e = bin2event.convert(rep, v);
+			if (e.timestamp >= since) {
+				for (int i = 0; i < e.cardinality(); i++) {
+					ID entity = e.transition(i).entity;
+					if (entity.type == Type.Task) {
+						ByteBuffer record = tx.get(entity);
+						if (record != null && view.wrap(record).outputEquals(output)) {
+							// the record buffer is reused by the gets of the decoder
+							ByteBuffer owned = ByteBuffer.allocate(record.remaining()).order(record.order());
+							owned.put(record.duplicate()).flip();
+							reindex(view.wrap(owned).task(rep));
+						}
+					}
+				}
+				watermark = max(watermark, e.timestamp);
+			}
+			return true;
+		});
+	}
+
+	private void reindex(Task after) {
+		int idn = after.id.num;
+		Task before = idn <= usage ? byIDN[idn] : null;
+		if (before != null) {
+			if (before.version() >= after.version())
+				return; // already up to date
+			if (!before.archived)
+				index(before, TaskSet::remove, false);
+		}
+		index(after, TaskSet::add);
+	}
+
+	private void reset() {
+		byIDN = new Task[128];
+		usage = 0;
+		bySupporter.clear(); byMaintainer.clear(); bySolver.clear(); byReporter.clear();
+		byWatcher.clear(); byArea.clear(); byVersion.clear(); byCategory.clear();
+		byBasis.clear(); byOrigin.clear(); bySerial.clear();
+		byGoal.clear(); byCause.clear(); byStatus.clear();
+		byTemperature = new TaskSet[101];
+		archivedToday = new TaskSet();
+		byTrigram.clear();
+	}
+
+	/*
+	 * Snapshots
+	 */
+
+	private void save() {
+		File tmp = new File(snapshot.getPath()+".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(SNAPSHOT_FORMAT);
+			writeName(output, out);
+			out.writeLong(watermark);
+			out.writeInt(usage);
+			ByteBuffer buf = ByteBuffer.allocate(8192);
+			for (int i = 1; i <= usage; i++) {
+				Task t = byIDN[i];
+				if (t == null) {
+					out.writeInt(0);
+				} else {
+					buf.clear();
+					task2bin.convert(t, buf);
+					out.writeInt(buf.position());
+					out.write(buf.array(), 0, buf.position());
+				}
+			}
+			for (Map<Name, TaskSet> map : asList(bySupporter, byMaintainer, bySolver, byReporter, byWatcher, byArea, byVersion, byCategory))
+				write(map, CacheWorker::writeName, out);
+			for (Map<IDN, TaskSet> map : asList(byBasis, byOrigin, bySerial))
+				write(map, CacheWorker::writeIDN, out);
+			write(byGoal, CacheWorker::writeEnum, out);
+			write(byCause, CacheWorker::writeEnum, out);
+			write(byStatus, CacheWorker::writeEnum, out);
+			archivedToday.write(out);
+			write(byTrigram, (key, o) -> o.writeLong(key), out);
+		} catch (IOException | RuntimeException e) {
+			LOG.warn("Failed to write cache snapshot for "+output+": "+e.getMessage());
+			return;
+		}
+		try {
+			Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOG.warn("Failed to replace cache snapshot for "+output+": "+e.getMessage());
+		}
+	}
+
+	private boolean restore(Repository rep) {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)))) {
+			if (in.readInt() != SNAPSHOT_FORMAT || !output.equalTo(readName(in)))
+				return false;
+			watermark = in.readLong();
+			int n = in.readInt();
+			byIDN = new Task[max(128, nextPowerOf2(n+1))];
+			for (int i = 1; i <= n; i++) {
+				int len = in.readInt();
+				if (len > 0) {
+					byte[] record = new byte[len];
+					in.readFully(record);
+					byIDN[i] = bin2task.convert(rep, ByteBuffer.wrap(record));
+				}
+			}
+			usage = n;
+			for (Map<Name, TaskSet> map : asList(bySupporter, byMaintainer, bySolver, byReporter, byWatcher, byArea, byVersion, byCategory))
+				read(map, CacheWorker::readName, in);
+			for (Map<IDN, TaskSet> map : asList(byBasis, byOrigin, bySerial))
+				read(map, CacheWorker::readIDN, in);
+			read(byGoal, (i) -> Bincoder.goals[i.readByte()], in);
+			read(byCause, (i) -> Bincoder.causes[i.readByte()], in);
+			read(byStatus, (i) -> Bincoder.status[i.readByte()], in);
+			archivedToday = TaskSet.read(in);
+			read(byTrigram, DataInputStream::readLong, in);
+			LOG.info("Restored cache snapshot for "+output+" with "+n+" tasks.");
+			return true;
+		} catch (IOException | RuntimeException e) {
+			LOG.warn("Failed to restore cache snapshot for "+output+", rebuilding: "+e);
+			reset();
+			return false;
+		}
+	}
+
+	private interface KeyWriter<K> {
+		void write(K key, DataOutputStream out) throws IOException;
+	}
+
+	private interface KeyReader<K> {
+		K read(DataInputStream in) throws IOException;
+	}
+
+	private static <K> void write(Map<K, TaskSet> map, KeyWriter<K> keys, DataOutputStream out) throws IOException {
+		out.writeInt(map.size());
+		for (Map.Entry<K, TaskSet> e : map.entrySet()) {
+			keys.write(e.getKey(), out);
+			e.getValue().write(out);
+		}
+	}
+
+	private static <K> void read(Map<K, TaskSet> map, KeyReader<K> keys, DataInputStream in) throws IOException {
+		int n = in.readInt();
+		for (int i = 0; i < n; i++)
+			map.put(keys.read(in), TaskSet.read(in));
+	}
+
+	private static void writeName(Name name, DataOutputStream out) throws IOException {
+		if (name == null) {
+			out.writeByte(-1);
+		} else {
+			byte[] bytes = name.readonlyBytes();
+			out.writeByte(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static Name readName(DataInputStream in) throws IOException {
+		int len = in.readByte();
+		if (len < 0)
+			return null;
+		byte[] bytes = new byte[len];
+		in.readFully(bytes);
+		return Name.fromBytes(bytes);
+	}
+
+	private static void writeIDN(IDN id, DataOutputStream out) throws IOException {
+		out.writeInt(id == null ? -1 : id.num);
+	}
+
+	private static IDN readIDN(DataInputStream in) throws IOException {
+		int num = in.readInt();
+		return num < 0 ? null : IDN.idn(num);
+	}
+
+	private static void writeEnum(Enum<?> e, DataOutputStream out) throws IOException {
+		out.writeByte(e.ordinal());
+	}
+
 	/**
-	 * A unsorted set of ids stored as shorts for compaction of data. Some cells
-	 * might be zero. These are blanked after {@link #remove(IDN)} for later
-	 * usage by {@link #init(IDN)}. When iterating the set one has to iterate
-	 * from 0 to usage (inclusive) and ignore all zeros.
+	 * A set of {@link IDN}s stored as a compressed bitmap in the style of
+	 * roaring bitmaps.
 	 *
-	 * The set grows by power of 2 when set if full.
+	 * The range of IDNs is split into chunks of 65536 numbers. A chunk that has
+	 * members either is a sorted array of the lower 16 bits (while sparse) or a
+	 * bitmap of 65536 bits (when dense). The chunk of an IDN is found directly
+	 * so adding, removing and checking a member is a binary search or a single
+	 * bit operation within that chunk.
 	 *
-	 * The set is designed for high write thoughput and low memory footprint.
+	 * Sets can be combined chunk by chunk using {@link #and(TaskSet)},
+	 * {@link #or(TaskSet)} and {@link #andNot(TaskSet)}.
 	 *
-	 * It supports sets of up to 32,766 items.
+	 * It supports all IDNs an {@link ID} can represent (up to 1,048,575).
 	 */
-	static class TaskSet {
-		private short[] members = new short[8];
-		private int usage = -1;
+	static final class TaskSet {
+
+		private static final int CHUNK_BITS = 16;
+
+		private Chunk[] chunks = new Chunk[1];
 		private int size = 0; // how many members are actually defined
-		private int maxIDN = 0;
-		private int gaps = 0;
-		private int gap0 = -1; // last known gap index (if not reused already) this speeds up remove/add cycles
 
 		/**
-		 * In contrast to {@link #add(IDN)} we are sure each task is just
-		 * initiated once so that we do not have to search for task already
-		 * being in the set.
+		 * Same as {@link #add(IDN)}. Used while a set is build initially.
 		 */
 		void init(IDN task) {
-			if (usage >= members.length-1) {
-				short[] tmp = new short[members.length * 2];
-				System.arraycopy(members, 0, tmp, 0, members.length);
-				members = tmp;
-			}
-			int idn = task.num;
-			members[++usage] = (short) idn;
-			size++;
-			maxIDN = max(maxIDN, idn);
+			add(task.num);
 		}
 
 		int first() {
-			int i = 0;
-			while (i <= usage && members[i] == 0) i++;
-			return members[i] == 0 ? -1 : members[i];
+			return next(0);
+		}
+
+		/**
+		 * @return the smallest member equal to or larger than the given IDN or
+		 *         -1 if there is no such member
+		 */
+		int next(int from) {
+			int c0 = from >>> CHUNK_BITS;
+			for (int c = c0; c < chunks.length; c++) {
+				if (chunks[c] != null) {
+					int low = chunks[c].next(c == c0 ? from & 0xFFFF : 0);
+					if (low >= 0)
+						return (c << CHUNK_BITS) | low;
+				}
+			}
+			return -1;
 		}
 
 		boolean contains(IDN task) {
-			return indexOf(task) >= 0;
+			return contains(task.num);
+		}
+
+		boolean contains(int idn) {
+			int c = idn >>> CHUNK_BITS;
+			return c < chunks.length && chunks[c] != null && chunks[c].contains((char) idn);
 		}
 
 		public int size() {
 			return size;
 		}
 
-		int indexOf(IDN task) {
-			final int idn = task.num;
-			if (usage > 16) { // try binary search
-				int res = indexOf(idn, usage/2, usage/2);
-				if (res >= 0)
-					return res;
-			}
-			for (int i = 0; i <= usage; i++) {
-				if (idn == members[i])
-					return i;
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		void add(IDN task) {
+			add(task.num);
+		}
+
+		void add(int idn) {
+			int c = idn >>> CHUNK_BITS;
+			if (c >= chunks.length)
+				chunks = Arrays.copyOf(chunks, c+1);
+			if (chunks[c] == null)
+				chunks[c] = new Chunk();
+			if (chunks[c].add((char) idn))
+				size++;
+		}
+
+		void remove(IDN task) {
+			int idn = task.num;
+			int c = idn >>> CHUNK_BITS;
+			if (c < chunks.length && chunks[c] != null && chunks[c].remove((char) idn)) {
+				size--;
+				if (chunks[c].size == 0)
+					chunks[c] = null;
 			}
-			return -1;
 		}
 
 		/**
-		 * This is a modified binary search that is being optimistic about the
-		 * items in the set being sorted in ascending order. Due to gap filling
-		 * with numbers out of order the tried index m might jump out of bounds
-		 * so we have to check for that. The idea is to just do the steps until
-		 * we have tried all the way down to a delta of 1. If index is not found
-		 * by then we got messed up by zeros or filled gaps.
+		 * @return a new set with the members contained in both sets
 		 */
-		private int indexOf(int idn, int m, int d) {
-			while (m <= usage && m >= 0 && members[m] != idn) {
-				if (d == 1)
-					return -1;
-				d = d/2;
-				m += members[m] > idn ? -d : d;
+		TaskSet and(TaskSet other) {
+			TaskSet res = new TaskSet();
+			int len = min(chunks.length, other.chunks.length);
+			res.chunks = new Chunk[max(1, len)];
+			for (int c = 0; c < len; c++)
+				if (chunks[c] != null && other.chunks[c] != null)
+					res.set(c, Chunk.and(chunks[c], other.chunks[c]));
+			return res;
+		}
+
+		/**
+		 * @return a new set with the members contained in either set
+		 */
+		TaskSet or(TaskSet other) {
+			TaskSet res = new TaskSet();
+			res.chunks = new Chunk[max(chunks.length, other.chunks.length)];
+			for (int c = 0; c < res.chunks.length; c++) {
+				Chunk a = c < chunks.length ? chunks[c] : null;
+				Chunk b = c < other.chunks.length ? other.chunks[c] : null;
+				if (a != null && b != null) {
+					res.set(c, Chunk.or(a, b));
+				} else if (a != null || b != null) {
+					res.set(c, (a != null ? a : b).copy());
+				}
 			}
-			return m <= usage && m >= 0 ? m : -1;
+			return res;
 		}
 
-		void add(IDN task) {
-			int idn = task.num;
-			if (idn > maxIDN) {
-				init(task);
-			} else if (!contains(task)) {
-				if (gaps > 0) {
-					if (gap0 >= 0) {
-						members[gap0] = (short) idn;
-						gap0 = -1;
-					} else {
-						int i = 0;
-						while (members[i] != 0) i++;
-						members[i] = (short) idn;
-					}
-					gaps--;
-					size++;
-					maxIDN = max(maxIDN, idn);
-				} else {
-					init(task);
+		/**
+		 * @return a new set with the members of this set not contained in the
+		 *         other set
+		 */
+		TaskSet andNot(TaskSet other) {
+			TaskSet res = new TaskSet();
+			res.chunks = new Chunk[chunks.length];
+			for (int c = 0; c < chunks.length; c++) {
+				if (chunks[c] != null) {
+					Chunk b = c < other.chunks.length ? other.chunks[c] : null;
+					res.set(c, b == null ? chunks[c].copy() : Chunk.andNot(chunks[c], b));
 				}
 			}
+			return res;
 		}
 
-		void remove(IDN task) {
-			int idx = indexOf(task);
-			if (idx >= 0) {
-				members[idx] = 0;
-				gaps++;
-				gap0 = idx;
+		private void set(int c, Chunk chunk) {
+			if (chunk != null && chunk.size > 0) {
+				chunks[c] = chunk;
+				size += chunk.size;
+			}
+		}
+
+		/**
+		 * @return a new set with all IDNs from (inclusive) to (inclusive)
+		 */
+		static TaskSet range(int from, int to) {
+			TaskSet set = new TaskSet();
+			for (int idn = from; idn <= to; idn++)
+				set.add(idn);
+			return set;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeInt(size);
+			for (int idn = first(); idn >= 0; idn = next(idn+1))
+				out.writeInt(idn);
+		}
+
+		static TaskSet read(DataInputStream in) throws IOException {
+			TaskSet set = new TaskSet();
+			int n = in.readInt();
+			for (int i = 0; i < n; i++)
+				set.add(in.readInt());
+			return set;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder b = new StringBuilder("{");
+			for (int idn = first(); idn >= 0; idn = next(idn+1))
+				b.append(b.length() > 1 ? "," : "").append(idn);
+			return b.append('}').toString();
+		}
+	}
+
+	/**
+	 * A chunk of 65536 possible members of a {@link TaskSet} that either uses a
+	 * sorted array of values or a bitmap.
+	 */
+	private static final class Chunk {
+
+		/**
+		 * Above this size a bitmap (8KB) is smaller than the array
+		 */
+		private static final int ARRAY_MAX = 4096;
+		private static final int WORDS = 1024;
+
+		char[] values; // sorted, while sparse
+		long[] bits; // when dense
+		int size;
+
+		Chunk() {
+			this.values = new char[4];
+		}
+
+		private Chunk(char[] values, long[] bits, int size) {
+			this.values = values;
+			this.bits = bits;
+			this.size = size;
+		}
+
+		Chunk copy() {
+			return new Chunk(values == null ? null : values.clone(), bits == null ? null : bits.clone(), size);
+		}
+
+		boolean contains(char v) {
+			return bits != null
+					? (bits[v >>> 6] & (1L << v)) != 0
+					: Arrays.binarySearch(values, 0, size, v) >= 0;
+		}
+
+		boolean add(char v) {
+			if (bits != null) {
+				long word = bits[v >>> 6];
+				if ((word & (1L << v)) != 0)
+					return false;
+				bits[v >>> 6] = word | (1L << v);
+				size++;
+				return true;
+			}
+			int i = Arrays.binarySearch(values, 0, size, v);
+			if (i >= 0)
+				return false;
+			if (size == ARRAY_MAX) {
+				toBitmap();
+				return add(v);
+			}
+			i = -i-1;
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			arraycopy(values, i, values, i+1, size-i);
+			values[i] = v;
+			size++;
+			return true;
+		}
+
+		boolean remove(char v) {
+			if (bits != null) {
+				long word = bits[v >>> 6];
+				if ((word & (1L << v)) == 0)
+					return false;
+				bits[v >>> 6] = word & ~(1L << v);
 				size--;
+				if (size < ARRAY_MAX / 2) // some distance to avoid flipping back and forth
+					toArray();
+				return true;
+			}
+			int i = Arrays.binarySearch(values, 0, size, v);
+			if (i < 0)
+				return false;
+			arraycopy(values, i+1, values, i, size-i-1);
+			size--;
+			return true;
+		}
+
+		int next(int from) {
+			if (bits == null) {
+				int i = Arrays.binarySearch(values, 0, size, (char) from);
+				if (i < 0)
+					i = -i-1;
+				return i < size ? values[i] : -1;
+			}
+			int w = from >>> 6;
+			long word = bits[w] & (-1L << from);
+			while (true) {
+				if (word != 0)
+					return (w << 6) + Long.numberOfTrailingZeros(word);
+				if (++w == WORDS)
+					return -1;
+				word = bits[w];
 			}
 		}
 
+		private void toBitmap() {
+			bits = new long[WORDS];
+			for (int i = 0; i < size; i++)
+				bits[values[i] >>> 6] |= 1L << values[i];
+			values = null;
+		}
+
+		private void toArray() {
+			values = new char[max(4, size)];
+			int n = 0;
+			for (int v = next(0); v >= 0; v = v < 0xFFFF ? next(v+1) : -1)
+				values[n++] = (char) v;
+			bits = null;
+		}
+
+		static Chunk and(Chunk a, Chunk b) {
+			if (a.bits != null && b.bits != null) {
+				long[] bits = new long[WORDS];
+				for (int w = 0; w < WORDS; w++)
+					bits[w] = a.bits[w] & b.bits[w];
+				return ofBits(bits);
+			}
+			Chunk small = a.bits == null ? a : b;
+			Chunk other = small == a ? b : a;
+			char[] values = new char[small.size];
+			int n = 0;
+			for (int i = 0; i < small.size; i++)
+				if (other.contains(small.values[i]))
+					values[n++] = small.values[i];
+			return new Chunk(values, null, n);
+		}
+
+		static Chunk or(Chunk a, Chunk b) {
+			if (a.bits != null || b.bits != null) {
+				Chunk dense = a.bits != null ? a : b;
+				Chunk other = dense == a ? b : a;
+				Chunk res = dense.copy();
+				for (int v = other.next(0); v >= 0; v = v < 0xFFFF ? other.next(v+1) : -1)
+					res.add((char) v);
+				return res;
+			}
+			char[] values = new char[a.size + b.size];
+			int i = 0, j = 0, n = 0;
+			while (i < a.size && j < b.size) {
+				char va = a.values[i], vb = b.values[j];
+				if (va <= vb) i++;
+				if (vb <= va) j++;
+				values[n++] = va <= vb ? va : vb;
+			}
+			while (i < a.size) values[n++] = a.values[i++];
+			while (j < b.size) values[n++] = b.values[j++];
+			Chunk res = new Chunk(values, null, n);
+			if (n > ARRAY_MAX)
+				res.toBitmap();
+			return res;
+		}
+
+		static Chunk andNot(Chunk a, Chunk b) {
+			if (a.bits != null && b.bits != null) {
+				long[] bits = new long[WORDS];
+				for (int w = 0; w < WORDS; w++)
+					bits[w] = a.bits[w] & ~b.bits[w];
+				return ofBits(bits);
+			}
+			if (a.bits != null) {
+				Chunk res = a.copy();
+				for (int i = 0; i < b.size; i++)
+					res.remove(b.values[i]);
+				return res;
+			}
+			char[] values = new char[a.size];
+			int n = 0;
+			for (int i = 0; i < a.size; i++)
+				if (!b.contains(a.values[i]))
+					values[n++] = a.values[i];
+			return new Chunk(values, null, n);
+		}
+
+		private static Chunk ofBits(long[] bits) {
+			int size = 0;
+			for (long word : bits)
+				size += Long.bitCount(word);
+			Chunk res = new Chunk(null, bits, size);
+			if (size < ARRAY_MAX / 2)
+				res.toArray();
+			return res;
+		}
 	}
 
 	private static void sort(Task[] tasks, final Property[] orders, final Date today) {
@@ -0,0 +1,156 @@
+package se.jbee.task.cache;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+
+import se.jbee.task.engine.ChangeLog;
+import se.jbee.task.engine.Transaction;
+import se.jbee.task.util.Log;
+
+/**
+ * Puts {@link ChangeLog}s back into the order of their
+ * {@link ChangeLog#sequence} before they are released to a {@link Cache}.
+ *
+ * {@link ChangeLog}s are published by {@link Transaction}s on arbitrary
+ * threads so two commits can arrive out of order. A {@link ChangeLog} that
+ * arrives before its predecessor is buffered until the gap is closed.
+ *
+ * Only commits that notify a listener are numbered in sequence, still not all
+ * of them necessarily arrive (e.g. those notifying another listener). When a
+ * gap is not closed within the timeout it is skipped: the gap handler is told
+ * the timestamp of the last {@link ChangeLog} released so it can reload
+ * whatever changed since, then the buffered {@link ChangeLog}s are released.
+ * {@link ChangeLog}s that arrive after their gap was skipped are dropped as
+ * the reload already covered them (a sequence number is only given to
+ * committed changes).
+ */
+final class ChangeSequencer implements AutoCloseable {
+
+	private static final Log LOG = Log.forClass(ChangeSequencer.class);
+
+	private final long timeoutMillis;
+	private final Function<ChangeLog, CompletableFuture<Void>> release;
+	private final LongConsumer gap;
+	private final ScheduledExecutorService timer;
+	private final TreeMap<Long, Pending> pending = new TreeMap<>();
+
+	/**
+	 * The sequence number released next
+	 */
+	private long next;
+	private long lastTimestamp;
+	private ScheduledFuture<?> timeout;
+
+	/**
+	 * @param after the sequence number of the last {@link ChangeLog} that does
+	 *        not need to be released (usually {@link ChangeLog#latestSequence()})
+	 * @param now the time the receiver is up to date with
+	 * @param release called with each {@link ChangeLog} in order of their {@link ChangeLog#sequence}
+	 * @param gap called with the timestamp of the last released
+	 *        {@link ChangeLog} when a gap is skipped
+	 */
+	ChangeSequencer(long after, long now, long timeoutMillis, Function<ChangeLog, CompletableFuture<Void>> release, LongConsumer gap) {
+		this.next = after+1;
+		this.lastTimestamp = now;
+		this.timeoutMillis = timeoutMillis;
+		this.release = release;
+		this.gap = gap;
+		this.timer = Executors.newSingleThreadScheduledExecutor(this::factory);
+	}
+
+	private Thread factory(Runnable target) {
+		Thread t = new Thread(target);
+		t.setDaemon(true);
+		t.setName("task-cache: sequencer");
+		return t;
+	}
+
+	/**
+	 * @return a {@link CompletableFuture} that completes when the given
+	 *         {@link ChangeLog} has been released and applied
+	 */
+	synchronized CompletableFuture<Void> accept(ChangeLog changes) {
+		if (changes.sequence < next) {
+			return CompletableFuture.completedFuture(null);
+		}
+		Pending p = new Pending(changes);
+		pending.put(changes.sequence, p);
+		drain();
+		return p.done;
+	}
+
+	/**
+	 * @return number of {@link ChangeLog}s waiting for a predecessor
+	 */
+	synchronized int waiting() {
+		return pending.size();
+	}
+
+	@Override
+	public void close() {
+		timer.shutdownNow();
+	}
+
+	private void drain() {
+		boolean released = false;
+		while (!pending.isEmpty() && pending.firstKey() == next) {
+			release(pending.pollFirstEntry().getValue());
+			released = true;
+		}
+		if (timeout != null && (released || pending.isEmpty())) {
+			timeout.cancel(false);
+			timeout = null;
+		}
+		if (timeout == null && !pending.isEmpty()) {
+			timeout = timer.schedule(this::expire, timeoutMillis, MILLISECONDS);
+		}
+	}
+
+	private synchronized void expire() {
+		timeout = null;
+		if (pending.isEmpty())
+			return;
+		long first = pending.firstKey();
+		LOG.warn("Change sets "+next+" to "+(first-1)+" did not arrive, reloading changes since "+lastTimestamp);
+		try {
+			gap.accept(lastTimestamp);
+		} catch (RuntimeException e) {
+			LOG.error("Failed to reload changes: "+e);
+		}
+		next = first;
+		drain();
+	}
+
+	private void release(Pending p) {
+		next = p.changes.sequence+1;
+		lastTimestamp = p.changes.timestamp;
+		try {
+			release.apply(p.changes).whenComplete((res, ex) -> {
+				if (ex != null) {
+					p.done.completeExceptionally(ex);
+				} else {
+					p.done.complete(res);
+				}
+			});
+		} catch (RuntimeException e) {
+			p.done.completeExceptionally(e);
+		}
+	}
+
+	private static final class Pending {
+
+		final ChangeLog changes;
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		Pending(ChangeLog changes) {
+			this.changes = changes;
+		}
+	}
+}
@@ -2,15 +2,19 @@ package se.jbee.task.cache;
 
 import static se.jbee.task.util.Array.indexOf;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 
 import se.jbee.task.model.Name;
 import se.jbee.task.model.Names;
 import se.jbee.task.model.Output;
 import se.jbee.task.model.Task;
+import se.jbee.task.util.Log;
 
 public final class Matches {
 
+	private static final Log LOG = Log.forClass(Matches.class);
+
 	public static Matches matches(Future<Matches> matches) {
 		try {
 			return matches.get();
@@ -20,6 +24,18 @@ public final class Matches {
 		}
 	}
 
+	/**
+	 * Like {@link #matches(Future)} but without waiting for them. A failed
+	 * lookup is logged and results in no matches that report the looked up
+	 * {@link Output}s as erroneous.
+	 */
+	public static CompletableFuture<Matches> orNone(CompletableFuture<Matches> matches, Names outputs) {
+		return matches.exceptionally((e) -> {
+			LOG.error("Lookup in "+outputs+" failed: "+e);
+			return Matches.none().inContext(Names.empty(), Names.empty(), outputs);
+		});
+	}
+
 	public static Matches none() {
 		return new Matches(new Task[0], 0);
 	}
@@ -35,20 +51,30 @@ public final class Matches {
 	 */
 	public final Names excludedOutputs;
 	public final Names erroneousOutputs;
+	/**
+	 * A description of how the matches were found (which indexes were used),
+	 * empty if unknown.
+	 */
+	public final String plan;
 
 	public Matches(Task[] matches, int totalMatches) {
-		this(matches, totalMatches, Names.empty(), Names.empty(), Names.empty());
+		this(matches, totalMatches, Names.empty(), Names.empty(), Names.empty(), "");
 	}
-	private Matches(Task[] matches, int totalMatches, Names includedOutputs, Names excludedOutputs, Names erroneousOutputs) {
+	private Matches(Task[] matches, int totalMatches, Names includedOutputs, Names excludedOutputs, Names erroneousOutputs, String plan) {
 		this.tasks = matches;
 		this.total = totalMatches;
 		this.includedOutputs = includedOutputs;
 		this.excludedOutputs = excludedOutputs;
 		this.erroneousOutputs = erroneousOutputs;
+		this.plan = plan;
 	}
 
 	public Matches inContext(Names includedOutputs, Names excludedOutputs, Names erroneousOutputs) {
-		return new Matches(tasks, total, includedOutputs, excludedOutputs, erroneousOutputs);
+		return new Matches(tasks, total, includedOutputs, excludedOutputs, erroneousOutputs, plan);
+	}
+
+	public Matches explained(String plan) {
+		return new Matches(tasks, total, includedOutputs, excludedOutputs, erroneousOutputs, plan);
 	}
 
 	public Output latestOutput() {
@@ -0,0 +1,260 @@
+package se.jbee.task.cache;
+
+import static java.lang.Math.min;
+import static java.util.Arrays.fill;
+import static se.jbee.task.util.Array.fold;
+
+import java.util.Arrays;
+
+import se.jbee.task.model.Criteria;
+import se.jbee.task.model.Criteria.Criterium;
+import se.jbee.task.model.Criteria.Operator;
+import se.jbee.task.model.Criteria.Property;
+import se.jbee.task.model.Date;
+import se.jbee.task.model.IDN;
+import se.jbee.task.model.Task;
+
+/**
+ * Orders {@link Task}s by the <code>order</code> {@link Criterium}s of some
+ * {@link Criteria}.
+ *
+ * The sort keys are extracted once per {@link Task} into a column per
+ * {@link Property}. Numbers, dates, enums and flags are stored as
+ * <code>long</code>s so comparing them does not go through
+ * {@link Comparable}. Only names and texts keep their object values.
+ *
+ * When only the first few of many {@link Task}s are needed a bounded heap is
+ * used to select them without sorting all of them. Ties are broken by the
+ * original position so that the result is the same as a stable sort.
+ */
+final class Ordering {
+
+	/**
+	 * Below this ratio of wanted to total {@link Task}s the top-k selection is
+	 * used instead of a full sort.
+	 */
+	private static final int TOP_K_RATIO = 4;
+
+	private final int[] factors;
+	private final long[][] keys;
+	private final Comparable<?>[][] values;
+
+	Ordering(Task[] tasks, Criteria criteria, Date today) {
+		int len = 0;
+		int i = criteria.indexOf(Property.order);
+		while (i >= 0) {
+			len += criteria.get(i).rvalues.length;
+			i = criteria.indexOf(Property.order, i+1);
+		}
+		this.factors = new int[len];
+		this.keys = new long[len][];
+		this.values = new Comparable<?>[len][];
+		i = criteria.indexOf(Property.order);
+		int s = 0;
+		while (i >= 0) {
+			Criterium criterium = criteria.get(i);
+			for (Object order : criterium.rvalues) {
+				factors[s] = criterium.op == Operator.asc ? 1 : -1;
+				extract(s++, (Property) order, tasks, today);
+			}
+			i = criteria.indexOf(Property.order, i+1);
+		}
+	}
+
+	private void extract(int k, Property p, Task[] tasks, Date today) {
+		long[] col = new long[tasks.length];
+		switch (p) {
+		case emphasis: for (int i = 0; i < tasks.length; i++) col[i] = tasks[i].emphasis; break;
+		case temperature: for (int i = 0; i < tasks.length; i++) col[i] = tasks[i].temperature(today); break;
+		case age: for (int i = 0; i < tasks.length; i++) col[i] = tasks[i].age(today); break;
+		case id: for (int i = 0; i < tasks.length; i++) col[i] = key(tasks[i].id); break;
+		case serial: for (int i = 0; i < tasks.length; i++) col[i] = key(tasks[i].serial); break;
+		case origin: for (int i = 0; i < tasks.length; i++) col[i] = key(tasks[i].origin); break;
+		case basis: for (int i = 0; i < tasks.length; i++) col[i] = key(tasks[i].basis); break;
+		default:
+			Comparable<?>[] vals = new Comparable<?>[tasks.length];
+			boolean primitive = true;
+			for (int i = 0; i < tasks.length; i++) {
+				Comparable<?> v = p.access(tasks[i], today);
+				vals[i] = v;
+				if (primitive) {
+					if (v == null || v instanceof Integer || v instanceof Enum || v instanceof Boolean || v instanceof Date || v instanceof IDN) {
+						col[i] = key(v);
+					} else {
+						primitive = false;
+					}
+				}
+			}
+			if (!primitive) {
+				values[k] = vals;
+				return;
+			}
+		}
+		keys[k] = col;
+	}
+
+	private static long key(Comparable<?> v) {
+		if (v == null) return Long.MIN_VALUE;
+		if (v instanceof Integer) return (Integer) v;
+		if (v instanceof Enum) return ((Enum<?>) v).ordinal();
+		if (v instanceof Boolean) return (Boolean) v ? 1L : 0L;
+		if (v instanceof Date) return ((Date) v).epochDay;
+		return ((IDN) v).num;
+	}
+
+	private static long key(IDN v) {
+		return v == null ? Long.MIN_VALUE : v.num;
+	}
+
+	/**
+	 * Compares the {@link Task}s at the two positions of the array the
+	 * {@link Ordering} was created for.
+	 */
+	int compare(int a, int b) {
+		for (int k = 0; k < factors.length; k++) {
+			int res = keys[k] != null
+					? Long.compare(keys[k][a], keys[k][b])
+					: cmp(values[k][a], values[k][b]);
+			if (res != 0)
+				return factors[k] * res;
+		}
+		return Integer.compare(a, b);
+	}
+
+	private static int cmp(Comparable<?> a, Comparable<?> b) {
+		if (a == null || b == null)
+			return a == b ? 0 : a == null ? -1 : 1;
+		return CacheWorker.cmp(a, b);
+	}
+
+	/**
+	 * @return the first (up to) <code>limit</code> of the given {@link Task}s
+	 *         in order
+	 */
+	static Task[] order(Task[] tasks, int limit, Criteria criteria, Date today) {
+		Ordering ordering = new Ordering(tasks, criteria, today);
+		int k = min(limit, tasks.length);
+		int[] order = k * TOP_K_RATIO < tasks.length
+				? ordering.top(k, tasks.length)
+				: ordering.all(tasks.length);
+		Task[] res = new Task[k];
+		for (int i = 0; i < k; i++)
+			res[i] = tasks[order[i]];
+		return res;
+	}
+
+	/**
+	 * Merges runs of {@link Task}s that each are already in order (as returned
+	 * by {@link #order(Task[], int, Criteria, Date)}) using a heap of the heads
+	 * of all runs. On a tie the {@link Task} of the earlier run comes first.
+	 *
+	 * @return the first (up to) <code>limit</code> of all {@link Task}s in
+	 *         order
+	 */
+	static Task[] merge(Task[][] runs, int limit, Criteria criteria, Date today) {
+		if (runs.length == 0)
+			return new Task[0];
+		Task[] tasks = fold(runs);
+		Ordering ordering = new Ordering(tasks, criteria, today);
+		int[] ends = new int[tasks.length];
+		int[] heap = new int[runs.length];
+		int size = 0;
+		int s = 0;
+		for (Task[] run : runs) {
+			if (run.length > 0) {
+				fill(ends, s, s+run.length, s+run.length);
+				heap[size] = s;
+				ordering.up(heap, size++, -1);
+			}
+			s += run.length;
+		}
+		Task[] res = new Task[min(limit, tasks.length)];
+		for (int i = 0; i < res.length; i++) {
+			int head = heap[0];
+			res[i] = tasks[head];
+			if (head+1 < ends[head]) {
+				heap[0] = head+1;
+			} else {
+				heap[0] = heap[--size];
+			}
+			ordering.down(heap, 0, size, -1);
+		}
+		return res;
+	}
+
+	private int[] all(int n) {
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> compare(a, b));
+		int[] res = new int[n];
+		for (int i = 0; i < n; i++)
+			res[i] = order[i];
+		return res;
+	}
+
+	/**
+	 * Keeps the k smallest positions seen so far in a max-heap: each further
+	 * {@link Task} either is dropped by a single comparison with the root or
+	 * replaces it.
+	 */
+	private int[] top(int k, int n) {
+		int[] heap = new int[k];
+		if (k == 0)
+			return heap;
+		for (int i = 0; i < k; i++) {
+			heap[i] = i;
+			up(heap, i, 1);
+		}
+		for (int i = k; i < n; i++) {
+			if (compare(i, heap[0]) < 0) {
+				heap[0] = i;
+				down(heap, 0, k, 1);
+			}
+		}
+		for (int size = k-1; size > 0; size--) {
+			int max = heap[0];
+			heap[0] = heap[size];
+			heap[size] = max;
+			down(heap, 0, size, 1);
+		}
+		return heap;
+	}
+
+	/**
+	 * @param sign 1 for a max-heap, -1 for a min-heap
+	 */
+	private void up(int[] heap, int i, int sign) {
+		while (i > 0) {
+			int parent = (i-1) / 2;
+			if (sign * compare(heap[i], heap[parent]) <= 0)
+				return;
+			swap(heap, i, parent);
+			i = parent;
+		}
+	}
+
+	/**
+	 * @param sign 1 for a max-heap, -1 for a min-heap
+	 */
+	private void down(int[] heap, int i, int size, int sign) {
+		while (true) {
+			int top = i;
+			int l = 2*i+1, r = l+1;
+			if (l < size && sign * compare(heap[l], heap[top]) > 0)
+				top = l;
+			if (r < size && sign * compare(heap[r], heap[top]) > 0)
+				top = r;
+			if (top == i)
+				return;
+			swap(heap, i, top);
+			i = top;
+		}
+	}
+
+	private static void swap(int[] heap, int a, int b) {
+		int tmp = heap[a];
+		heap[a] = heap[b];
+		heap[b] = tmp;
+	}
+}
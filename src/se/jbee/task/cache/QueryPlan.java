@@ -0,0 +1,162 @@
+package se.jbee.task.cache;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Supplier;
+
+import se.jbee.task.cache.CacheWorker.TaskSet;
+import se.jbee.task.model.Criteria;
+import se.jbee.task.model.Criteria.Criterium;
+import se.jbee.task.model.Task;
+
+/**
+ * A {@link QueryPlan} describes how a {@link CacheWorker} narrows down the
+ * candidate {@link Task}s for {@link Criteria} using its indexes before any
+ * {@link Task} is looked at.
+ *
+ * Each indexable {@link Criterium} becomes a {@link Step} that yields a
+ * {@link TaskSet}. The including steps are intersected in order of their
+ * estimated size (smallest first), then the excluding steps are subtracted.
+ * Only the {@link Criterium}s that are not answered exactly by an index remain
+ * to be checked on each candidate {@link Task}.
+ *
+ * If there is no including step the plan falls back to a scan of all
+ * {@link Task}s.
+ */
+final class QueryPlan {
+
+	static final class Step {
+
+		final Criterium criterium;
+		/**
+		 * true, if the set is subtracted (neq/nin), false if it is intersected
+		 */
+		final boolean excluding;
+		/**
+		 * true, if the index answers the {@link Criterium} exactly so it does
+		 * not need to be checked on the {@link Task}s again
+		 */
+		final boolean exact;
+		/**
+		 * The estimated number of {@link Task}s in the set
+		 */
+		final int estimate;
+		private final Supplier<TaskSet> set;
+		int result = -1;
+
+		Step(Criterium criterium, boolean excluding, boolean exact, int estimate, Supplier<TaskSet> set) {
+			this.criterium = criterium;
+			this.excluding = excluding;
+			this.exact = exact;
+			this.estimate = estimate;
+			this.set = set;
+		}
+
+		@Override
+		public String toString() {
+			return (excluding ? "-" : "")+criterium+"~"+estimate+(result >= 0 ? "=>"+result : "")+(exact ? "" : "?");
+		}
+	}
+
+	/**
+	 * Order to apply steps: smallest estimate first, on a tie the more
+	 * selective property first.
+	 */
+	private static final Comparator<Step> BY_ESTIMATE = (a, b) -> {
+		int res = Integer.compare(a.estimate, b.estimate);
+		return res != 0 ? res : Integer.compare(b.criterium.left.selectivity, a.criterium.left.selectivity);
+	};
+
+	private final List<Step> including = new ArrayList<>();
+	private final List<Step> excluding = new ArrayList<>();
+	private final List<Criterium> residual = new ArrayList<>();
+	private final List<Criterium> unindexed = new ArrayList<>();
+	private final int total;
+	private int candidates = -1;
+
+	QueryPlan(int total) {
+		this.total = total;
+	}
+
+	void add(Step step) {
+		(step.excluding ? excluding : including).add(step);
+	}
+
+	void add(Criterium unindexed) {
+		this.unindexed.add(unindexed);
+	}
+
+	boolean isScan() {
+		return including.isEmpty();
+	}
+
+	/**
+	 * @return the set of candidates or null, if no index can be used and all
+	 *         {@link Task}s have to be checked
+	 */
+	TaskSet candidates() {
+		residual.clear();
+		residual.addAll(unindexed);
+		if (isScan()) {
+			for (Step s : excluding)
+				residual.add(s.criterium);
+			return null;
+		}
+		including.sort(BY_ESTIMATE);
+		excluding.sort(BY_ESTIMATE);
+		TaskSet res = null;
+		for (Step s : including) {
+			if (res != null && res.isEmpty()) {
+				break;
+			}
+			TaskSet set = s.set.get();
+			res = res == null ? set : res.and(set);
+			s.result = res.size();
+			if (!s.exact)
+				residual.add(s.criterium);
+		}
+		for (Step s : excluding) {
+			if (!res.isEmpty())
+				res = res.andNot(s.set.get());
+			s.result = res.size();
+			if (!s.exact)
+				residual.add(s.criterium);
+		}
+		candidates = res.size();
+		return res;
+	}
+
+	/**
+	 * @return the {@link Criteria} that still need to be checked for each of
+	 *         the {@link #candidates()}
+	 */
+	Criteria residual() {
+		return new Criteria(residual.toArray(new Criterium[0]));
+	}
+
+	/**
+	 * @return a human readable description of the plan and the set sizes
+	 *         after each step, available after {@link #candidates()}
+	 */
+	String explain() {
+		StringBuilder b = new StringBuilder();
+		if (isScan()) {
+			b.append("scan ").append(total);
+		} else {
+			for (Step s : including)
+				b.append(b.length() == 0 ? "" : " & ").append(s);
+			for (Step s : excluding)
+				b.append(" & ").append(s);
+			b.append(" => ").append(candidates);
+		}
+		if (!residual.isEmpty())
+			b.append(" filter ").append(residual().toString());
+		return b.toString();
+	}
+
+	@Override
+	public String toString() {
+		return explain();
+	}
+}
@@ -0,0 +1,145 @@
+package se.jbee.task.cache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import se.jbee.task.model.Criteria;
+import se.jbee.task.model.Name;
+import se.jbee.task.model.Names;
+import se.jbee.task.model.Output;
+import se.jbee.task.util.Metrics;
+import se.jbee.task.util.Metrics.Counter;
+
+/**
+ * The complete {@link Matches} of recent lookups of a {@link CacheCluster}
+ * so that the same bound {@link Criteria} (e.g. of a page viewed by many
+ * users) are only looked up once until one of the involved {@link Output}s
+ * changes.
+ *
+ * Each result remembers the {@link CacheWorker#generation()} of each
+ * involved {@link Output} it was looked up with and is only used while the
+ * workers are still at that generation. In addition all results of an
+ * {@link Output} are dropped as soon as a change to it arrives.
+ *
+ * The cost of a result is the number of {@link Matches#tasks} it holds (plus
+ * one). When the total cost exceeds the limit the least recently used results
+ * are dropped.
+ */
+final class ResultCache {
+
+	private static final Counter HITS = Metrics.counter("cache_results_total", "Lookups answered by the result cache", "result", "hit");
+	private static final Counter MISSES = Metrics.counter("cache_results_total", "Lookups answered by the result cache", "result", "miss");
+
+	private static final class Result {
+
+		final Names outputs;
+		final long[] generations;
+		final Matches matches;
+		final int cost;
+
+		Result(Names outputs, long[] generations, Matches matches) {
+			this.outputs = outputs;
+			this.generations = generations;
+			this.matches = matches;
+			this.cost = matches.tasks.length + 1;
+		}
+	}
+
+	private final long maxCost;
+	private final LinkedHashMap<String, Result> results = new LinkedHashMap<>(64, 0.75f, true);
+	private final Map<Name, Set<String>> byOutput = new HashMap<>();
+	private long cost;
+
+	ResultCache(long maxCost) {
+		this.maxCost = maxCost;
+		Metrics.gauge("cache_results_cost", "Total cost of the cached results", this::cost);
+		Metrics.gauge("cache_results", "Number of cached results", this::size);
+	}
+
+	synchronized long cost() {
+		return cost;
+	}
+
+	synchronized long size() {
+		return results.size();
+	}
+
+	static String key(Names outputs, Criteria criteria) {
+		return outputs+" "+criteria;
+	}
+
+	/**
+	 * @return the cached {@link Matches} or null if there are none for the
+	 *         given generations of the {@link Output}s
+	 */
+	synchronized Matches get(String key, long[] generations) {
+		Result res = results.get(key);
+		if (res == null || !Arrays.equals(res.generations, generations)) {
+			MISSES.inc();
+			return null;
+		}
+		HITS.inc();
+		return res.matches;
+	}
+
+	synchronized void put(String key, Names outputs, long[] generations, Matches matches) {
+		Result res = new Result(outputs, generations, matches);
+		if (res.cost > maxCost / 8)
+			return; // too large to be worth it
+		remove(key);
+		results.put(key, res);
+		cost += res.cost;
+		for (Name output : outputs)
+			byOutput.computeIfAbsent(output, (k) -> new HashSet<>()).add(key);
+		Iterator<Map.Entry<String, Result>> eldest = results.entrySet().iterator();
+		while (cost > maxCost && eldest.hasNext()) {
+			Map.Entry<String, Result> e = eldest.next();
+			eldest.remove();
+			removed(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Drops all results the given {@link Output} contributed to.
+	 */
+	synchronized void invalidate(Name output) {
+		Set<String> keys = byOutput.remove(output);
+		if (keys != null)
+			for (String key : keys)
+				remove(key);
+	}
+
+	synchronized void clear() {
+		results.clear();
+		byOutput.clear();
+		cost = 0L;
+	}
+
+	void close() {
+		Metrics.remove("cache_results_cost");
+		Metrics.remove("cache_results");
+	}
+
+	private void remove(String key) {
+		removed(key, results.remove(key));
+	}
+
+	private void removed(String key, Result res) {
+		if (res == null)
+			return;
+		cost -= res.cost;
+		for (Name output : res.outputs) {
+			Set<String> keys = byOutput.get(output);
+			if (keys != null) {
+				keys.remove(key);
+				if (keys.isEmpty())
+					byOutput.remove(output);
+			}
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package se.jbee.task.cache;
+
+import java.util.function.LongConsumer;
+
+import se.jbee.task.model.Criteria.Operator;
+import se.jbee.task.model.Criteria.Property;
+import se.jbee.task.model.Task;
+import se.jbee.task.model.URL;
+
+/**
+ * The trigrams of the texts of a {@link Task} (gist, conclusion and the
+ * {@link URL}s attached) used as keys of the text index of the
+ * {@link CacheWorker}.
+ *
+ * A trigram are three consecutive characters. Each text is enclosed in a
+ * {@link #START} and {@link #END} mark so that the trigrams of a prefix or
+ * suffix are only found at the beginning or end of a text. The
+ * {@link Property} the text belongs to is part of the key so that a gist does
+ * not match for a conclusion or the other way around.
+ *
+ * A text contains a term if it contains all of the term's trigrams. This is
+ * necessary but not sufficient so that candidates found this way still have
+ * to be checked.
+ */
+final class Trigrams {
+
+	private static final char START = '\u0002';
+	private static final char END = '\u0003';
+
+	private Trigrams() {
+		throw new UnsupportedOperationException("util");
+	}
+
+	static void of(Task t, LongConsumer f) {
+		of(Property.gist, t.gist, f);
+		of(Property.conclusion, t.conclusion, f);
+		if (t.attachments != null)
+			for (URL url : t.attachments)
+				of(Property.url, url, f);
+	}
+
+	static void of(Property field, CharSequence text, LongConsumer f) {
+		if (text == null)
+			return;
+		keys(field, text, true, true, f);
+	}
+
+	/**
+	 * @return the trigrams a text must contain to match the given term with
+	 *         the given {@link Operator} or null if the term is too short to
+	 *         narrow down the texts
+	 */
+	static long[] of(Property field, Operator op, CharSequence term) {
+		boolean start = op == Operator.eq || op == Operator.gt;
+		boolean end = op == Operator.eq || op == Operator.lt;
+		int n = term.length() + (start ? 1 : 0) + (end ? 1 : 0) - 2;
+		if (n <= 0)
+			return null;
+		long[] res = new long[n];
+		int[] i = { 0 };
+		keys(field, term, start, end, (key) -> res[i[0]++] = key);
+		return res;
+	}
+
+	private static void keys(Property field, CharSequence text, boolean start, boolean end, LongConsumer f) {
+		int len = text.length();
+		int from = start ? -1 : 0;
+		int to = end ? len : len - 1;
+		for (int i = from; i + 2 <= to; i++)
+			f.accept(key(field, charAt(text, i), charAt(text, i+1), charAt(text, i+2)));
+	}
+
+	private static char charAt(CharSequence text, int i) {
+		return i < 0 ? START : i >= text.length() ? END : text.charAt(i);
+	}
+
+	private static long key(Property field, char a, char b, char c) {
+		return (long) field.ordinal() << 48 | (long) a << 32 | (long) b << 16 | c;
+	}
+}
@@ -1,7 +1,9 @@
 package se.jbee.task.db;
 
 import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.function.BiPredicate;
+import java.util.function.Predicate;
 
 import se.jbee.task.model.ID;
 
@@ -23,9 +25,43 @@ public interface DB extends AutoCloseable {
 	 */
 	Write write();
 
+	/**
+	 * @param touched the {@link ID}s of all entities the write will read or
+	 *        change (their history and {@link Index} entries are implied)
+	 * @return a new write transaction opened that only touches the given
+	 *         entities and the events written for them, by default the same as
+	 *         {@link #write()}
+	 */
+	default Write write(Collection<ID> touched) {
+		return write();
+	}
+
 	@Override
 	public void close();
 
+	/**
+	 * @return true, if this {@link DB} maintains the {@link Index}es
+	 */
+	boolean isIndexed();
+
+	/**
+	 * Persistent secondary indexes that map a key (like a user name) to the
+	 * {@link ID}s of all entities having it. They are only kept by
+	 * {@link #isIndexed()} {@link DB}s.
+	 */
+	enum Index {
+		reporter(ID.Type.Task), watcher(ID.Type.Task), area(ID.Type.Task), version(ID.Type.Task);
+
+		/**
+		 * The type of the {@link ID}s indexed
+		 */
+		public final ID.Type type;
+
+		private Index(ID.Type type) {
+			this.type = type;
+		}
+	}
+
 	/**
 	 * A read-only transaction
 	 */
@@ -42,6 +78,30 @@ public interface DB extends AutoCloseable {
 
 		void range(ID first, BiPredicate<ID, ByteBuffer> consumer);
 
+		/**
+		 * Iterates the entries of the given type whose keys start with the
+		 * given prefix in order of their keys. The iteration ends with the first
+		 * key that does not start with the prefix without its value being
+		 * looked at.
+		 *
+		 * The key is handed out as a slice that is reused by further steps of
+		 * the iteration. Both key and value must not be used after the call of
+		 * the consumer returned.
+		 *
+		 * @param prefix as created by {@link ID#prefix(ID.Type, se.jbee.task.model.Name...)}
+		 * @param consumer called with key and value, returns false to stop
+		 */
+		void range(ID.Type type, byte[] prefix, BiPredicate<ByteBuffer, ByteBuffer> consumer);
+
+		/**
+		 * Iterates the {@link ID}s indexed for the given key in order.
+		 *
+		 * @param consumer called with each {@link ID}, returns false to stop
+		 * @throws UnsupportedOperationException in case the {@link DB} is not
+		 *         {@link DB#isIndexed()}
+		 */
+		void indexed(Index index, byte[] key, Predicate<ID> consumer);
+
 	}
 
 	/**
@@ -53,6 +113,17 @@ public interface DB extends AutoCloseable {
 
 		void delete(ID key);
 
+		/**
+		 * Adds the {@link ID} to those of the key. Does nothing if it already
+		 * is indexed for the key.
+		 */
+		void index(Index index, byte[] key, ID id);
+
+		/**
+		 * Removes the {@link ID} from those of the key.
+		 */
+		void unindex(Index index, byte[] key, ID id);
+
 		void commit();
 
 	}
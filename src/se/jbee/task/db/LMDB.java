@@ -1,10 +1,20 @@
 package se.jbee.task.db;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
 import java.io.File;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiPredicate;
+import java.util.function.Predicate;
 
+import org.lmdbjava.Cursor;
 import org.lmdbjava.CursorIterator;
 import org.lmdbjava.CursorIterator.IteratorType;
 import org.lmdbjava.CursorIterator.KeyVal;
@@ -12,62 +22,227 @@ import org.lmdbjava.Dbi;
 import org.lmdbjava.DbiFlags;
 import org.lmdbjava.Env;
 import org.lmdbjava.Env.Builder;
+import org.lmdbjava.EnvFlags;
+import org.lmdbjava.GetOp;
+import org.lmdbjava.SeekOp;
+import org.lmdbjava.Txn;
 
 import se.jbee.task.model.ID;
-
-import org.lmdbjava.Txn;
+import se.jbee.task.util.Log;
+import se.jbee.task.util.Metrics;
+import se.jbee.task.util.Metrics.Counter;
 
 /**
  * A wrapper around the java LMDB library to decouple all code from the library.
  *
  * A {@link LMDB} instance usually is constructed on application startup and
  * used by multiple threads to create {@link Read} or {@link Write} transactions.
+ *
+ * Read transactions are pooled: when a {@link Read} is closed its {@link Txn}
+ * is reset and kept to be renewed by the next {@link #read()}. The
+ * environment is opened with {@link EnvFlags#MDB_NOTLS} so that a reset
+ * {@link Txn} can be renewed by any thread. At most the configured number of
+ * readers can be open at the same time, further {@link #read()}s wait for one
+ * to be closed. Waits longer than {@link #READ_WAIT_WARN_MILLIS} are logged,
+ * after {@link #READ_TIMEOUT_MILLIS} the {@link #read()} fails. Key buffers are
+ * allocated once per thread.
+ *
+ * An indexed {@link LMDB} keeps each {@link Index} in a collection of its own
+ * that allows duplicate keys (sorted values), the values being the
+ * {@link ID}s. When opened without indexes existing {@link Index}es are
+ * dropped as they would not follow the writes.
  */
 public final class LMDB implements DB {
 
+	/**
+	 * The default of the LMDB library
+	 */
+	public static final int DEFAULT_MAX_READERS = 126;
+
+	static final long READ_WAIT_WARN_MILLIS = 1000L;
+	static final long READ_TIMEOUT_MILLIS = 30000L;
+
+	private static final Log LOG = Log.forClass(LMDB.class);
+
+	private static final Counter READS = Metrics.counter("lmdb_read_txns_total", "Read transactions started");
+	private static final Counter READ_WAITS = Metrics.counter("lmdb_read_waits_total", "Read transactions that had to wait for a free reader");
+	private static final Counter WRITES = Metrics.counter("lmdb_write_txns_total", "Write transactions started");
+	private static final LongAdder OPEN_READS = new LongAdder();
+
+	static {
+		Metrics.gauge("lmdb_read_txns_open", "Read transactions currently open", OPEN_READS::sum);
+	}
+
 	private volatile Env<ByteBuffer> env;
 	private final AtomicReferenceArray<Dbi<ByteBuffer>> collections = new AtomicReferenceArray<>(ID.Type.values().length);
+	private final AtomicReferenceArray<Dbi<ByteBuffer>> indexes;
+	private final Semaphore readers;
+	private final ConcurrentLinkedDeque<Txn<ByteBuffer>> idleReaders = new ConcurrentLinkedDeque<>();
+	private final ThreadLocal<ByteBuffer> keys;
+	/**
+	 * There is only one {@link Write} at a time
+	 */
+	private final ByteBuffer writeValue;
 
 	public LMDB(Builder<ByteBuffer> envBuilder, File path) {
-		this.env = envBuilder.setMaxDbs(10).open(path);
+		this(envBuilder, path, DEFAULT_MAX_READERS);
+	}
+
+	/**
+	 * @param maxReaders the maximum number of {@link Read}s open at the same
+	 *        time, usually the number of threads that read (replaces the
+	 *        setting of the {@link Builder})
+	 */
+	public LMDB(Builder<ByteBuffer> envBuilder, File path, int maxReaders) {
+		this(envBuilder, path, maxReaders, false);
+	}
+
+	/**
+	 * @param indexed when true the {@link Index}es are opened (and created)
+	 */
+	public LMDB(Builder<ByteBuffer> envBuilder, File path, int maxReaders, boolean indexed) {
+		this.env = envBuilder.setMaxDbs(16).setMaxReaders(maxReaders).open(path, EnvFlags.MDB_NOTLS);
+		this.readers = new Semaphore(maxReaders);
+		this.keys = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(env.getMaxKeySize()));
+		this.writeValue = ByteBuffer.allocateDirect(env.getMaxKeySize());
 		for (ID.Type t : ID.Type.values()) {
 			collections.set(t.ordinal(), env.openDbi(t.name(), DbiFlags.MDB_CREATE));
 		}
+		this.indexes = indexed ? new AtomicReferenceArray<>(Index.values().length) : null;
+		if (indexed) {
+			for (Index i : Index.values()) {
+				indexes.set(i.ordinal(), env.openDbi("index:"+i.name(), DbiFlags.MDB_CREATE, DbiFlags.MDB_DUPSORT));
+			}
+		} else {
+			dropIndexes();
+		}
+	}
+
+	/**
+	 * Writes without {@link Index}es leave them outdated. Dropping them makes
+	 * sure they are build again when the {@link LMDB} is opened indexed next.
+	 */
+	private void dropIndexes() {
+		List<byte[]> names = env.getDbiNames();
+		List<Dbi<ByteBuffer>> outdated = new ArrayList<>();
+		for (Index i : Index.values()) {
+			String name = "index:"+i.name();
+			if (contains(names, name))
+				outdated.add(env.openDbi(name, DbiFlags.MDB_DUPSORT));
+		}
+		if (outdated.isEmpty())
+			return;
+		LOG.info("Dropping outdated indexes");
+		try (Txn<ByteBuffer> txn = env.txnWrite()) {
+			for (Dbi<ByteBuffer> index : outdated)
+				index.drop(txn, true);
+			txn.commit();
+		}
+	}
+
+	private static boolean contains(List<byte[]> names, String name) {
+		byte[] expected = name.getBytes();
+		for (byte[] n : names)
+			if (Arrays.equals(n, expected))
+				return true;
+		return false;
+	}
+
+	@Override
+	public boolean isIndexed() {
+		return indexes != null;
 	}
 
 	@Override
 	public void close() {
+		Txn<ByteBuffer> txn = idleReaders.poll();
+		while (txn != null) {
+			txn.close();
+			txn = idleReaders.poll();
+		}
 		for (int i = 0; i < collections.length(); i++)
 			collections.get(i).close();
+		for (int i = 0; indexes != null && i < indexes.length(); i++)
+			indexes.get(i).close();
 		env.close();
 	}
 
 	@Override
 	public Read read() {
-		return new LMDBRead(env);
+		READS.inc();
+		if (!readers.tryAcquire()) {
+			READ_WAITS.inc();
+			awaitReader();
+		}
+		try {
+			Txn<ByteBuffer> txn = idleReaders.pollFirst();
+			if (txn == null) {
+				txn = env.txnRead();
+			} else {
+				txn.renew();
+			}
+			OPEN_READS.increment();
+			return new LMDBRead(txn);
+		} catch (RuntimeException e) {
+			readers.release();
+			throw e;
+		}
+	}
+
+	private void awaitReader() {
+		try {
+			if (readers.tryAcquire(READ_WAIT_WARN_MILLIS, MILLISECONDS))
+				return;
+			LOG.warn("Waiting for a free reader, "+OPEN_READS.sum()+" reads are open");
+			if (readers.tryAcquire(READ_TIMEOUT_MILLIS - READ_WAIT_WARN_MILLIS, MILLISECONDS))
+				return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for a free reader", e);
+		}
+		throw new IllegalStateException("No free reader within "+READ_TIMEOUT_MILLIS+"ms");
 	}
 
 	@Override
 	public Write write() {
+		WRITES.inc();
 		return new LMDBWrite(env);
 	}
 
+	/**
+	 * Returns a {@link Txn} of a closed {@link Read} to the pool.
+	 */
+	void release(Txn<ByteBuffer> txn) {
+		try {
+			txn.reset();
+			idleReaders.push(txn);
+		} catch (RuntimeException e) {
+			txn.close();
+		} finally {
+			OPEN_READS.decrement();
+			readers.release();
+		}
+	}
+
 	Dbi<ByteBuffer> collection(ID.Type type) {
 		return collections.get(type.ordinal());
 	}
 
+	Dbi<ByteBuffer> indexCollection(Index index) {
+		if (indexes == null)
+			throw new UnsupportedOperationException("DB is not indexed");
+		return indexes.get(index.ordinal());
+	}
+
 	private class LMDBRead implements Read {
 
 		final Txn<ByteBuffer> txn;
 		final ByteBuffer key;
-
-		public LMDBRead(Env<ByteBuffer> env) {
-			this(env.txnRead());
-		}
+		private boolean closed;
 
 		LMDBRead(Txn<ByteBuffer> txn) {
 			this.txn = txn;
-			this.key = ByteBuffer.allocateDirect(env.getMaxKeySize());
+			this.key = keys.get();
 		}
 
 		@Override
@@ -89,6 +264,40 @@ public final class LMDB implements DB {
 			}
 		}
 
+		@Override
+		public void range(ID.Type type, byte[] prefix, BiPredicate<ByteBuffer, ByteBuffer> consumer) {
+			Dbi<ByteBuffer> collection = collection(type);
+			key.clear();
+			key.put(prefix).flip();
+			try (CursorIterator<ByteBuffer> it = prefix.length == 0
+					? collection.iterate(txn)
+					: collection.iterate(txn, key, IteratorType.FORWARD)) {
+				while (it.hasNext()) {
+					KeyVal<ByteBuffer> e = it.next();
+					if (!startsWith(e.key(), prefix) || !consumer.test(e.key(), e.val()))
+						return;
+				}
+			}
+		}
+
+		@Override
+		public void indexed(Index index, byte[] key, Predicate<ID> consumer) {
+			Dbi<ByteBuffer> dbi = indexCollection(index);
+			this.key.clear();
+			this.key.put(key).flip();
+			try (Cursor<ByteBuffer> c = dbi.openCursor(txn)) {
+				boolean found = c.get(this.key, GetOp.MDB_SET);
+				while (found) {
+					ByteBuffer val = c.val();
+					byte[] id = new byte[val.remaining()];
+					val.get(id);
+					if (!consumer.test(ID.fromBytes(index.type, id)))
+						return;
+					found = c.seek(SeekOp.MDB_NEXT_DUP);
+				}
+			}
+		}
+
 		private CursorIterator<ByteBuffer> iterator(ID first) {
 			Dbi<ByteBuffer> collection = collection(first.type);
 			key.clear();
@@ -99,8 +308,22 @@ public final class LMDB implements DB {
 		}
 
 		@Override
-		public final void close() {
-			txn.close();
+		public void close() {
+			if (!closed) {
+				closed = true;
+				release(txn);
+			}
+		}
+
+		private boolean startsWith(ByteBuffer key, byte[] prefix) {
+			if (key.remaining() < prefix.length)
+				return false;
+			int pos = key.position();
+			for (int i = 0; i < prefix.length; i++) {
+				if (key.get(pos+i) != prefix[i])
+					return false;
+			}
+			return true;
 		}
 
 		final void setKey(ID id) {
@@ -111,6 +334,8 @@ public final class LMDB implements DB {
 
 	private final class LMDBWrite extends LMDBRead implements Write {
 
+		private final ByteBuffer val = writeValue;
+
 		public LMDBWrite(Env<ByteBuffer> env) {
 			super(env.txnWrite());
 		}
@@ -127,11 +352,35 @@ public final class LMDB implements DB {
 			collection(id.type).delete(txn, key);
 		}
 
+		@Override
+		public void index(Index index, byte[] key, ID id) {
+			setKeyAndValue(key, id);
+			indexCollection(index).put(txn, this.key, val);
+		}
+
+		@Override
+		public void unindex(Index index, byte[] key, ID id) {
+			setKeyAndValue(key, id);
+			indexCollection(index).delete(txn, this.key, val);
+		}
+
+		private void setKeyAndValue(byte[] key, ID id) {
+			this.key.clear();
+			this.key.put(key).flip();
+			val.clear();
+			val.put(id.readonlyBytes()).flip();
+		}
+
 		@Override
 		public void commit() {
 			txn.commit();
 		}
 
+		@Override
+		public void close() {
+			txn.close();
+		}
+
 	}
 
 }
@@ -0,0 +1,528 @@
+package se.jbee.task.db;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import org.lmdbjava.Env.Builder;
+
+import se.jbee.task.model.ID;
+import se.jbee.task.model.Output;
+
+/**
+ * A {@link DB} that keeps the data of each {@link Output} in a {@link LMDB}
+ * environment (shard) of its own so that writes to one {@link Output} do not
+ * wait for the writer of another.
+ *
+ * {@link ID.Type#Output}s, {@link ID.Type#Task}s, {@link ID.Type#Area}s,
+ * {@link ID.Type#Version}s and {@link ID.Type#poll}s as well as their history
+ * and {@link Index} entries are stored in the shard of their {@link Output}.
+ * Users and pages are stored in a global environment. An event is stored in
+ * the shard of the single {@link Output} whose entities were written before it
+ * (since the previous event) and in the global environment otherwise. Shards
+ * are created on first write in the <code>outputs</code> directory of the DB
+ * path.
+ *
+ * A {@link Write} opened by {@link #write(Collection)} holds the writer of
+ * each shard it touches from the start, in the order of their keys, and the
+ * writer of the global environment from its first use on. Such {@link Write}s
+ * run in parallel as long as they touch different shards, touching any other
+ * shard is an error. A {@link Write} opened by {@link #write()} may touch
+ * everything and waits for all other {@link Write}s, like the writer of a
+ * single {@link LMDB} environment.
+ *
+ * On {@link Write#commit()} the global environment is committed (and its
+ * writer released) before the shards unless it got an event which must only
+ * become visible after the entities it refers to. Within each environment the
+ * commit is atomic, so a {@link Write} of a single {@link Output} commits the
+ * {@link Output}'s entities, their history and its event at once and the
+ * acting user just before. The commit is not atomic across environments.
+ * Reads of a {@link Write} see its own changes in the environments it holds.
+ *
+ * Range scans of the sharded types that are not limited to one {@link Output}
+ * visit the shards in the order of their keys ({@link Output}s in the order of
+ * their names), scans of events merge all environments in key order, scans of
+ * history stay within the environment of their first key.
+ */
+public final class ShardedDB implements DB {
+
+	/**
+	 * Shards in the order of their keys which start with the {@link Output}
+	 * name followed by <code>:</code>
+	 */
+	private static final Comparator<String> KEY_ORDER = Comparator.comparing((String output) -> output+":");
+	private static final Comparator<byte[]> BYTE_ORDER = ShardedDB::compare;
+
+	private static final byte DIVIDER = ':';
+	/**
+	 * Number of events read from each environment at a time when merging them
+	 */
+	private static final int EVENT_BATCH = 64;
+
+	private final Supplier<Builder<ByteBuffer>> envBuilder;
+	private final File shardsPath;
+	private final int maxReaders;
+	private final boolean indexed;
+	private final LMDB global;
+	private final NavigableMap<String, LMDB> shards = new ConcurrentSkipListMap<>(KEY_ORDER);
+	/**
+	 * Shared by the {@link Write}s that declared what they touch, exclusive
+	 * for those that did not.
+	 */
+	private final ReadWriteLock writers = new ReentrantReadWriteLock(true);
+
+	/**
+	 * @param envBuilder creates a {@link Builder} for each environment opened
+	 * @param maxReaders per environment, see {@link LMDB#LMDB(Builder, File, int)}
+	 */
+	public ShardedDB(Supplier<Builder<ByteBuffer>> envBuilder, File path, int maxReaders, boolean indexed) {
+		this.envBuilder = envBuilder;
+		this.maxReaders = maxReaders;
+		this.indexed = indexed;
+		this.global = new LMDB(envBuilder.get(), path, maxReaders, indexed);
+		this.shardsPath = new File(path, "outputs");
+		File[] dirs = shardsPath.listFiles(File::isDirectory);
+		if (dirs != null) {
+			for (File dir : dirs)
+				shards.put(dir.getName(), new LMDB(envBuilder.get(), dir, maxReaders, indexed));
+		}
+	}
+
+	@Override
+	public boolean isIndexed() {
+		return indexed;
+	}
+
+	@Override
+	public Read read() {
+		return new ShardedRead();
+	}
+
+	@Override
+	public Write write() {
+		Lock lock = writers.writeLock();
+		lock.lock();
+		return new ShardedWrite(lock, true);
+	}
+
+	@Override
+	public Write write(Collection<ID> touched) {
+		TreeSet<String> outputs = new TreeSet<>(KEY_ORDER);
+		for (ID id : touched) {
+			String output = output(id);
+			if (output != null)
+				outputs.add(output);
+		}
+		Lock lock = writers.readLock();
+		lock.lock();
+		ShardedWrite tx = new ShardedWrite(lock, false);
+		try {
+			for (String output : outputs)
+				tx.writer(shard(output));
+		} catch (RuntimeException e) {
+			tx.close();
+			throw e;
+		}
+		return tx;
+	}
+
+	@Override
+	public void close() {
+		for (LMDB shard : shards.values())
+			shard.close();
+		global.close();
+	}
+
+	/**
+	 * @return number of {@link Output} environments
+	 */
+	public int shards() {
+		return shards.size();
+	}
+
+	private LMDB shard(String output) {
+		LMDB shard = shards.get(output);
+		if (shard != null)
+			return shard;
+		synchronized (shards) {
+			shard = shards.get(output);
+			if (shard == null) {
+				File dir = new File(shardsPath, output);
+				if (!dir.exists() && !dir.mkdirs())
+					throw new IllegalStateException("Failed to create shard directory: "+dir);
+				shard = new LMDB(envBuilder.get(), dir, maxReaders, indexed);
+				shards.put(output, shard);
+			}
+			return shard;
+		}
+	}
+
+	private static boolean isSharded(ID.Type type) {
+		switch (type) {
+		case Output:
+		case Task:
+		case Area:
+		case Version:
+		case poll: return true;
+		default: return false;
+		}
+	}
+
+	/**
+	 * @return the name of the {@link Output} whose shard stores the given
+	 *         {@link ID} or null if it is stored in the global environment
+	 *         (events are not bound to an environment by their {@link ID})
+	 */
+	static String output(ID id) {
+		if (id.type == ID.Type.history)
+			return output(id.entity());
+		return isSharded(id.type) ? output(id.type, id.readonlyBytes()) : null;
+	}
+
+	/**
+	 * @param key a key or a key prefix of the given type
+	 * @return the {@link Output} name in the key or null if it does not
+	 *         contain a complete name
+	 */
+	static String output(ID.Type type, byte[] key) {
+		String output = segment(key, type == ID.Type.Task ? 0 : 2);
+		if (output == null && type == ID.Type.Output && key.length > 2)
+			return new String(key, 2, key.length - 2, US_ASCII); // the name is all that follows the type
+		return output;
+	}
+
+	private static String segment(byte[] key, int start) {
+		for (int i = start; i < key.length; i++) {
+			if (key[i] == DIVIDER)
+				return i == start ? null : new String(key, start, i - start, US_ASCII);
+		}
+		return null;
+	}
+
+	private static int compare(byte[] a, byte[] b) {
+		int len = Math.min(a.length, b.length);
+		for (int i = 0; i < len; i++) {
+			int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (diff != 0)
+				return diff;
+		}
+		return a.length - b.length;
+	}
+
+	private static byte[] bytes(ByteBuffer buf) {
+		byte[] bytes = new byte[buf.remaining()];
+		buf.duplicate().get(bytes);
+		return bytes;
+	}
+
+	private class ShardedRead implements Read {
+
+		private final Map<LMDB, Read> reads = new IdentityHashMap<>(4);
+
+		Read reader(LMDB db) {
+			return reads.computeIfAbsent(db, LMDB::read);
+		}
+
+		final LMDB db(ID id) {
+			String output = output(id);
+			return output == null ? global : shards.get(output);
+		}
+
+		/**
+		 * @return the environment that stores the given event or null
+		 */
+		final LMDB eventDB(ID event) {
+			if (reader(global).get(event) != null)
+				return global;
+			for (LMDB shard : shards.values())
+				if (reader(shard).get(event) != null)
+					return shard;
+			return null;
+		}
+
+		@Override
+		public ByteBuffer get(ID key) {
+			LMDB db = key.type == ID.Type.event ? eventDB(key) : db(key);
+			return db == null ? null : reader(db).get(key);
+		}
+
+		@Override
+		public void range(ID first, BiPredicate<ID, ByteBuffer> consumer) {
+			if (first.type == ID.Type.event) {
+				events(first, consumer);
+				return;
+			}
+			if (!isSharded(first.type)) {
+				LMDB db = db(first);
+				if (db != null)
+					reader(db).range(first, consumer);
+				return;
+			}
+			String output = output(first);
+			boolean[] stopped = { false };
+			BiPredicate<ID, ByteBuffer> tracked = (k, v) -> !(stopped[0] = !consumer.test(k, v));
+			for (Entry<String, LMDB> shard : shards(first.type, output).entrySet()) {
+				if (shard.getKey().equals(output)) {
+					reader(shard.getValue()).range(first, tracked);
+				} else {
+					reader(shard.getValue()).range(first.type, new byte[0], (k, v) -> tracked.test(ID.fromBytes(first.type, bytes(k)), v));
+				}
+				if (stopped[0])
+					return;
+			}
+		}
+
+		@Override
+		public void range(ID.Type type, byte[] prefix, BiPredicate<ByteBuffer, ByteBuffer> consumer) {
+			if (type == ID.Type.event) {
+				events(null, (k, v) -> consumer.test(ByteBuffer.wrap(k.readonlyBytes()).asReadOnlyBuffer(), v));
+				return;
+			}
+			if (!isSharded(type)) {
+				reader(global).range(type, prefix, consumer);
+				return;
+			}
+			String output = output(type, prefix);
+			if (output != null) {
+				LMDB shard = shards.get(output);
+				if (shard != null)
+					reader(shard).range(type, prefix, consumer);
+				return;
+			}
+			boolean[] stopped = { false };
+			for (LMDB shard : shards(type, null).values()) {
+				reader(shard).range(type, prefix, (k, v) -> !(stopped[0] = !consumer.test(k, v)));
+				if (stopped[0])
+					return;
+			}
+		}
+
+		/**
+		 * @return the shards a scan of the given type visits starting with
+		 *         the given output (all if null) in the order of the keys
+		 */
+		private NavigableMap<String, LMDB> shards(ID.Type type, String output) {
+			NavigableMap<String, LMDB> ordered = type == ID.Type.Output ? new TreeMap<>(shards) : shards;
+			return output == null ? ordered : ordered.tailMap(output, true);
+		}
+
+		/**
+		 * Merges the events of all environments in the order of their keys.
+		 * Each environment is read {@link ShardedDB#EVENT_BATCH} events at a
+		 * time, those up to the smallest last key of a full batch are passed
+		 * on before reading on after it.
+		 *
+		 * @param first null to start with the first event
+		 */
+		private void events(ID first, BiPredicate<ID, ByteBuffer> consumer) {
+			if (shards.isEmpty()) {
+				if (first == null) {
+					reader(global).range(ID.Type.event, new byte[0], (k, v) -> consumer.test(ID.fromBytes(ID.Type.event, bytes(k)), v));
+				} else {
+					reader(global).range(first, consumer);
+				}
+				return;
+			}
+			List<LMDB> dbs = new ArrayList<>(shards.values());
+			dbs.add(global);
+			byte[] after = null;
+			while (true) {
+				TreeMap<byte[], byte[]> batch = new TreeMap<>(BYTE_ORDER);
+				byte[] until = null;
+				for (LMDB db : dbs) {
+					byte[] skip = after;
+					byte[][] last = { null };
+					int[] n = { 0 };
+					BiPredicate<ID, ByteBuffer> collect = (k, v) -> {
+						byte[] key = k.readonlyBytes();
+						if (skip != null && compare(key, skip) <= 0)
+							return true;
+						batch.put(key, bytes(v));
+						last[0] = key;
+						return ++n[0] < EVENT_BATCH;
+					};
+					if (after != null) {
+						reader(db).range(ID.fromBytes(ID.Type.event, after), collect);
+					} else if (first != null) {
+						reader(db).range(first, collect);
+					} else {
+						reader(db).range(ID.Type.event, new byte[0], (k, v) -> collect.test(ID.fromBytes(ID.Type.event, bytes(k)), v));
+					}
+					if (n[0] == EVENT_BATCH && (until == null || compare(last[0], until) < 0))
+						until = last[0];
+				}
+				for (Entry<byte[], byte[]> e : (until == null ? batch : batch.headMap(until, true)).entrySet()) {
+					if (!consumer.test(ID.fromBytes(ID.Type.event, e.getKey()), ByteBuffer.wrap(e.getValue()).asReadOnlyBuffer()))
+						return;
+				}
+				if (until == null)
+					return;
+				after = until;
+			}
+		}
+
+		@Override
+		public void indexed(Index index, byte[] key, Predicate<ID> consumer) {
+			if (index == Index.area || index == Index.version) {
+				// keys start with the output
+				String output = segment(key, 0);
+				LMDB shard = output == null ? null : shards.get(output);
+				if (shard != null)
+					reader(shard).indexed(index, key, consumer);
+				return;
+			}
+			boolean[] stopped = { false };
+			Predicate<ID> tracked = (id) -> !(stopped[0] = !consumer.test(id));
+			reader(global).indexed(index, key, tracked);
+			for (LMDB shard : shards.values()) {
+				if (stopped[0])
+					return;
+				reader(shard).indexed(index, key, tracked);
+			}
+		}
+
+		@Override
+		public void close() {
+			for (Read r : reads.values())
+				r.close();
+			reads.clear();
+		}
+	}
+
+	private final class ShardedWrite extends ShardedRead implements Write {
+
+		private final Lock lock;
+		/**
+		 * When true no other {@link Write} is open so that any environment
+		 * can be written, otherwise only the global one and the shards locked
+		 * on opening.
+		 */
+		private final boolean exclusive;
+		/**
+		 * The writes of the environments held in the order they were locked
+		 */
+		private final Map<LMDB, Write> writes = new LinkedHashMap<>();
+		/**
+		 * Names of the {@link Output}s written to since the last event
+		 */
+		private final Set<String> outputs = new HashSet<>();
+		private boolean globalEvent;
+		private boolean locked = true;
+
+		ShardedWrite(Lock lock, boolean exclusive) {
+			this.lock = lock;
+			this.exclusive = exclusive;
+		}
+
+		@Override
+		Read reader(LMDB db) {
+			Write w = writes.get(db);
+			return w != null ? w : super.reader(db);
+		}
+
+		@Override
+		public ByteBuffer get(ID key) {
+			if (!exclusive && key.type != ID.Type.event && output(key) == null)
+				return writer(global).get(key); // so it does not change before it is written
+			return super.get(key);
+		}
+
+		@Override
+		public void put(ID key, ByteBuffer value) {
+			writer(key).put(key, value);
+		}
+
+		@Override
+		public void delete(ID key) {
+			writer(key).delete(key);
+		}
+
+		@Override
+		public void index(Index index, byte[] key, ID id) {
+			writer(id).index(index, key, id);
+		}
+
+		@Override
+		public void unindex(Index index, byte[] key, ID id) {
+			writer(id).unindex(index, key, id);
+		}
+
+		Write writer(LMDB db) {
+			return writes.computeIfAbsent(db, LMDB::write);
+		}
+
+		private Write writer(ID key) {
+			if (key.type != ID.Type.event) {
+				String output = output(key);
+				if (output == null)
+					return writer(global);
+				outputs.add(output);
+				LMDB db = exclusive ? shard(output) : shards.get(output);
+				if (!exclusive && !writes.containsKey(db))
+					throw new IllegalStateException("Write did not declare to touch output: "+output);
+				return writer(db);
+			}
+			if (exclusive) {
+				LMDB db = eventDB(key);
+				if (db != null)
+					return writer(db);
+			}
+			String output = outputs.size() == 1 ? outputs.iterator().next() : null;
+			outputs.clear();
+			if (output == null) {
+				globalEvent = true;
+				return writer(global);
+			}
+			return writer(shard(output));
+		}
+
+		@Override
+		public void commit() {
+			super.close(); // no more reading
+			Write g = writes.get(global);
+			if (g != null && !globalEvent) {
+				g.commit();
+				writes.remove(global).close(); // others can write the global environment while the shards are committed
+			}
+			for (Entry<LMDB, Write> e : writes.entrySet())
+				if (e.getKey() != global)
+					e.getValue().commit();
+			if (g != null && globalEvent)
+				g.commit();
+		}
+
+		@Override
+		public void close() {
+			super.close();
+			for (Write w : writes.values())
+				w.close();
+			writes.clear();
+			if (locked) {
+				locked = false;
+				lock.unlock();
+			}
+		}
+	}
+
+}
@@ -1,10 +1,14 @@
 package se.jbee.task.engine;
 
 import static se.jbee.task.model.Attachments.attachments;
+import static java.nio.charset.StandardCharsets.UTF_16BE;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static se.jbee.task.model.Gist.fromBytes;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.EnumMap;
+import java.util.List;
 import java.util.Map.Entry;
 
 import se.jbee.task.engine.Change.Tx;
@@ -79,7 +83,7 @@ public interface Bincoder<I,O> {
 	 * are identified and updated correctly.
 	 */
 	byte USER_EVN = 1;
-	byte TASK_EVN = 1;
+	byte TASK_EVN = 2;
 	byte POLL_EVN = 1;
 	byte AREA_EVN = 1;
 	byte VERSION_EVN = 1;
@@ -151,11 +155,127 @@ public interface Bincoder<I,O> {
 		return to;
 	};
 
+	/**
+	 * Decodes {@link Task} records of any EVN.
+	 */
 	Bincoder<Repository, Task> bin2task = (tx,from) -> {
+		byte evn = from.get(from.position());
+		switch (evn) {
+		case 1: return Bincoder.bin2taskEVN1.convert(tx, from);
+		case 2: return Bincoder.bin2taskEVN2.convert(tx, from);
+		default: throw new IllegalStateException("Unknown task record version: "+evn);
+		}
+	};
+
+	Bincoder<Task,ByteBuffer> task2bin = (t,to) -> Bincoder.task2binEVN2.convert(t, to);
+
+	/**
+	 * The EVN 2 {@link Task} record: numbers are varints, all names except
+	 * the output are written once to a dictionary at the start of the record
+	 * and referred to by their index (as reporter often also is watcher,
+	 * participant and solver) and texts are UTF-8 instead of UTF-16.
+	 *
+	 * Numbers that can be undefined are stored incremented by one so that 0
+	 * means undefined (-1 in EVN 1). References to the dictionary are index
+	 * plus one, 0 is no name.
+	 */
+	Bincoder<Task,ByteBuffer> task2binEVN2 = (t,to) -> {
+		to.put((byte) 2);
+		varint2bin(t.version(), to);
+		name2bin(t.output.name, to);
+		List<Name> dict = new ArrayList<>();
+		int area = ref(t.area.name, dict);
+		int reporter = ref(t.reporter, dict);
+		int[] baseVersions = refs(t.baseVersions, dict);
+		int base = ref(t.base.name, dict);
+		int[] aspirants = refs(t.aspirants, dict);
+		int[] participants = refs(t.participants, dict);
+		int[] watchers = refs(t.watchers, dict);
+		int solver = ref(t.solver, dict);
+		varint2bin(dict.size(), to);
+		for (Name n : dict)
+			name2bin(n, to);
+		varint2bin(area, to);
+		varint2bin(t.id == null ? 0 : t.id.num+1, to);
+		varint2bin(t.serial == null ? 0 : t.serial.num+1, to);
+		varint2bin(reporter, to);
+		varint2bin(t.reported == null ? 0 : t.reported.epochDay+1, to);
+		text2bin(t.gist, to);
+		enum2bin(t.cause, to);
+		enum2bin(t.goal, to);
+		enum2bin(t.status, to);
+		refs2bin(baseVersions, to);
+		to.put((byte) ((t.exploitable ? 1 : 0) | (t.disclosed ? 2 : 0) | (t.archived ? 4 : 0)));
+		varint2bin(t.basis == null ? 0 : t.basis.num+1, to);
+		varint2bin(t.origin == null ? 0 : t.origin.num+1, to);
+		varint2bin(t.emphasis, to);
+		varint2bin(base, to);
+		refs2bin(aspirants, to);
+		refs2bin(participants, to);
+		refs2bin(watchers, to);
+		varint2bin(solver, to);
+		varint2bin(t.resolved == null ? 0 : t.resolved.epochDay+1, to);
+		text2bin(t.conclusion, to);
+		varint2bin(t.attachments.length(), to);
+		for (URL url : t.attachments) {
+			byte[] bytes = url == null ? null : url.readonlyBytes();
+			varint2bin(bytes == null ? 0 : bytes.length+1, to);
+			if (bytes != null)
+				to.put(bytes);
+		}
+		return to;
+	};
+
+	Bincoder<Repository, Task> bin2taskEVN2 = (tx,from) -> {
+		from.get(); // EVN
+		Task t = new Task(bin2varint(from));
+		Name output = bin2name(from);
+		Name[] dict = new Name[bin2varint(from)];
+		for (int i = 0; i < dict.length; i++)
+			dict[i] = bin2name(from);
+		Name area = bin2ref(dict, from);
+		t.id = bin2IDN1(from);
+		t.serial = bin2IDN1(from);
+		t.reporter = bin2ref(dict, from);
+		t.reported = bin2date1(from);
+		t.gist = bin2text(from);
+		t.cause = bin2enum(causes, from);
+		t.goal = bin2enum(goals, from);
+		t.status = bin2enum(status, from);
+		t.baseVersions = bin2refs(dict, from);
+		int flags = from.get();
+		t.exploitable = (flags & 1) != 0;
+		t.disclosed = (flags & 2) != 0;
+		t.archived = (flags & 4) != 0;
+		t.basis = bin2IDN1(from);
+		t.origin = bin2IDN1(from);
+		t.emphasis = bin2varint(from);
+		Name base = bin2ref(dict, from);
+		t.aspirants = bin2refs(dict, from);
+		t.participants = bin2refs(dict, from);
+		t.watchers = bin2refs(dict, from);
+		t.solver = bin2ref(dict, from);
+		t.resolved = bin2date1(from);
+		t.conclusion = bin2text(from);
+		URL[] urls = new URL[bin2varint(from)];
+		for (int i = 0; i < urls.length; i++)
+			urls[i] = URL.fromBytes(getNBytes(bin2varint(from)-1, from));
+		t.attachments = attachments(urls);
+		// loading may reuse the buffer that is decoded so it has to be done last
+		t.output = tx.output(output);
+		t.area = tx.area(output, area);
+		t.base = tx.version(output, base);
+		return t;
+	};
+
+	/**
+	 * The previous {@link Task} record format, still read by {@link #bin2task}.
+	 */
+	Bincoder<Repository, Task> bin2taskEVN1 = (tx,from) -> {
 		evn1(from.get()); // just check
 		Task t = new Task(from.getInt());
-		t.output = tx.output(bin2name(from));
-		t.area = tx.area(t.output.name, bin2name(from));
+		Name output = bin2name(from);
+		Name area = bin2name(from);
 		t.id = bin2IDN(from);
 		t.serial = bin2IDN(from);
 		t.reporter = bin2name(from);
@@ -171,7 +291,7 @@ public interface Bincoder<I,O> {
 		t.basis = bin2IDN(from);
 		t.origin = bin2IDN(from);
 		t.emphasis = from.getInt();
-		t.base = tx.version(t.output.name, bin2name(from));
+		Name base = bin2name(from);
 		t.aspirants = bin2names(from);
 		t.participants = bin2names(from);
 		t.watchers = bin2names(from);
@@ -179,11 +299,14 @@ public interface Bincoder<I,O> {
 		t.resolved = bin2date(from);
 		t.conclusion = bin2gist(from);
 		t.attachments =  bin2urls(from);
+		t.output = tx.output(output);
+		t.area = tx.area(output, area);
+		t.base = tx.version(output, base);
 		return t;
 	};
 
-	Bincoder<Task,ByteBuffer> task2bin = (t,to) -> {
-		to.put(TASK_EVN);
+	Bincoder<Task,ByteBuffer> task2binEVN1 = (t,to) -> {
+		to.put((byte) 1);
 		to.putInt(t.version());
 		name2bin(t.output.name, to);
 		name2bin(t.area.name, to);
@@ -384,6 +507,20 @@ public interface Bincoder<I,O> {
 	 * Utility helpers
 	 */
 
+	/**
+	 * Reads the version of an entity record without decoding it. All entity
+	 * records start with the EVN followed by the version. How the version is
+	 * written depends on the type and its EVN: it is a varint in EVN 2
+	 * {@link Task} records and an int otherwise.
+	 */
+	static int bin2version(ID.Type type, ByteBuffer record) {
+		ByteBuffer from = record.duplicate();
+		byte evn = from.get();
+		if (type == ID.Type.Task && evn == 2)
+			return bin2varint(from);
+		return from.getInt();
+	}
+
 	static ID bin2id(ByteBuffer from) {
 		return ID.fromBytes(getByteBytes(from));
 	}
@@ -416,6 +553,116 @@ public interface Bincoder<I,O> {
 		}
 	}
 
+	static int ref(Name n, List<Name> dict) {
+		if (n == null)
+			return 0;
+		for (int i = 0; i < dict.size(); i++)
+			if (dict.get(i).equalTo(n))
+				return i+1;
+		dict.add(n);
+		return dict.size();
+	}
+
+	static int[] refs(Names names, List<Name> dict) {
+		int[] refs = new int[names.count()];
+		int i = 0;
+		for (Name n : names)
+			refs[i++] = ref(n, dict);
+		return refs;
+	}
+
+	static void refs2bin(int[] refs, ByteBuffer to) {
+		varint2bin(refs.length, to);
+		for (int ref : refs)
+			varint2bin(ref, to);
+	}
+
+	static Name bin2ref(Name[] dict, ByteBuffer from) {
+		int ref = bin2varint(from);
+		return ref == 0 ? null : dict[ref-1];
+	}
+
+	static Names bin2refs(Name[] dict, ByteBuffer from) {
+		Name[] names = new Name[bin2varint(from)];
+		for (int i = 0; i < names.length; i++)
+			names[i] = bin2ref(dict, from);
+		return new Names(names);
+	}
+
+	/**
+	 * Writes an int as unsigned LEB128 varint: 7 bits per byte, the high bit
+	 * set when more bytes follow. Small positive numbers take a single byte,
+	 * negative numbers take 5.
+	 */
+	static void varint2bin(int value, ByteBuffer to) {
+		while ((value & ~0x7F) != 0) {
+			to.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		to.put((byte) value);
+	}
+
+	static int bin2varint(ByteBuffer from) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = from.get();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return value;
+	}
+
+	static IDN bin2IDN1(ByteBuffer from) {
+		int num = bin2varint(from)-1;
+		return num < 0 ? null : IDN.idn(num);
+	}
+
+	static Date bin2date1(ByteBuffer from) {
+		int epochDay = bin2varint(from)-1;
+		return epochDay < 0 ? null : new Date(epochDay);
+	}
+
+	static void text2bin(Gist g, ByteBuffer to) {
+		byte[] utf8 = utf16to8(g == null ? new byte[0] : g.readonlyBytes());
+		varint2bin(utf8.length, to);
+		to.put(utf8);
+	}
+
+	static Gist bin2text(ByteBuffer from) {
+		return fromBytes(utf8to16(getNBytes(bin2varint(from), from)));
+	}
+
+	/**
+	 * Converts UTF-16BE to UTF-8. ASCII text (the common case) is converted
+	 * by dropping the high bytes without going through a {@link String}.
+	 */
+	static byte[] utf16to8(byte[] utf16) {
+		for (int i = 0; i < utf16.length; i += 2) {
+			if (utf16[i] != 0 || utf16[i+1] < 0)
+				return new String(utf16, UTF_16BE).getBytes(UTF_8);
+		}
+		byte[] ascii = new byte[utf16.length / 2];
+		for (int i = 0; i < ascii.length; i++)
+			ascii[i] = utf16[2*i+1];
+		return ascii;
+	}
+
+	/**
+	 * Converts UTF-8 to UTF-16BE, ASCII without going through a {@link String}.
+	 */
+	static byte[] utf8to16(byte[] utf8) {
+		for (byte b : utf8) {
+			if (b < 0)
+				return new String(utf8, UTF_8).getBytes(UTF_16BE);
+		}
+		byte[] utf16 = new byte[utf8.length * 2];
+		for (int i = 0; i < utf8.length; i++)
+			utf16[2*i+1] = utf8[i];
+		return utf16;
+	}
+
 	static <E extends Enum<E>> void enum2bin(E value, ByteBuffer to) {
 		if (value == null) {
 			to.put((byte)-1);
@@ -427,7 +674,10 @@ public interface Bincoder<I,O> {
 	}
 
 	static <E extends Enum<E>> E bin2enum(E[] constants, ByteBuffer from) {
-		byte code = from.get();
+		return code2enum(constants, from.get());
+	}
+
+	static <E extends Enum<E>> E code2enum(E[] constants, byte code) {
 		if (code < 0)
 			return null;
 		// the extra check for range above 65 allows to introduce @UseCode later on
@@ -11,7 +11,7 @@ import se.jbee.task.model.ID.Type;
 
 public final class ChangeLog implements Iterable<ChangeLog.Entry<?>>{
 
-	public static final ChangeLog EMPTY = new ChangeLog(0, -1, new Entry[0]);
+	public static final ChangeLog EMPTY = new ChangeLog(0, -1, -1, new Entry[0]);
 
 	/**
 	 * Each {@link ChangeLog} change-set get a incrementing serial attached.
@@ -20,6 +20,12 @@ public final class ChangeLog implements Iterable<ChangeLog.Entry<?>>{
 	 * if necessary as they can identify (and wait) missing sets.
 	 */
 	private static final AtomicLong SERIAL = new AtomicLong();
+	/**
+	 * Like the {@link #SERIAL} but only counting the change-sets that are
+	 * published to a listener so that a listener can tell a missing change-set
+	 * from one that was never published.
+	 */
+	private static final AtomicLong SEQUENCE = new AtomicLong();
 
 	public static final class Entry<T extends Entity<T>> {
 
@@ -60,18 +66,39 @@ public final class ChangeLog implements Iterable<ChangeLog.Entry<?>>{
 	 * (speaking order not time).
 	 */
 	public final long serial;
+	/**
+	 * The number of a published change-set among all published ones, -1 for
+	 * change-sets not published to a listener. Like the {@link #serial} a
+	 * direct successor happened directly after that one.
+	 */
+	public final long sequence;
 
 	public static ChangeLog changes(long timestamp, Entry<?>[] log) {
-		return log.length == 0 ? EMPTY : new ChangeLog(timestamp, SERIAL.incrementAndGet(), log);
+		return changes(timestamp, log, true);
+	}
+
+	/**
+	 * @param published true, if the change-set will be published to a
+	 *        listener and therefore gets the next {@link #sequence} number
+	 */
+	public static ChangeLog changes(long timestamp, Entry<?>[] log, boolean published) {
+		if (log.length == 0)
+			return EMPTY;
+		return new ChangeLog(timestamp, SERIAL.incrementAndGet(), published ? SEQUENCE.incrementAndGet() : -1L, log);
 	}
 
 	public static long latestSerial() {
 		return SERIAL.get();
 	}
 
-	private ChangeLog(long timestamp, long serial, Entry<?>[] entries) {
+	public static long latestSequence() {
+		return SEQUENCE.get();
+	}
+
+	private ChangeLog(long timestamp, long serial, long sequence, Entry<?>[] entries) {
 		this.timestamp = timestamp;
 		this.serial = serial;
+		this.sequence = sequence;
 		this.entries = entries;
 	}
 
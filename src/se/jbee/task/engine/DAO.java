@@ -23,6 +23,7 @@ import java.util.List;
 import java.util.function.Predicate;
 
 import se.jbee.task.db.DB;
+import se.jbee.task.db.DB.Index;
 import se.jbee.task.db.DB.Read;
 import se.jbee.task.model.Area;
 import se.jbee.task.model.Entity;
@@ -44,9 +45,18 @@ public class DAO implements Repository {
 	protected final HashMap<ID, Entity<?>> loaded = new HashMap<>();
 
 	private final DB.Read txr;
+	private final EntityCache shared;
 
 	public DAO(Read txr) {
+		this(txr, null);
+	}
+
+	/**
+	 * @param shared the {@link EntityCache} of the {@link DB} or null
+	 */
+	public DAO(Read txr, EntityCache shared) {
 		this.txr = txr;
+		this.shared = shared;
 	}
 
 	@Override
@@ -59,7 +69,13 @@ public class DAO implements Repository {
 		Object res = transactionObject(id);
 		if (res != null)
 			return (T) res;
-		T e = loadObject(id, decoder);
+		boolean isShared = shared != null && isShared(id);
+		T e = isShared ? (T) shared.get(id) : null;
+		if (e == null) {
+			e = loadObject(id, decoder);
+			if (isShared)
+				shared.put(e);
+		}
 		loaded.put(id, e);
 		return e;
 	}
@@ -79,6 +95,24 @@ public class DAO implements Repository {
 		return loaded.get(id);
 	}
 
+	/**
+	 * Override this to not share entities that are changed in place.
+	 *
+	 * @return true, if the entity can be taken from or put in the
+	 *         {@link EntityCache}
+	 */
+	protected boolean isShared(ID id) {
+		return EntityCache.isCached(id.type);
+	}
+
+	/**
+	 * @return false, if {@link #transactionObject(ID)} returns null for any
+	 *         {@link ID} so that range scans do not need to create them
+	 */
+	protected boolean hasTransactionObjects() {
+		return !loaded.isEmpty();
+	}
+
 	@Override
 	public Page page(Name output, Name user, Name page) {
 		return load(pageId(output, user, page), bin2page);
@@ -122,53 +156,92 @@ public class DAO implements Repository {
 	@Override
 	public History history(ID entity) throws UnknownEntity {
 		ID id = ID.historyId(entity);
-		return Bincoder.bin2history.convert(id, read(id));
+		long compacted = HistoryCompactor.compacted(txr);
+		if (compacted == Long.MAX_VALUE)
+			return Bincoder.bin2history.convert(id, read(id));
+		// add the events not yet compacted
+		ByteBuffer record = txr.get(id);
+		long[] events = record == null ? null : Bincoder.bin2history.convert(id, record).events;
+		for (Event e : HistoryCompactor.events(txr, this, compacted, Long.MAX_VALUE, Integer.MAX_VALUE)) {
+			for (Event.Transition t : e) {
+				if (t.entity.equalTo(entity)) {
+					events = History.append(events, e.timestamp);
+					break;
+				}
+			}
+		}
+		if (events == null)
+			throw new Repository.UnknownEntity(id);
+		return new History(id, events);
 	}
 
+	/**
+	 * The buffer returned by {@link Read#get(ID)} is reused by the next get of
+	 * the same transaction. Decoders load referenced entities while they
+	 * decode so the record is copied into a buffer of its own.
+	 */
 	private ByteBuffer read(ID id) throws UnknownEntity {
 		ByteBuffer buf = txr.get(id);
 		if (buf == null)
 			throw new Repository.UnknownEntity(id);
-		return buf;
+		ByteBuffer owned = ByteBuffer.allocate(buf.remaining()).order(buf.order());
+		owned.put(buf.duplicate()).flip();
+		return owned;
 	}
 
 	@Override
 	public void tasks(Name output, Predicate<Task> consumer) {
-		range(bin2task, ID.taskId(output, IDN.ZERO),
-				(t) -> t.output.name.equalTo(output) && consumer.test(t));
+		txr.range(ID.Type.Task, ID.prefix(ID.Type.Task, output), (k,v) -> {
+			if (hasTransactionObjects()) {
+				Object et = transactionObject(id(ID.Type.Task, k));
+				if (et != null)
+					return consumer.test((Task) et);
+			}
+			return consumer.test(bin2task.convert(this, v));
+		});
+	}
+
+	@Override
+	public void tasks(Index index, Name output, Name value, Predicate<Task> consumer) {
+		txr.indexed(index, Indexes.key(index, output, value), (id) -> consumer.test(load(id, bin2task)));
 	}
 
 	@Override
 	public Output[] outputs() {
-		return range(bin2output, new Output[0], ID.outputId(as("0")),
-				(p) -> true);
+		return range(bin2output, new Output[0], ID.Type.Output);
 	}
 
 	@Override
 	public Page[] pages(Name output, Name menu) {
-		return range(bin2page, new Page[0], ID.pageId(output, menu, as("0")),
-				(s) -> s.menu.equalTo(menu));
+		return range(bin2page, new Page[0], ID.Type.Page, output, menu);
 	}
 
 	@Override
 	public Poll[] polls(Name output, Name area) {
-		return range(bin2poll, new Poll[0], ID.pollId(output, area, IDN.ZERO),
-				(p) -> p.area.name.equalTo(area));
+		return range(bin2poll, new Poll[0], ID.Type.poll, output, area);
 	}
 
 	private <T> void range(Bincoder<Repository, T> decoder, ID start, Predicate<T> filter) {
 		txr.range(start, (k,v) -> filter.test(transactionObjectOrDecode(decoder, k, v)));
 	}
 
-	private <T> T[] range(Bincoder<Repository, T> decoder, T[] empty, ID start, Predicate<T> filter) {
+	private <T> T[] range(Bincoder<Repository, T> decoder, T[] empty, ID.Type type, Name... prefix) {
 		List<T> res = new ArrayList<>();
-		txr.range(start, (k,v) -> {
-			T e = transactionObjectOrDecode(decoder, k, v);
-			return filter.test(e) && res.add(e);
+		txr.range(type, ID.prefix(type, prefix), (k,v) -> {
+			Object et = hasTransactionObjects() ? transactionObject(id(type, k)) : null;
+			@SuppressWarnings("unchecked")
+			T e = et != null ? (T) et : decoder.convert(this, v);
+			return res.add(e);
 		});
 		return res.toArray(empty);
 	}
 
+	private static ID id(ID.Type type, ByteBuffer key) {
+		byte[] bytes = new byte[key.remaining()];
+		key.duplicate().get(bytes);
+		return ID.fromBytes(type, bytes);
+	}
+
 	@SuppressWarnings("unchecked")
 	private <T> T transactionObjectOrDecode(Bincoder<Repository, T> decoder, ID k, ByteBuffer v) {
 		Object et = transactionObject(k);
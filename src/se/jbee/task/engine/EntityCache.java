@@ -0,0 +1,147 @@
+package se.jbee.task.engine;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import se.jbee.task.db.DB;
+import se.jbee.task.model.Area;
+import se.jbee.task.model.Entity;
+import se.jbee.task.model.ID;
+import se.jbee.task.model.Output;
+import se.jbee.task.model.Task;
+import se.jbee.task.model.User;
+import se.jbee.task.model.Version;
+import se.jbee.task.util.Metrics;
+import se.jbee.task.util.Metrics.Counter;
+
+/**
+ * A size bounded cache of decoded {@link Output}s, {@link Area}s,
+ * {@link Version}s and {@link User}s shared by all {@link DAO}s of a
+ * {@link DB}.
+ *
+ * These entities are referenced by most {@link Task}s and loaded by most
+ * {@link Transaction}s. Instead of decoding them for each {@link DAO} again
+ * the instances are shared. This relies on them not being changed once they
+ * are decoded: {@link Tracker} clones them before any change. {@link User}s
+ * are the exception, they are changed in place and therefore never taken
+ * from the cache by a {@link Transaction}.
+ *
+ * When a {@link Transaction} writes its changes the changed entities are
+ * invalidated and their new version is remembered. An entity is only cached
+ * when it is at least of that version so that a {@link DAO} that still reads
+ * an older snapshot of the {@link DB} cannot put back an outdated entity.
+ *
+ * When full some entries are dropped; no particular order is kept.
+ */
+public final class EntityCache {
+
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	private static final Counter HITS = Metrics.counter("entity_cache_requests_total", "Loads of shared entities", "result", "hit");
+	private static final Counter MISSES = Metrics.counter("entity_cache_requests_total", "Loads of shared entities", "result", "miss");
+
+	/**
+	 * The {@link EntityCache}s by {@link DB} - there is at most one cache per DB.
+	 */
+	private static final Map<DB, EntityCache> caches = new ConcurrentHashMap<>();
+
+	/**
+	 * Starts caching entities of the given {@link DB}.
+	 */
+	public static EntityCache open(DB db, int capacity) {
+		return caches.computeIfAbsent(db, (key) -> new EntityCache(capacity));
+	}
+
+	/**
+	 * @return the cache of the given {@link DB} or null if it does not have
+	 *         one
+	 */
+	public static EntityCache of(DB db) {
+		return caches.get(db);
+	}
+
+	/**
+	 * Stops caching entities of the given {@link DB}. This should be called
+	 * before the {@link DB} is closed.
+	 */
+	public static void close(DB db) {
+		caches.remove(db);
+	}
+
+	private final int capacity;
+	private final Map<ID, Entity<?>> entities = new ConcurrentHashMap<>();
+	/**
+	 * The version of each entity changed since the cache exists
+	 */
+	private final Map<ID, Integer> versions = new ConcurrentHashMap<>();
+
+	EntityCache(int capacity) {
+		this.capacity = capacity;
+	}
+
+	static boolean isCached(ID.Type type) {
+		switch (type) {
+		case Output:
+		case Area:
+		case Version:
+		case User: return true;
+		default: return false;
+		}
+	}
+
+	public int size() {
+		return entities.size();
+	}
+
+	/**
+	 * @return the cached entity or null
+	 */
+	Entity<?> get(ID id) {
+		Entity<?> res = entities.get(id);
+		if (res == null) {
+			MISSES.inc();
+		} else {
+			HITS.inc();
+		}
+		return res;
+	}
+
+	void put(Entity<?> e) {
+		ID id = e.uniqueID();
+		Integer version = versions.get(id);
+		if (version != null && e.version() < version)
+			return; // decoded from an older snapshot
+		entities.merge(id, e, (cached, decoded) -> decoded.version() > cached.version() ? decoded : cached);
+		version = versions.get(id);
+		if (version != null && e.version() < version) // changed meanwhile
+			entities.remove(id, e);
+		if (entities.size() > capacity)
+			evict();
+	}
+
+	/**
+	 * Removes the entities changed by a {@link Transaction}. This is done
+	 * before the changes are committed: a {@link DAO} reading the
+	 * {@link DB} before the commit decodes the old version which is not
+	 * cached any more.
+	 */
+	void invalidate(ChangeLog.Entry<?>[] changes) {
+		for (ChangeLog.Entry<?> e : changes) {
+			if (isCached(e.type())) {
+				ID id = e.after.uniqueID();
+				versions.merge(id, e.after.version(), Math::max);
+				entities.remove(id);
+			}
+		}
+	}
+
+	private void evict() {
+		int n = entities.size() - capacity * 3 / 4;
+		Iterator<ID> ids = entities.keySet().iterator();
+		while (n-- > 0 && ids.hasNext()) {
+			ids.next();
+			ids.remove();
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package se.jbee.task.engine;
+
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import se.jbee.task.db.DB;
+import se.jbee.task.db.DB.Write;
+import se.jbee.task.model.ID;
+import se.jbee.task.util.Log;
+import se.jbee.task.util.Metrics;
+import se.jbee.task.util.Metrics.Counter;
+
+/**
+ * A single writer thread that commits {@link Transaction}s in batches.
+ *
+ * Callers {@link #submit(Transaction)} a {@link Transaction} that has its
+ * {@link Change} already applied. The writer drains the queue of such
+ * prepared transactions, writes all of them within the same {@link DB.Write}
+ * and commits once. Each caller's {@link CompletableFuture} is then completed
+ * with its own {@link ChangeLog} (in order of submission).
+ *
+ * The batch size and linger are those of the {@link Server} that submitted the
+ * first {@link Transaction} of a batch as servers with different settings
+ * might share the same {@link DB} and with it the writer.
+ *
+ * Optimistic {@link Transaction}s are validated one by one within the shared
+ * write so that a {@link Transaction.Conflict} only fails the conflicting
+ * {@link Transaction}, the others are still committed together.
+ *
+ * Should the batch as a whole fail each {@link Transaction} of the batch is
+ * retried on its own so that one faulty change does not fail the others.
+ */
+final class GroupCommit implements AutoCloseable {
+
+	private static final Log LOG = Log.forClass(GroupCommit.class);
+	private static final Counter BATCH_SIZE = Metrics.counter("group_commit_transactions_total", "Transactions committed by group commit");
+
+	private final DB db;
+	private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+	private final Thread writer;
+	private volatile boolean closed = false;
+
+	GroupCommit(DB db) {
+		this.db = db;
+		this.writer = new Thread(this::run);
+		writer.setDaemon(true);
+		writer.setName("task-commit");
+		writer.start();
+	}
+
+	CompletableFuture<ChangeLog> submit(Transaction tx, Server server) {
+		Pending p = new Pending(tx, server.commitBatchSize, MILLISECONDS.toNanos(server.commitLingerMillis));
+		if (closed) {
+			p.res.completeExceptionally(new IllegalStateException("Group commit already closed."));
+		} else {
+			queue.add(p);
+		}
+		return p.res;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		writer.interrupt();
+	}
+
+	private void run() {
+		List<Pending> batch = new ArrayList<>();
+		try {
+			while (!closed) {
+				Pending first = queue.take();
+				batch.add(first);
+				final int batchSize = first.batchSize;
+				long deadline = System.nanoTime() + first.lingerNanos;
+				while (batch.size() < batchSize) {
+					queue.drainTo(batch, batchSize - batch.size());
+					long linger = deadline - System.nanoTime();
+					if (batch.size() >= batchSize || linger <= 0)
+						break;
+					Pending next = queue.poll(linger, NANOSECONDS);
+					if (next == null)
+						break;
+					batch.add(next);
+				}
+				commit(batch);
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			// closing...
+		}
+		queue.drainTo(batch);
+		for (Pending p : batch)
+			p.res.completeExceptionally(new IllegalStateException("Group commit closed before commit."));
+	}
+
+	private void commit(List<Pending> batch) {
+		try {
+			write(batch);
+		} catch (RuntimeException e) {
+			if (batch.size() == 1) {
+				batch.get(0).res.completeExceptionally(e);
+				return;
+			}
+			LOG.warn("Group commit of "+batch.size()+" transactions failed, committing them one by one: "+e.getMessage());
+			for (Pending p : batch) {
+				try {
+					write(singletonList(p));
+				} catch (RuntimeException ex) {
+					p.res.completeExceptionally(ex);
+				}
+			}
+		}
+	}
+
+	private void write(List<Pending> batch) {
+		ChangeLog.Entry<?>[][] logs = new ChangeLog.Entry<?>[batch.size()][];
+		long[] timestamps = new long[batch.size()];
+		Transaction.Conflict[] conflicts = new Transaction.Conflict[batch.size()];
+		Set<ID> touched = new HashSet<>();
+		for (Pending p : batch)
+			touched.addAll(p.tx.touched());
+		long t0 = System.nanoTime();
+		try (Write tx = db.write(touched)) {
+			for (int i = 0; i < logs.length; i++) {
+				Transaction t = batch.get(i).tx;
+				try {
+					t.validate(tx);
+				} catch (Transaction.Conflict e) {
+					conflicts[i] = e;
+					continue;
+				}
+				logs[i] = t.writeEntities(tx);
+				timestamps[i] = t.writeHistoryAndEvent(tx, logs[i]);
+			}
+			t0 = Transaction.ENCODE.since(t0);
+			tx.commit();
+			t0 = Transaction.COMMIT.since(t0);
+		}
+		// only this thread writes so publishing (and serials) are in order
+		// conflicts are reported after the commit so that retries see it
+		int committed = 0;
+		for (int i = 0; i < logs.length; i++) {
+			Pending p = batch.get(i);
+			if (conflicts[i] != null) {
+				p.res.completeExceptionally(conflicts[i]);
+			} else {
+				p.res.complete(p.tx.publish(timestamps[i], logs[i]));
+				committed++;
+			}
+		}
+		BATCH_SIZE.add(committed);
+		Transaction.PUBLISH.since(t0);
+	}
+
+	private static final class Pending {
+
+		final Transaction tx;
+		final int batchSize;
+		final long lingerNanos;
+		final CompletableFuture<ChangeLog> res = new CompletableFuture<>();
+
+		Pending(Transaction tx, int batchSize, long lingerNanos) {
+			this.tx = tx;
+			this.batchSize = batchSize;
+			this.lingerNanos = lingerNanos;
+		}
+	}
+}
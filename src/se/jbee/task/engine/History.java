@@ -1,5 +1,7 @@
 package se.jbee.task.engine;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
 
 import se.jbee.task.model.Entity;
@@ -20,6 +22,51 @@ import se.jbee.task.model.User;
  */
 public final class History implements Iterable<ID> {
 
+	/**
+	 * The maximum number of events in a record (including the first)
+	 */
+	static final int MAX_EVENTS = 8;
+
+	/**
+	 * Appends an event to a history record as it is stored.
+	 *
+	 * @param record the current record or null if there is none yet
+	 * @param to the buffer the new record is written to, flipped afterwards
+	 */
+	static void append(ByteBuffer record, long timestamp, ByteBuffer to) {
+		if (record == null) {
+			to.putLong(timestamp).putLong(timestamp);
+		} else if (record.remaining() >= MAX_EVENTS * Long.BYTES) {
+			to.putLong(record.getLong());
+			record.getLong(); // throw away oldest
+			to.put(record).putLong(timestamp);
+		} else {
+			to.put(record).putLong(timestamp);
+		}
+		to.flip();
+	}
+
+	/**
+	 * Like {@link #append(ByteBuffer, long, ByteBuffer)} for the decoded
+	 * events.
+	 *
+	 * @param events null if there are none yet
+	 */
+	static long[] append(long[] events, long timestamp) {
+		if (events == null)
+			return new long[] { timestamp, timestamp };
+		if (events.length >= MAX_EVENTS) {
+			long[] res = new long[events.length];
+			res[0] = events[0];
+			System.arraycopy(events, 2, res, 1, events.length - 2);
+			res[res.length-1] = timestamp;
+			return res;
+		}
+		long[] res = Arrays.copyOf(events, events.length+1);
+		res[events.length] = timestamp;
+		return res;
+	}
+
 	/**
 	 * The effected entity.
 	 */
@@ -0,0 +1,219 @@
+package se.jbee.task.engine;
+
+import static se.jbee.task.engine.Bincoder.bin2event;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import se.jbee.task.db.DB;
+import se.jbee.task.db.DB.Read;
+import se.jbee.task.db.DB.Write;
+import se.jbee.task.model.ID;
+import se.jbee.task.util.Log;
+import se.jbee.task.util.Metrics;
+import se.jbee.task.util.Metrics.Counter;
+
+/**
+ * Adds the {@link Event}s written by {@link Transaction}s of a
+ * {@link Server#isDeferred()} server to the {@link History}s of the changed
+ * entities in the background.
+ *
+ * The {@link Event}s are the log of changes: they are written in order of
+ * their timestamps, and each one names the entities it changed. The
+ * compactor folds all {@link Event}s up to the timestamp at which all
+ * {@link Transaction}s have finished into the {@link History}s in batches.
+ * It remembers the last folded timestamp in the DB, in the same write
+ * transaction. Events after that mark are not yet part of any {@link History}.
+ * {@link DAO#history(ID)} adds them on read so changes are visible right
+ * after commit.
+ *
+ * When the server is not deferred the mark is removed by {@link #drain(DB)}
+ * after all pending {@link Event}s have been folded in.
+ */
+public final class HistoryCompactor implements AutoCloseable {
+
+	private static final Log LOG = Log.forClass(HistoryCompactor.class);
+	private static final Counter EVENTS = Metrics.counter("history_compacted_events_total", "Events added to histories by the compactor");
+
+	/**
+	 * The key of the timestamp up to which (inclusive) {@link Event}s have
+	 * been added to {@link History}s. Only exists while histories are
+	 * deferred.
+	 */
+	static final ID COMPACTED = ID.historyId(ID.eventId(Long.MAX_VALUE));
+
+	private static final int BATCH_SIZE = 500;
+	private static final long INTERVAL_MILLIS = 100;
+
+	/**
+	 * Starts compacting in a background thread. {@link #close()} stops it
+	 * after a last compaction.
+	 */
+	public static HistoryCompactor start(DB db, Clock clock) {
+		HistoryCompactor c = new HistoryCompactor(db, clock, BATCH_SIZE);
+		c.mark();
+		c.thread.start();
+		return c;
+	}
+
+	/**
+	 * Adds all {@link Event}s not yet in the {@link History}s and stops
+	 * deferring, so that {@link Transaction}s can write {@link History}s
+	 * again. No {@link Transaction} may run meanwhile.
+	 */
+	public static void drain(DB db) {
+		HistoryCompactor c = new HistoryCompactor(db, () -> Long.MAX_VALUE, BATCH_SIZE);
+		while (c.compact(Long.MAX_VALUE)) { /* next batch */ }
+		try (Write tx = db.write()) {
+			if (tx.get(COMPACTED) != null) {
+				tx.delete(COMPACTED);
+				tx.commit();
+			}
+		}
+	}
+
+	private final DB db;
+	private final Clock clock;
+	private final int batchSize;
+	private final ByteBuffer buf = ByteBuffer.allocateDirect(History.MAX_EVENTS * Long.BYTES + Long.BYTES);
+	private final Thread thread;
+	private volatile boolean closed;
+
+	HistoryCompactor(DB db, Clock clock, int batchSize) {
+		this.db = db;
+		this.clock = clock;
+		this.batchSize = batchSize;
+		this.thread = new Thread(this::run);
+		thread.setDaemon(true);
+		thread.setName("task-history");
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		thread.interrupt();
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		compactAll();
+	}
+
+	private void run() {
+		while (!closed) {
+			try {
+				compactAll();
+				Thread.sleep(INTERVAL_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			} catch (RuntimeException e) {
+				LOG.error("Failed to compact histories: "+e);
+			}
+		}
+	}
+
+	private void compactAll() {
+		long until = Transaction.finishedUntil(clock);
+		while (compact(until)) { /* next batch */ }
+	}
+
+	/**
+	 * Sets the mark to now unless it exists. All existing {@link Event}s have
+	 * been added to the {@link History}s by the {@link Transaction}s.
+	 */
+	void mark() {
+		try (Write tx = db.write()) {
+			if (tx.get(COMPACTED) == null) {
+				putMark(tx, Transaction.finishedUntil(clock));
+				tx.commit();
+			}
+		}
+	}
+
+	/**
+	 * Adds the next batch of {@link Event}s up to the given timestamp to the
+	 * {@link History}s.
+	 *
+	 * @return true, if there are more {@link Event}s up to the timestamp
+	 */
+	boolean compact(long until) {
+		try (Write tx = db.write()) {
+			ByteBuffer mark = tx.get(COMPACTED);
+			if (mark == null)
+				return false;
+			final long since = mark.getLong(mark.position());
+			if (until <= since)
+				return false;
+			List<Event> events = events(tx, new DAO(tx), since, until, batchSize+1);
+			if (events.isEmpty())
+				return false;
+			boolean more = events.size() > batchSize;
+			if (more)
+				events.remove(batchSize);
+			Map<ID, ByteBuffer> histories = new LinkedHashMap<>();
+			for (Event e : events) {
+				for (Event.Transition t : e) {
+					ID hid = ID.historyId(t.entity);
+					ByteBuffer record = histories.containsKey(hid) ? histories.get(hid) : tx.get(hid);
+					buf.clear();
+					History.append(record, e.timestamp, buf);
+					ByteBuffer updated = ByteBuffer.allocate(buf.remaining());
+					updated.put(buf).flip();
+					histories.put(hid, updated);
+				}
+			}
+			for (Entry<ID, ByteBuffer> h : histories.entrySet())
+				put(tx, h.getKey(), h.getValue());
+			putMark(tx, more ? events.get(events.size()-1).timestamp : until);
+			tx.commit();
+			EVENTS.add(events.size());
+			return more;
+		}
+	}
+
+	private void putMark(Write tx, long timestamp) {
+		buf.clear();
+		buf.putLong(timestamp).flip();
+		tx.put(COMPACTED, buf);
+	}
+
+	private void put(Write tx, ID key, ByteBuffer value) {
+		buf.clear();
+		buf.put(value).flip();
+		tx.put(key, buf);
+	}
+
+	/**
+	 * @return the {@link Event}s after <code>since</code> up to
+	 *         <code>until</code> (inclusive) in order, at most <code>max</code>
+	 */
+	static List<Event> events(Read tx, Repository rep, long since, long until, int max) {
+		List<Event> events = new ArrayList<>();
+		tx.range(ID.eventId(since+1), (k, v) -> {
+			Event e = bin2event.convert(rep, v);
+			if (e.timestamp <= since)
+				return true;
+			if (e.timestamp > until)
+				return false;
+			events.add(e);
+			return events.size() < max;
+		});
+		return events;
+	}
+
+	/**
+	 * @return the timestamp up to which {@link Event}s have been added to the
+	 *         {@link History}s or {@link Long#MAX_VALUE} if they are not
+	 *         deferred
+	 */
+	static long compacted(Read tx) {
+		ByteBuffer mark = tx.get(COMPACTED);
+		return mark == null ? Long.MAX_VALUE : mark.getLong(mark.position());
+	}
+}
@@ -0,0 +1,130 @@
+package se.jbee.task.engine;
+
+import static se.jbee.task.model.Identifier.join;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import se.jbee.task.db.DB;
+import se.jbee.task.db.DB.Index;
+import se.jbee.task.db.DB.Write;
+import se.jbee.task.model.ID;
+import se.jbee.task.model.Name;
+import se.jbee.task.model.Output;
+import se.jbee.task.model.Task;
+
+/**
+ * Computes the keys of the persistent {@link Index}es of a {@link Task} and
+ * keeps them up to date with changes.
+ *
+ * User indexes ({@link Index#reporter}, {@link Index#watcher}) are keyed by
+ * the user's name and span all {@link Output}s. {@link Index#area} and
+ * {@link Index#version} are keyed by the {@link Output} and the name of the
+ * area or version.
+ *
+ * The indexes are written in the same DB write transaction as the
+ * {@link Task}s so they cannot be out of sync.
+ */
+public final class Indexes {
+
+	/**
+	 * An entry for this key in the {@link Index#reporter} marks that the
+	 * indexes have been built for all {@link Task}s (no {@link Task} is
+	 * reported by {@link Name#ORIGIN}). From then on they are updated with
+	 * each write. A {@link DB} that is written without indexes drops them
+	 * together with the mark so that they are build again.
+	 */
+	private static final byte[] BUILT = Name.ORIGIN.readonlyBytes();
+
+	/**
+	 * @param output ignored for user indexes
+	 * @return the key of the given value in the given {@link Index}
+	 */
+	public static byte[] key(Index index, Name output, Name value) {
+		switch (index) {
+		case area:
+		case version: return join(output.readonlyBytes(), new byte[] {':'}, value.readonlyBytes());
+		default: return value.readonlyBytes();
+		}
+	}
+
+	/**
+	 * Updates all {@link Index}es with the difference between the two states
+	 * of a {@link Task}.
+	 *
+	 * @param before null for a new {@link Task}
+	 */
+	static void update(Write tx, Task before, Task after) {
+		ID id = after.uniqueID();
+		for (Index index : Index.values()) {
+			List<byte[]> removed = keys(index, before);
+			List<byte[]> added = keys(index, after);
+			for (byte[] key : removed) {
+				if (!contains(added, key))
+					tx.unindex(index, key, id);
+			}
+			for (byte[] key : added) {
+				if (!contains(removed, key))
+					tx.index(index, key, id);
+			}
+		}
+	}
+
+	/**
+	 * Indexes all existing {@link Task}s unless this has been done before.
+	 * This is needed when an existing DB is used indexed for the first time.
+	 */
+	public static void build(DB db) {
+		if (!db.isIndexed())
+			return;
+		try (Write tx = db.write()) {
+			boolean[] built = { false };
+			tx.indexed(Index.reporter, BUILT, (id) -> { built[0] = true; return false; });
+			if (built[0])
+				return;
+			DAO rep = new DAO(tx);
+			for (Output output : rep.outputs()) {
+				rep.tasks(output.name, (task) -> {
+					update(tx, null, task);
+					return true;
+				});
+			}
+			tx.index(Index.reporter, BUILT, ID.outputId(Name.ORIGIN));
+			tx.commit();
+		}
+	}
+
+	private static List<byte[]> keys(Index index, Task task) {
+		List<byte[]> keys = new ArrayList<>();
+		if (task == null)
+			return keys;
+		switch (index) {
+		case reporter:
+			if (task.reporter != null)
+				keys.add(key(index, null, task.reporter));
+			break;
+		case watcher:
+			if (task.watchers != null)
+				for (Name watcher : task.watchers)
+					keys.add(key(index, null, watcher));
+			break;
+		case area:
+			if (task.area != null)
+				keys.add(key(index, task.output(), task.area.name));
+			break;
+		case version:
+			if (task.base != null)
+				keys.add(key(index, task.output(), task.base.name));
+			break;
+		}
+		return keys;
+	}
+
+	private static boolean contains(List<byte[]> keys, byte[] key) {
+		for (byte[] k : keys)
+			if (Arrays.equals(k, key))
+				return true;
+		return false;
+	}
+}
@@ -5,6 +5,9 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import se.jbee.task.util.Metrics;
+import se.jbee.task.util.Metrics.Counter;
+
 /**
  * Keeps track of {@link Limit}s.
  *
@@ -23,6 +26,13 @@ public final class LinearLimits implements Limits {
 	private static final int ONE_HOUR = 1000*60*60;
 	private static final int ONE_DAY = 1000*60*60*24;
 
+	private static final Counter EXCEEDED = rejections("exceeded");
+	private static final Counter CONCURRENT = rejections("concurrent");
+
+	private static Counter rejections(String reason) {
+		return Metrics.counter("limits_rejections_total", "Operations rejected by limits", "reason", reason);
+	}
+
 	private final int base;
 	private final ConcurrentHashMap<Limit, LimitsPerPeriod> stats = new ConcurrentHashMap<>();
 	private long nextCleanup;
@@ -34,16 +44,23 @@ public final class LinearLimits implements Limits {
 
 	@Override
 	public boolean stress(Limit l, Clock clock) {
-		return periodLimits(l, clock).stress(clock.time());
+		return count(periodLimits(l, clock).stress(clock.time()));
 	}
 
 	@Override
 	public boolean block(Limit l, Clock clock) throws ConcurrentUsage {
 		LimitsPerPeriod limits = periodLimits(l, clock);
 		if (!limits.blocked.compareAndSet(false, true)) {
+			CONCURRENT.inc();
 			throw new ConcurrentUsage(l);
 		}
-		return limits.stress(clock.time());
+		return count(limits.stress(clock.time()));
+	}
+
+	private static boolean count(boolean stressed) {
+		if (!stressed)
+			EXCEEDED.inc();
+		return stressed;
 	}
 
 	@Override
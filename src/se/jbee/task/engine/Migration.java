@@ -0,0 +1,285 @@
+package se.jbee.task.engine;
+
+import static java.lang.Math.max;
+import static se.jbee.task.engine.Bincoder.area2bin;
+import static se.jbee.task.engine.Bincoder.bin2area;
+import static se.jbee.task.engine.Bincoder.bin2output;
+import static se.jbee.task.engine.Bincoder.bin2page;
+import static se.jbee.task.engine.Bincoder.bin2poll;
+import static se.jbee.task.engine.Bincoder.bin2task;
+import static se.jbee.task.engine.Bincoder.bin2user;
+import static se.jbee.task.engine.Bincoder.bin2version;
+import static se.jbee.task.engine.Bincoder.output2bin;
+import static se.jbee.task.engine.Bincoder.page2bin;
+import static se.jbee.task.engine.Bincoder.poll2bin;
+import static se.jbee.task.engine.Bincoder.task2bin;
+import static se.jbee.task.engine.Bincoder.user2bin;
+import static se.jbee.task.engine.Bincoder.version2bin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+
+import se.jbee.task.db.DB;
+import se.jbee.task.db.DB.Write;
+import se.jbee.task.model.ID;
+import se.jbee.task.util.Log;
+import se.jbee.task.util.Metrics;
+import se.jbee.task.util.Metrics.Counter;
+
+/**
+ * Rewrites records of an older EVN (see {@link Bincoder}) in the current
+ * format while the application is running.
+ *
+ * Each {@link ID.Type} with a current EVN above 1 is walked in key order in
+ * write transactions of a bounded number of records. Records of an older
+ * EVN are decoded and encoded again. After each batch the migration pauses
+ * so that it only uses the given share of time and live {@link Transaction}s
+ * get the DB writer in between.
+ *
+ * The last key migrated is saved to a progress file after each batch so a
+ * migration interrupted by a restart continues where it stopped. Progress is
+ * logged and counted in the <code>migration_records_total</code> metric.
+ */
+public final class Migration implements AutoCloseable {
+
+	private static final Log LOG = Log.forClass(Migration.class);
+
+	private static final int BATCH_SIZE = 200;
+	private static final int DUTY_PERCENT = 20;
+	private static final String DONE = "done";
+
+	private static final Format<?>[] FORMATS = {
+			new Format<>(ID.Type.User, Bincoder.USER_EVN, bin2user, user2bin),
+			new Format<>(ID.Type.Output, Bincoder.OUTPUT_EVN, bin2output, output2bin),
+			new Format<>(ID.Type.Area, Bincoder.AREA_EVN, bin2area, area2bin),
+			new Format<>(ID.Type.Version, Bincoder.VERSION_EVN, bin2version, version2bin),
+			new Format<>(ID.Type.Page, Bincoder.PAGE_EVN, bin2page, page2bin),
+			new Format<>(ID.Type.poll, Bincoder.POLL_EVN, bin2poll, poll2bin),
+			new Format<>(ID.Type.Task, Bincoder.TASK_EVN, bin2task, task2bin),
+	};
+
+	/**
+	 * Starts a migration in a background thread.
+	 *
+	 * @param progress the file the progress is kept in
+	 */
+	public static Migration start(DB db, File progress) {
+		Migration m = new Migration(db, progress, BATCH_SIZE, DUTY_PERCENT);
+		m.thread.start();
+		return m;
+	}
+
+	private final DB db;
+	private final File progress;
+	private final int batchSize;
+	private final int dutyPercent;
+	private final Properties state = new Properties();
+	private final ByteBuffer buf = ByteBuffer.allocateDirect(8192);
+	private final Thread thread;
+	private volatile boolean closed;
+
+	Migration(DB db, File progress, int batchSize, int dutyPercent) {
+		this.db = db;
+		this.progress = progress;
+		this.batchSize = batchSize;
+		this.dutyPercent = dutyPercent;
+		this.thread = new Thread(this::run);
+		thread.setDaemon(true);
+		thread.setName("task-migration");
+		load();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		thread.interrupt();
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		try {
+			long busy = System.nanoTime();
+			while (!closed && migrateBatch()) {
+				busy = System.nanoTime() - busy;
+				Thread.sleep(max(1L, TimeUnit.NANOSECONDS.toMillis(busy) * (100 - dutyPercent) / dutyPercent));
+				busy = System.nanoTime();
+			}
+		} catch (InterruptedException e) {
+			// closed
+		} catch (RuntimeException e) {
+			LOG.error("Migration failed, continues after restart: "+e);
+		}
+	}
+
+	/**
+	 * Migrates the next batch of records.
+	 *
+	 * @return false, if all records are in their current format
+	 */
+	boolean migrateBatch() {
+		for (Format<?> f : FORMATS) {
+			if (f.evn > 1 && !isDone(f)) {
+				migrateBatch(f);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private <T> void migrateBatch(Format<T> f) {
+		final byte[] after = lastKey(f);
+		final List<ID> ids = new ArrayList<>();
+		final List<T> entities = new ArrayList<>();
+		final byte[][] last = { after };
+		final boolean[] more = { false };
+		final int[] scanned = { 0 };
+		try (Write tx = db.write()) {
+			DAO rep = new DAO(tx); // not closed as this would close tx
+			BiPredicate<ID, ByteBuffer> migrate = (k, v) -> {
+				byte[] key = k.readonlyBytes();
+				if (after != null && compare(key, after) <= 0)
+					return true;
+				if (scanned[0] >= batchSize) {
+					more[0] = true;
+					return false;
+				}
+				scanned[0]++;
+				last[0] = key;
+				if (v.get(v.position()) < f.evn) {
+					ids.add(ID.fromBytes(f.type, key));
+					entities.add(f.decoder.convert(rep, v));
+				}
+				return true;
+			};
+			if (after == null) {
+				tx.range(f.type, new byte[0], (k, v) -> migrate.test(id(f.type, k), v));
+			} else {
+				tx.range(ID.fromBytes(f.type, after), migrate);
+			}
+			for (int i = 0; i < ids.size(); i++) {
+				buf.clear();
+				f.encoder.convert(entities.get(i), buf).flip();
+				tx.put(ids.get(i), buf);
+			}
+			tx.commit();
+		}
+		f.scanned.add(scanned[0]);
+		f.migrated.add(ids.size());
+		save(f, more[0] ? last[0] : null);
+		if (!more[0]) {
+			LOG.info("Migrated "+f.type+" records to EVN "+f.evn+": "+f.migrated.count()+" of "+f.scanned.count()+" needed migration.");
+		}
+	}
+
+	private static ID id(ID.Type type, ByteBuffer key) {
+		byte[] bytes = new byte[key.remaining()];
+		key.duplicate().get(bytes);
+		return ID.fromBytes(type, bytes);
+	}
+
+	/**
+	 * Compares keys in the order of the DB (bytes as unsigned).
+	 */
+	private static int compare(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			int res = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+			if (res != 0)
+				return res;
+		}
+		return Integer.compare(a.length, b.length);
+	}
+
+	private boolean isDone(Format<?> f) {
+		return (f.evn+":"+DONE).equals(state.getProperty(f.type.name()));
+	}
+
+	/**
+	 * @return the key last migrated or null to start from the beginning
+	 */
+	private byte[] lastKey(Format<?> f) {
+		String value = state.getProperty(f.type.name());
+		String prefix = f.evn+":";
+		if (value == null || !value.startsWith(prefix))
+			return null; // never started or an older migration
+		return hex(value.substring(prefix.length()));
+	}
+
+	/**
+	 * @param last null when done
+	 */
+	private void save(Format<?> f, byte[] last) {
+		state.setProperty(f.type.name(), f.evn+":"+(last == null ? DONE : hex(last)));
+		File tmp = new File(progress.getPath()+".tmp");
+		try (OutputStream out = new FileOutputStream(tmp)) {
+			state.store(out, "EVN migration progress");
+		} catch (IOException e) {
+			LOG.warn("Failed to write migration progress: "+e.getMessage());
+			return;
+		}
+		try {
+			Files.move(tmp.toPath(), progress.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOG.warn("Failed to replace migration progress: "+e.getMessage());
+		}
+	}
+
+	private void load() {
+		if (!progress.exists())
+			return;
+		try (InputStream in = new FileInputStream(progress)) {
+			state.load(in);
+		} catch (IOException e) {
+			LOG.warn("Failed to read migration progress, starting over: "+e.getMessage());
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder b = new StringBuilder(bytes.length * 2);
+		for (byte x : bytes)
+			b.append(Character.forDigit((x >> 4) & 0xF, 16)).append(Character.forDigit(x & 0xF, 16));
+		return b.toString();
+	}
+
+	private static byte[] hex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2*i, 2*i+2), 16);
+		return bytes;
+	}
+
+	private static final class Format<T> {
+
+		final ID.Type type;
+		final byte evn;
+		final Bincoder<Repository, T> decoder;
+		final Bincoder<T, ByteBuffer> encoder;
+		final Counter scanned;
+		final Counter migrated;
+
+		Format(ID.Type type, byte evn, Bincoder<Repository, T> decoder, Bincoder<T, ByteBuffer> encoder) {
+			this.type = type;
+			this.evn = evn;
+			this.decoder = decoder;
+			this.encoder = encoder;
+			this.scanned = Metrics.counter("migration_records_total", "Records looked at by the EVN migration", "type", type.name(), "state", "scanned");
+			this.migrated = Metrics.counter("migration_records_total", "Records looked at by the EVN migration", "type", type.name(), "state", "migrated");
+		}
+	}
+}
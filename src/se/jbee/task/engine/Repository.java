@@ -4,6 +4,7 @@ import java.util.NoSuchElementException;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 
+import se.jbee.task.db.DB.Index;
 import se.jbee.task.model.Area;
 import se.jbee.task.model.ID;
 import se.jbee.task.model.IDN;
@@ -28,7 +29,17 @@ public interface Repository extends AutoCloseable {
 	History history(ID entity) throws UnknownEntity;
 
 	void tasks(Name output, Predicate<Task> consumer);
-	
+
+	/**
+	 * Passes the {@link Task}s having the given value in a persistent
+	 * {@link Index} to the consumer until it returns false. No
+	 * {@link Output} has to be loaded as a whole to do so.
+	 *
+	 * @param output ignored for user indexes
+	 * @throws UnsupportedOperationException if the DB is not indexed
+	 */
+	void tasks(Index index, Name output, Name value, Predicate<Task> consumer);
+
 	Output[] outputs();
 	Page[] pages(Name output, Name menu);
 	Poll[] polls(Name output, Name area);
@@ -2,9 +2,14 @@ package se.jbee.task.engine;
 
 import static java.lang.Integer.parseInt;
 import static java.lang.Short.parseShort;
+import static se.jbee.task.engine.Server.Switch.ASYNC;
 import static se.jbee.task.engine.Server.Switch.DEDICATED;
+import static se.jbee.task.engine.Server.Switch.DEFERRED;
+import static se.jbee.task.engine.Server.Switch.INDEXED;
 import static se.jbee.task.engine.Server.Switch.LOCKDOWN;
 import static se.jbee.task.engine.Server.Switch.OPEN;
+import static se.jbee.task.engine.Server.Switch.OPTIMISTIC;
+import static se.jbee.task.engine.Server.Switch.SHARDED;
 
 import java.io.File;
 import java.io.IOException;
@@ -38,6 +43,14 @@ public final class Server {
 	 * -o       open: allow users to create outputs
 	 * -l       lock-down: only the admin user may log in
 	 * -d       dedicated: allow user to see admin's email
+	 * -i       indexed: keep persistent secondary indexes of tasks
+	 * -x       sharded: keep each output in a DB environment of its own
+	 * -c       deferred: add events to histories in the background
+	 * -m       optimistic: validate versions on commit instead of blocking limits
+	 * -n       non-blocking: HTTP threads do not wait for cache lookups
+	 * -g SIZE  group commit: max. number of transactions committed together (default 1 = off)
+	 * -w MS    group commit: max. time in ms to wait for more transactions (default 2)
+	 * -t COUNT number of HTTP worker threads (default 32), DB readers are sized from it
 	 * </pre>
 	 *
 	 * @param args
@@ -62,6 +75,14 @@ public final class Server {
 			case 'o': res = res.with(Switch.OPEN); break;
 			case 'l': res = res.with(Switch.LOCKDOWN); break;
 			case 'd': res = res.with(Switch.DEDICATED); break;
+			case 'i': res = res.with(Switch.INDEXED); break;
+			case 'x': res = res.with(Switch.SHARDED); break;
+			case 'c': res = res.with(Switch.DEFERRED); break;
+			case 'm': res = res.with(Switch.OPTIMISTIC); break;
+			case 'n': res = res.with(Switch.ASYNC); break;
+			case 'g': res = res.withGroupCommit(parseInt(args[i++]), res.commitLingerMillis); break;
+			case 'w': res = res.withGroupCommit(res.commitBatchSize, parseInt(args[i++])); break;
+			case 't': res = res.withThreads(parseInt(args[i++])); break;
 			case 'h': System.out.println("Usage: java -jar collaborate.jar [OPTION...]"); System.exit(0); break;
 			default:
 				throw new IllegalArgumentException("Unknown option: "+args[i-1]);
@@ -92,6 +113,41 @@ public final class Server {
 		 */
 		DEDICATED,
 
+		/**
+		 * If set the DB keeps persistent secondary indexes of tasks (by
+		 * reporter, watcher, area and version).
+		 */
+		INDEXED,
+
+		/**
+		 * If set each {@link Output} is stored in a DB environment of its own
+		 * so that writes to different {@link Output}s do not block each other.
+		 * A DB is either always used sharded or never.
+		 */
+		SHARDED,
+
+		/**
+		 * If set transactions only write their {@link Event} and the
+		 * {@link HistoryCompactor} adds them to the {@link History}s of the
+		 * changed entities in the background.
+		 */
+		DEFERRED,
+
+		/**
+		 * If set transactions do not block specific {@link Limit}s to detect
+		 * conflicting changes. Instead the versions of the entities read are
+		 * validated on commit and the changes are applied again in case of a
+		 * conflict.
+		 */
+		OPTIMISTIC,
+
+		/**
+		 * If set HTTP requests are suspended while waiting for results
+		 * computed in the background so that they do not occupy one of the
+		 * {@link Server#threads} meanwhile.
+		 */
+		ASYNC,
+
 	}
 
 	/**
@@ -116,13 +172,31 @@ public final class Server {
 	private final EnumSet<Switch> switches;
 	public final int port;
 
+	/**
+	 * The maximum number of {@link Transaction}s written and committed together
+	 * in a single DB write transaction. With 1 each {@link Transaction} commits
+	 * on its own.
+	 */
+	public final int commitBatchSize;
+	/**
+	 * The maximum time in milliseconds the commit writer waits for further
+	 * {@link Transaction}s to join a batch that is not full yet.
+	 */
+	public final int commitLingerMillis;
+	/**
+	 * The number of threads serving HTTP requests. As each of them reads from
+	 * the DB this also determines the number of DB readers.
+	 */
+	public final int threads;
+
 	public Server() {
 		this(Email.NO_ADMIN,
 				new File(System.getProperty("java.io.tmpdir") + "/collaborate-"+Date.today()+"/"), 1014L * 1024L * 10L, 8080,
-				() -> System.currentTimeMillis(), new LinearLimits(5), EnumSet.noneOf(Switch.class));
+				() -> System.currentTimeMillis(), new LinearLimits(5), EnumSet.noneOf(Switch.class), 1, 2, 32);
 	}
 
-	private Server(Email admin, File pathDB, long sizeDB, int port, Clock clock, Limits limits, EnumSet<Switch> switches) {
+	private Server(Email admin, File pathDB, long sizeDB, int port, Clock clock, Limits limits, EnumSet<Switch> switches,
+			int commitBatchSize, int commitLingerMillis, int threads) {
 		this.admin = admin;
 		this.pathDB = pathDB;
 		this.sizeDB = sizeDB;
@@ -130,6 +204,9 @@ public final class Server {
 		this.clock = clock;
 		this.limits = limits;
 		this.switches = switches;
+		this.commitBatchSize = commitBatchSize;
+		this.commitLingerMillis = commitLingerMillis;
+		this.threads = threads;
 		this.isTemporary = pathDB.getPath().startsWith(System.getProperty("java.io.tmpdir"));
 	}
 
@@ -141,27 +218,47 @@ public final class Server {
 		return switches.contains(LOCKDOWN);
 	}
 
+	public boolean isIndexed() {
+		return switches.contains(INDEXED);
+	}
+
+	public boolean isSharded() {
+		return switches.contains(SHARDED);
+	}
+
+	public boolean isDeferred() {
+		return switches.contains(DEFERRED);
+	}
+
+	public boolean isOptimistic() {
+		return switches.contains(OPTIMISTIC);
+	}
+
+	public boolean isAsync() {
+		return switches.contains(ASYNC);
+	}
+
 	public boolean isAdmin(User user) {
 		return user.email.equalTo(admin);
 	}
 
 	public Server with(Clock clock) {
-		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches);
+		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches, commitBatchSize, commitLingerMillis, threads);
 	}
 
 	public Server with(Limits limits) {
-		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches);
+		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches, commitBatchSize, commitLingerMillis, threads);
 	}
 
 	public Server with(Email admin) {
-		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches);
+		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches, commitBatchSize, commitLingerMillis, threads);
 	}
 
 	public Server with(Switch...switches) {
 		return new Server(admin, pathDB, sizeDB, port, clock, limits,
 				switches.length == 0
 				? EnumSet.noneOf(Switch.class)
-				: EnumSet.of(switches[0], switches));
+				: EnumSet.of(switches[0], switches), commitBatchSize, commitLingerMillis, threads);
 	}
 
 	public Server with(File pathDB) throws IOException {
@@ -171,15 +268,15 @@ public final class Server {
 		if (!pathDB.isDirectory()) {
 			throw new IllegalArgumentException("Please provide the folder the database is located, not a file like: "+pathDB);
 		}
-		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches);
+		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches, commitBatchSize, commitLingerMillis, threads);
 	}
 
 	public Server with(short sizeDB) {
-		return new Server(admin, pathDB, 1014L * 1024L * sizeDB, port, clock, limits, switches);
+		return new Server(admin, pathDB, 1014L * 1024L * sizeDB, port, clock, limits, switches, commitBatchSize, commitLingerMillis, threads);
 	}
 
 	public Server with(int port) {
-		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches);
+		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches, commitBatchSize, commitLingerMillis, threads);
 	}
 
 	public Server with(Switch s) {
@@ -187,7 +284,23 @@ public final class Server {
 			return this;
 		EnumSet<Switch> switches = this.switches.clone();
 		switches.add(s);
-		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches);
+		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches, commitBatchSize, commitLingerMillis, threads);
+	}
+
+	public Server withGroupCommit(int batchSize, int lingerMillis) {
+		if (batchSize < 1 || lingerMillis < 0)
+			throw new IllegalArgumentException("Group commit requires a batch size of at least 1 and a non negative linger time.");
+		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches, batchSize, lingerMillis, threads);
+	}
+
+	public Server withThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("At least one thread is required.");
+		return new Server(admin, pathDB, sizeDB, port, clock, limits, switches, commitBatchSize, commitLingerMillis, threads);
+	}
+
+	public boolean isGroupCommitting() {
+		return commitBatchSize > 1;
 	}
 
 	public Email admin() {
@@ -0,0 +1,80 @@
+package se.jbee.task.engine;
+
+import static se.jbee.task.engine.Bincoder.bin2task;
+
+import java.nio.ByteBuffer;
+
+import se.jbee.task.model.Name;
+import se.jbee.task.model.Task;
+
+/**
+ * A flyweight read-only view on the binary record of a {@link Task} as written
+ * by {@link Bincoder#task2bin}.
+ *
+ * It answers if a record belongs to an {@link se.jbee.task.model.Output}
+ * directly from the {@link ByteBuffer}. Only when actually needed a full
+ * {@link Task} is materialised using {@link #task(Repository)}.
+ *
+ * A view can be {@link #wrap(ByteBuffer)}ed around another record to reuse it
+ * while iterating records.
+ *
+ * Records of both EVN 1 and EVN 2 are understood.
+ */
+public final class TaskView {
+
+	/**
+	 * The EVN byte and the version int come first, than the output name.
+	 */
+	private static final int OUTPUT = 5;
+
+	private ByteBuffer buf;
+	private int start;
+	private boolean evn2;
+
+	public TaskView wrap(ByteBuffer record) {
+		this.buf = record;
+		this.start = record.position();
+		this.evn2 = record.get(start) == 2;
+		return this;
+	}
+
+	/**
+	 * @return the full {@link Task} decoded from the record
+	 */
+	public Task task(Repository tx) {
+		ByteBuffer record = buf.duplicate();
+		record.position(start);
+		return bin2task.convert(tx, record);
+	}
+
+	/**
+	 * @return true, if the task belongs to the given output. This is checked on
+	 *         the bytes directly without creating any objects.
+	 */
+	public boolean outputEquals(Name output) {
+		int i = outputOffset();
+		int len = buf.get(i);
+		if (output == null)
+			return len < 0;
+		byte[] expected = output.readonlyBytes();
+		if (len != expected.length)
+			return false;
+		for (int k = 0; k < len; k++)
+			if (buf.get(i+1+k) != expected[k])
+				return false;
+		return true;
+	}
+
+	/**
+	 * In EVN 2 the version is a varint so the output follows after its last
+	 * byte.
+	 */
+	private int outputOffset() {
+		if (!evn2)
+			return start+OUTPUT;
+		int i = start+1;
+		while (buf.get(i++) < 0)
+			;
+		return i;
+	}
+}
@@ -345,7 +345,7 @@ public final class Tracker {
 			stressUser(actor);
 			stressDoUpdateText(task, actor);
 			task = task.clone();
-			if (task.originalGist.isEmpty()) {
+			if (task.originalGist == null || task.originalGist.isEmpty()) {
 				task.originalGist = task.gist;
 			}
 			task.gist = toGist;
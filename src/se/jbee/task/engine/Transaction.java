@@ -12,9 +12,16 @@ import static se.jbee.task.engine.ChangeLog.changes;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
@@ -35,6 +42,9 @@ import se.jbee.task.model.Task;
 import se.jbee.task.model.Transitory;
 import se.jbee.task.model.User;
 import se.jbee.task.model.Version;
+import se.jbee.task.util.Metrics;
+import se.jbee.task.util.Metrics.Counter;
+import se.jbee.task.util.Metrics.Histogram;
 
 /**
  * A {@link Transaction} keeps track of a change applied as a whole or not at
@@ -48,9 +58,19 @@ import se.jbee.task.model.Version;
 public final class Transaction extends DAO implements Tx {
 
 	/**
-	 * We really just need a single buffer for writing as only one TX can write at a time.
+	 * We really just need a single buffer per thread as a thread only writes one TX at a time.
+	 * Several TXs can write at the same time when they touch different parts of the {@link DB}.
 	 */
-	private static final ByteBuffer WRITE_BUF = ByteBuffer.allocateDirect(8192);
+	private static final ThreadLocal<ByteBuffer> WRITE_BUF = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(8192));
+
+	static final Histogram APPLY = phase("apply");
+	static final Histogram ENCODE = phase("encode");
+	static final Histogram COMMIT = phase("commit");
+	static final Histogram PUBLISH = phase("publish");
+
+	private static Histogram phase(String name) {
+		return Metrics.histogram("transaction_phase_seconds", "Time spent in each phase of a transaction", "phase", name);
+	}
 
 	public static ChangeLog run(Change set, DB db, Server server) throws ConcurrentUsage {
 		return run(set, db, server, null);
@@ -59,20 +79,100 @@ public final class Transaction extends DAO implements Tx {
 	/**
 	 * Applies the changes to the DB.
 	 *
+	 * When the {@link Server#isGroupCommitting()} the write is done by the
+	 * {@link GroupCommit} writer of the {@link DB} together with other
+	 * transactions. The calling thread waits for that commit. The specific
+	 * {@link Limit}s stay blocked until then so that conflicting changes are
+	 * still detected per transaction.
+	 *
+	 * When the {@link Server#isOptimistic()} no {@link Limit}s are blocked.
+	 * Instead the versions of the entities read are validated when writing.
+	 * On a {@link Conflict} the changes are applied again to the current
+	 * state, up to {@link #MAX_ATTEMPTS} times.
+	 *
 	 * @return a list of changed entities each given as a pair: before and after the change
 	 * @throws ConcurrentUsage when trying to change an entity already changed by an ongoing transaction (in another thread)
+	 * @throws Conflict when an entity read was changed by another transaction in each attempt
 	 */
 	public static ChangeLog run(Change set, DB db, Server server, Consumer<ChangeLog> listener) throws ConcurrentUsage {
-		final long now = max(lastTick.incrementAndGet(), server.clock.time());
+		final long now;
+		synchronized (running) {
+			now = max(lastTick.get() + 1, server.clock.time());
+			lastTick.set(now);
+			running.add(now);
+		}
 		final Clock fixedNow = () -> now;
-		Limits limits = new StressBlockSpecificLimits(server.limits);
-		try (Transaction tx = new Transaction(fixedNow, db, listener)) {
-			try {
-				set.apply(new Tracker(server.with(fixedNow).with(limits)), tx);
-				return tx.commit();
-			} finally {
-				limits.unblock(null);
+		try {
+			if (!server.isOptimistic()) {
+				Limits limits = new StressBlockSpecificLimits(server.limits);
+				try {
+					return apply(set, db, server.with(fixedNow).with(limits), listener);
+				} finally {
+					limits.unblock(null);
+				}
+			}
+			for (int attempt = 1;; attempt++) {
+				try {
+					return apply(set, db, server.with(fixedNow), listener);
+				} catch (Conflict e) {
+					CONFLICTS.inc();
+					if (attempt >= MAX_ATTEMPTS)
+						throw e;
+				}
 			}
+		} finally {
+			running.remove(now);
+		}
+	}
+
+	private static ChangeLog apply(Change set, DB db, Server server, Consumer<ChangeLog> listener) {
+		try (Transaction tx = new Transaction(server.clock, db, listener, server.isDeferred(), server.isOptimistic(), EntityCache.of(db))) {
+			long t0 = System.nanoTime();
+			set.apply(new Tracker(server), tx);
+			APPLY.since(t0);
+			return server.isGroupCommitting() ? tx.commit(groupCommit(db), server) : tx.commit();
+		}
+	}
+
+	/**
+	 * The number of times a {@link Change} is applied before a {@link Conflict}
+	 * is given up.
+	 */
+	static final int MAX_ATTEMPTS = 3;
+
+	private static final Counter CONFLICTS = Metrics.counter("transaction_conflicts_total", "Optimistic transactions that had to be applied again");
+
+	/**
+	 * Thrown when writing an optimistic {@link Transaction} if an entity it
+	 * read has been changed (or created) by another {@link Transaction}
+	 * meanwhile.
+	 */
+	public static final class Conflict extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		public Conflict(ID id, int expected, int actual) {
+			super("Entity has been changed by another transaction: "+id+" expected version "+expected+" but was "+actual);
+		}
+	}
+
+	/**
+	 * The timestamps of the transactions that are running.
+	 */
+	private static final ConcurrentSkipListSet<Long> running = new ConcurrentSkipListSet<>();
+
+	/**
+	 * @return the timestamp up to which (inclusive) all transactions have
+	 *         finished so their {@link Event}s are committed; transactions
+	 *         that start later use a later timestamp
+	 */
+	static long finishedUntil(Clock clock) {
+		synchronized (running) {
+			if (!running.isEmpty())
+				return running.first() - 1;
+			long now = max(lastTick.get(), clock.time());
+			lastTick.set(now);
+			return now;
 		}
 	}
 
@@ -83,6 +183,25 @@ public final class Transaction extends DAO implements Tx {
 	 */
 	private static final AtomicLong lastTick = new AtomicLong(Long.MIN_VALUE);
 
+	/**
+	 * The {@link GroupCommit} writers by {@link DB} - there is at most one writer per DB.
+	 */
+	private static final Map<DB, GroupCommit> groupCommits = new ConcurrentHashMap<>();
+
+	private static GroupCommit groupCommit(DB db) {
+		return groupCommits.computeIfAbsent(db, GroupCommit::new);
+	}
+
+	/**
+	 * Stops the {@link GroupCommit} writer for the given {@link DB} (if there
+	 * is one). This should be called before the {@link DB} is closed.
+	 */
+	public static void closeGroupCommit(DB db) {
+		GroupCommit writer = groupCommits.remove(db);
+		if (writer != null)
+			writer.close();
+	}
+
 	private final LinkedHashMap<ID, Entity<?>> changed = new LinkedHashMap<>();
 	private final HashMap<ID, ArrayList<Change.Operation>> changeTypes = new HashMap<>();
 	private final HashMap<ID, User> loadedUsers = new HashMap<>();
@@ -90,14 +209,37 @@ public final class Transaction extends DAO implements Tx {
 	private final Clock clock;
 	private final DB db;
 	private final Consumer<ChangeLog> listener;
+	/**
+	 * When true only the {@link Event} is written, the {@link HistoryCompactor}
+	 * adds it to the {@link History}s later.
+	 */
+	private final boolean deferHistory;
+	/**
+	 * When true the versions of the entities read are validated before
+	 * writing, see {@link #validate(Write)}.
+	 */
+	private final boolean optimistic;
+	private final EntityCache shared;
 
 	private ID actor;
 
-	private Transaction(Clock clock, DB db, Consumer<ChangeLog> listener) {
-		super(db.read());
+	private Transaction(Clock clock, DB db, Consumer<ChangeLog> listener, boolean deferHistory, boolean optimistic, EntityCache shared) {
+		super(db.read(), shared);
 		this.clock = clock;
 		this.db = db;
 		this.listener = listener;
+		this.deferHistory = deferHistory;
+		this.optimistic = optimistic;
+		this.shared = shared;
+	}
+
+	/**
+	 * {@link User}s are changed in place so the {@link Transaction} needs its
+	 * own instance.
+	 */
+	@Override
+	protected boolean isShared(ID id) {
+		return id.type != ID.Type.User && super.isShared(id);
 	}
 
 	@Override
@@ -106,6 +248,11 @@ public final class Transaction extends DAO implements Tx {
 		return res != null ? res : loaded.get(id);
 	}
 
+	@Override
+	protected boolean hasTransactionObjects() {
+		return !changed.isEmpty() || super.hasTransactionObjects();
+	}
+
 	@Override
 	public void put(Operation op, Entity<?> e) {
 		if (e.isCurrupted())
@@ -176,29 +323,107 @@ public final class Transaction extends DAO implements Tx {
 	}
 
 	private ChangeLog commit() {
-		super.close(); // no more reading
-		if (changed.isEmpty())
+		if (!prepareCommit())
 			return ChangeLog.EMPTY; // empty changesets have serial 0 and can be discarded/ignored
-		if (actor == null)
-			throw new IllegalStateException("Acting user has to be updated during a transaction!");
-		try (Write tx = db.write()) {
-			WRITE_BUF.clear();
-			ChangeLog.Entry<?>[] log = writeEntities(tx, WRITE_BUF);
-			long timestamp = clock.time();
-			writeHistoryAndEvent(tx, log, timestamp, WRITE_BUF);
+		try (Write tx = db.write(touched())) {
+			long t = System.nanoTime();
+			validate(tx);
+			ChangeLog.Entry<?>[] log = writeEntities(tx);
+			long timestamp = writeHistoryAndEvent(tx, log);
+			t = ENCODE.since(t);
 			tx.commit();
+			t = COMMIT.since(t);
 			// serial is fetched within the TX write() but after commit() so we know this is successful
-			// also only one thread can enter the write block what causes publishing to be in order
-			return publish(changes(timestamp, log));
+			// also only one thread can write the touched entities what causes their publishing to be in order
+			ChangeLog changes = publish(timestamp, log);
+			PUBLISH.since(t);
+			return changes;
+		}
+	}
+
+	private ChangeLog commit(GroupCommit writer, Server server) {
+		if (!prepareCommit())
+			return ChangeLog.EMPTY;
+		try {
+			return writer.submit(this, server).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw e;
 		}
 	}
 
-	private ChangeLog publish(ChangeLog changes) {
+	/**
+	 * @return true, if there are changes to write, false if there is nothing to commit
+	 */
+	private boolean prepareCommit() {
+		super.close(); // no more reading
+		if (changed.isEmpty())
+			return false;
+		if (actor == null)
+			throw new IllegalStateException("Acting user has to be updated during a transaction!");
+		return true;
+	}
+
+	ChangeLog publish(long timestamp, ChangeLog.Entry<?>[] log) {
+		ChangeLog changes = changes(timestamp, log, listener != null);
 		if (listener != null)
 			try { listener.accept(changes); } catch (RuntimeException e) { /* just ignore this */ }
 		return changes;
 	}
 
+	/**
+	 * @return the {@link ID}s of the entities written and, if the transaction
+	 *         is optimistic, those validated
+	 */
+	Collection<ID> touched() {
+		if (!optimistic)
+			return changed.keySet();
+		Set<ID> touched = new HashSet<>(loaded.keySet());
+		touched.addAll(changed.keySet());
+		return touched;
+	}
+
+	ChangeLog.Entry<?>[] writeEntities(Write tx) {
+		ByteBuffer buf = WRITE_BUF.get();
+		buf.clear();
+		return writeEntities(tx, buf);
+	}
+
+	/**
+	 * Checks within the write that each entity read still has the version it
+	 * had when it was loaded and that each entity created does not exist yet.
+	 * Entities only seen in range scans are not validated. Does nothing unless
+	 * the transaction is optimistic.
+	 *
+	 * @throws Conflict in case another transaction changed one of them
+	 */
+	void validate(Write tx) {
+		if (!optimistic)
+			return;
+		for (Entry<ID, Entity<?>> e : loaded.entrySet())
+			expectVersion(tx, e.getKey(), e.getValue().initalVersion);
+		for (ID id : changed.keySet())
+			if (!loaded.containsKey(id))
+				expectVersion(tx, id, 0);
+	}
+
+	private static void expectVersion(Write tx, ID id, int expected) {
+		ByteBuffer record = tx.get(id);
+		int actual = record == null ? 0 : Bincoder.bin2version(id.type, record);
+		if (actual != expected)
+			throw new Conflict(id, expected, actual);
+	}
+
+	/**
+	 * @return the timestamp used for the history and {@link Event}
+	 */
+	long writeHistoryAndEvent(Write tx, ChangeLog.Entry<?>[] log) {
+		long timestamp = clock.time();
+		writeHistoryAndEvent(tx, log, timestamp, WRITE_BUF.get());
+		return timestamp;
+	}
+
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	private ChangeLog.Entry<?>[] writeEntities(Write tx, ByteBuffer buf) {
 		ChangeLog.Entry<?>[] res = new ChangeLog.Entry[changed.size()];
@@ -213,13 +438,18 @@ public final class Transaction extends DAO implements Tx {
 			case poll:    write(tx, id, (Poll)val, poll2bin, buf); break;
 			case Area:    write(tx, id, (Area)val, area2bin, buf); break;
 			case Page:    write(tx, id, (Page)val, page2bin, buf); break;
-			case Task:    write(tx, id, (Task)val, task2bin, buf); break;
+			case Task:    write(tx, id, (Task)val, task2bin, buf);
+				if (db.isIndexed())
+					Indexes.update(tx, (Task)loaded.get(id), (Task)val);
+				break;
 			case User:    write(tx, id, (User)val, user2bin, buf); break;
 			case Output: write(tx, id, (Output)val, output2bin, buf); break;
 			case Version: write(tx, id, (Version)val, version2bin, buf); break;
 			default: throw new UnsupportedOperationException("Cannot store entities of type: "+id);
 			}
 		}
+		if (shared != null)
+			shared.invalidate(res); // before commit, see EntityCache
 		return res;
 	}
 
@@ -229,21 +459,12 @@ public final class Transaction extends DAO implements Tx {
 		for (ChangeLog.Entry<?> e : changes) {
 			ID id = e.after.uniqueID();
 			transitions[i++] = new Transition(id, e.transitions);
-			ID hid = ID.historyId(id);
-			ByteBuffer history = tx.get(hid);
-			if (history == null) {
-				buf.putLong(timestamp).putLong(timestamp).flip();
-			} else {
-				if (history.remaining() >= 64) {
-					buf.putLong(history.getLong());
-					history.getLong(); // throw away oldest
-					buf.put(history).putLong(timestamp).flip();
-				} else {
-					buf.put(history).putLong(timestamp).flip();
-				}
+			if (!deferHistory) {
+				ID hid = ID.historyId(id);
+				History.append(tx.get(hid), timestamp, buf);
+				tx.put(hid, buf);
+				buf.clear();
 			}
-			tx.put(hid, buf);
-			buf.clear();
 		}
 		Event e = new Event(timestamp, actor, transitions);
 		write(tx, e.uniqueID() , e, Bincoder.event2bin, buf);
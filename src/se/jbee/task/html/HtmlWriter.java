@@ -1,9 +1,16 @@
 package se.jbee.task.html;
 
-import java.io.PrintWriter;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
 
 import se.jbee.task.api.Param.Command;
 import se.jbee.task.model.Area;
+import se.jbee.task.model.ByteSequence;
 import se.jbee.task.model.Cause;
 import se.jbee.task.model.Goal;
 import se.jbee.task.model.Heat;
@@ -14,80 +21,232 @@ import se.jbee.task.model.Criteria.Coloration;
 
 
 /**
- * A wrapper around the {@link PrintWriter} that is the HTTP response stream.
+ * A wrapper around the {@link OutputStream} that is the HTTP response stream.
  *
  * Here is the place for utility methods, things that are done by multiple
  * pages, like likes and alike.
  *
+ * The page is written as UTF-8 bytes into a pooled buffer. Constant markup is
+ * encoded once (see {@link #utf8(String)}), {@link Name}s and other ASCII
+ * {@link ByteSequence}s are copied as they are. The buffer is written to the
+ * stream when full or when the page explicitly {@link #flush()}es so that the
+ * first parts of a page reach the browser while the rest is rendered.
+ *
  * @author jan
  */
-public final class HtmlWriter {
+public final class HtmlWriter implements AutoCloseable {
 
 	//TODO have a look at https://www.owasp.org/index.php/XSS_(Cross_Site_Scripting)_Prevention_Cheat_Sheet
 
-	private final PrintWriter out;
+	private static final int BUFFER_SIZE = 8192;
+	private static final ArrayBlockingQueue<byte[]> BUFFERS = new ArrayBlockingQueue<>(64);
+
+	private static final byte[] VERSION_LINK_1 = utf8("<a class='vn' href='");
+	private static final byte[] VERSION_LINK_2 = utf8("/v/");
+	private static final byte[] LINK_CLOSE = utf8("/'>");
+	private static final byte[] LINK_END = utf8("</a>");
+	private static final byte[] USER_LINK = utf8(" <a href='/user/");
+	private static final byte[] USER_I = utf8(" <i>");
+	private static final byte[] USER_I_END = utf8("</i>");
+	private static final byte[] AREA_LINK = utf8("<a href='");
+	private static final byte[] COMMAND_LINK = utf8("<a class='");
+	private static final byte[] COMMAND_LINK_HREF = utf8("' href='/");
+	private static final byte[] IDN_CSS = utf8("idn");
+	private static final byte[] STRESS_CSS = utf8("stress btn");
+	private static final byte[] STRESS_LABEL = utf8("!");
+	private static final byte[] HEADER = utf8("<!DOCTYPE html><head><title>collaborate!</title>"
+			+ "<link rel='stylesheet' href='/static/collaborate.css'></head><body>");
+	private static final byte[] FOOTER = utf8("</body>");
+	private static final byte[] LEGEND;
+
+	static {
+		StringBuilder legend = new StringBuilder();
+		legend.append("<div class='footer'><div class='column'>");
+		legend(legend, Coloration.cause, Cause.class);
+		legend(legend, Coloration.status, Status.class);
+		legend(legend, Coloration.goal, Goal.class);
+		legend(legend, Coloration.heat, Heat.class);
+		legend.append("</div></div>");
+		LEGEND = utf8(legend.toString());
+	}
+
+	private static void legend(StringBuilder out, Coloration scheme, Class<? extends Enum<?>> type) {
+		out.append("<table class='legend scheme-").append(scheme.name()).append("'>");
+		out.append("<tr><th>").append(scheme.name()).append("</th></td>");
+		for (Enum<?> v : type.getEnumConstants()) {
+			out.append("<tr class='").append(scheme.name()).append("-").append(v.name()).append("'><td>").append(v.name()).append("</td></tr>");
+		}
+		out.append("</table>");
+	}
+
+	/**
+	 * @return the UTF-8 bytes of constant markup to write with
+	 *         {@link #append(byte[])}
+	 */
+	public static byte[] utf8(String s) {
+		return s.getBytes(UTF_8);
+	}
+
+	private final OutputStream out;
+	private byte[] buf;
+	private int pos;
 
-	public HtmlWriter(PrintWriter out) {
+	public HtmlWriter(OutputStream out) {
 		this.out = out;
+		byte[] pooled = BUFFERS.poll();
+		this.buf = pooled != null ? pooled : new byte[BUFFER_SIZE];
+	}
+
+	public HtmlWriter append(byte[] utf8) {
+		if (utf8.length > buf.length - pos) {
+			writeBuffer();
+			if (utf8.length > buf.length) {
+				write(utf8, utf8.length);
+				return this;
+			}
+		}
+		System.arraycopy(utf8, 0, buf, pos, utf8.length);
+		pos += utf8.length;
+		return this;
+	}
+
+	/**
+	 * {@link Name}s and other ASCII sequences are copied as they are, others
+	 * are decoded in their {@link ByteSequence#charset()}.
+	 */
+	public HtmlWriter append(ByteSequence<?> s) {
+		if (US_ASCII.equals(s.charset()))
+			return append(s.readonlyBytes());
+		return append(s.toString());
+	}
+
+	public HtmlWriter append(char c) {
+		if (c >= 0x80)
+			return append(String.valueOf(c));
+		if (pos == buf.length)
+			writeBuffer();
+		buf[pos++] = (byte) c;
+		return this;
 	}
 
 	public HtmlWriter append(CharSequence s) {
-		out.append(s);
+		for (int i = 0, len = s.length(); i < len; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				append(c);
+			} else if (Character.isHighSurrogate(c) && i+1 < len) {
+				append(new String(new char[] { c, s.charAt(++i) }).getBytes(UTF_8));
+			} else {
+				append(String.valueOf(c).getBytes(UTF_8));
+			}
+		}
 		return this;
 	}
 
+	public HtmlWriter append(int n) {
+		if (n < 0) {
+			return append(String.valueOf(n));
+		}
+		if (buf.length - pos < 10)
+			writeBuffer();
+		int len = 1;
+		for (int x = n; x >= 10; x /= 10)
+			len++;
+		for (int i = pos + len - 1; i >= pos; i--) {
+			buf[i] = (byte) ('0' + n % 10);
+			n /= 10;
+		}
+		pos += len;
+		return this;
+	}
+
+	/**
+	 * Sends what has been written so far to the browser.
+	 */
+	public void flush() {
+		writeBuffer();
+		try {
+			out.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Sends the rest of the page and returns the buffer to the pool. The
+	 * stream itself is not closed.
+	 */
+	@Override
+	public void close() {
+		if (buf == null)
+			return;
+		try {
+			flush();
+		} finally {
+			BUFFERS.offer(buf);
+			buf = null;
+		}
+	}
+
+	private void writeBuffer() {
+		if (pos > 0) {
+			write(buf, pos);
+			pos = 0;
+		}
+	}
+
+	private void write(byte[] bytes, int len) {
+		try {
+			out.write(bytes, 0, len);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
 	public void versionLink(Task task) {
-		out.append("<a class='vn' href='").append(task.output.name).append("/v/").append(task.base.name).append("/'>").append(task.base.name).append("</a>");
+		append(VERSION_LINK_1).append(task.output.name).append(VERSION_LINK_2).append(task.base.name).append(LINK_CLOSE).append(task.base.name).append(LINK_END);
 	}
 
 	public void userLink(Name user) {
 		if (user.isRegular()) {
-			out.append(" <a href='/user/").append(user.display()).append("/'>").append(user).append("</a>");
+			append(USER_LINK).append(user.display()).append(LINK_CLOSE).append(user).append(LINK_END);
 		} else {
-			out.append(" <i>").append(user.display()).append("</i>");
+			append(USER_I).append(user.display()).append(USER_I_END);
 		}
 	}
 
 	public void areaLink(Area area) {
-		out.append("<a href='").append(area.output).append("/").append(area.name).append("/'>").append(area.name).append("</a>");
+		append(AREA_LINK).append(area.output).append('/').append(area.name).append(LINK_CLOSE).append(area.name).append(LINK_END);
 	}
 
 	public void taskLink(Task task) {
-		commandLink(task, "idn", Command.query, "#"+task.id);
+		commandLink(task, IDN_CSS, Command.query, null);
 	}
 
 	public void stressLink(Task task) {
-		commandLink(task, "stress btn", Command.stress,"!");
+		commandLink(task, STRESS_CSS, Command.stress, STRESS_LABEL);
 	}
 
-	public void commandLink(Task task, String cssClasses, Command command, String label) {
-		out.append("<a class='").append(cssClasses).append("' href='/").append(command.name()).append("/").append(task.output.name).append("/").append(task.id.toString()).append("/'>").append(label).append("</a>");
+	public void commandLink(Task task, byte[] cssClasses, Command command, byte[] label) {
+		append(COMMAND_LINK).append(cssClasses).append(COMMAND_LINK_HREF).append(command.name()).append('/')
+			.append(task.output.name).append('/').append(task.id.num).append(LINK_CLOSE);
+		if (label == null) {
+			append('#').append(task.id.num);
+		} else {
+			append(label);
+		}
+		append(LINK_END);
 	}
 
 	public void legend() {
-		out.append("<div class='footer'><div class='column'>");
-		renderTable(Coloration.cause, Cause.class);
-		renderTable(Coloration.status, Status.class);
-		renderTable(Coloration.goal, Goal.class);
-		renderTable(Coloration.heat, Heat.class);
-		out.append("</div></div>");
-	}
-
-	private void renderTable(Coloration scheme, Class<? extends Enum<?>> type) {
-		out.append("<table class='legend scheme-").append(scheme.name()).append("'>");
-		out.append("<tr><th>").append(scheme.name()).append("</th></td>");
-		for (Enum<?> v : type.getEnumConstants()) {
-			out.append("<tr class='").append(scheme.name()).append("-").append(v.name()).append("'><td>").append(v.name()).append("</td></tr>");
-		}
-		out.append("</table>");
+		append(LEGEND);
 	}
 
 	public void footer() {
-		out.append("</body>");
+		append(FOOTER);
 	}
 
 	public void header() {
-		out.append("<!DOCTYPE html><head><title>collaborate!</title>");
-		out.append("<link rel='stylesheet' href='/static/collaborate.css'></head><body>");
+		append(HEADER);
 	}
 }
@@ -1,25 +1,61 @@
 package se.jbee.task.html;
 
+import static se.jbee.task.html.HtmlWriter.utf8;
 import static se.jbee.task.model.Date.date;
 
 import se.jbee.task.api.ListView;
 import se.jbee.task.api.Param.Command;
 import se.jbee.task.api.View;
 import se.jbee.task.cache.Matches;
+import se.jbee.task.model.Cause;
 import se.jbee.task.model.Criteria;
 import se.jbee.task.model.Criteria.Coloration;
 import se.jbee.task.model.Criteria.Property;
+import se.jbee.task.model.Goal;
+import se.jbee.task.model.Heat;
 import se.jbee.task.model.Name;
 import se.jbee.task.model.Names;
 import se.jbee.task.model.Page;
+import se.jbee.task.model.Status;
 import se.jbee.task.model.Task;
 
 public class ListViewHtmlRenderer implements HtmlRenderer<ListView> {
 
+	// markup of each task row, encoded once
+	private static final byte[] ROW = utf8("<tr");
+	private static final byte[] ROW_HEAT = utf8(" data-heat='");
+	private static final byte[] ROW_BODY = utf8("'><td>");
+	private static final byte[] CELL_GIST = utf8("</td><td><h5>");
+	private static final byte[] GIST_PROTECTED = utf8("<i>(protected)</i>");
+	private static final byte[] CELL_LINKS = utf8("</h5>");
+	private static final byte[] SPACE = utf8("&emsp;");
+	private static final byte[] CELL_USERS = utf8("</td><td>");
+	private static final byte[] ROW_END = utf8("</td></tr>");
+	private static final byte[] BTN_CSS = utf8("btn");
+	private static final byte[] ABANDON_LABEL = utf8("&minus;");
+	private static final byte[] ENLIST_LABEL = utf8("&plus;");
+	private static final byte[] ASPIRANTS = utf8("<b>[...</b>");
+	private static final byte[] ASPIRANTS_END = utf8(" <b>]</b>");
+	private static final byte[] CSS = utf8(" class='");
+	private static final byte[] CSS_EXPLOITABLE = utf8(" exploitable");
+	private static final byte[] CSS_END = utf8("'");
+	private static final byte[][] CSS_STATUS = cssClasses("status", Status.values());
+	private static final byte[][] CSS_GOAL = cssClasses("goal", Goal.values());
+	private static final byte[][] CSS_CAUSE = cssClasses("cause", Cause.values());
+	private static final byte[][] CSS_HEAT = cssClasses("heat", Heat.values());
+
+	private static byte[][] cssClasses(String prefix, Enum<?>[] values) {
+		byte[][] res = new byte[values.length][];
+		for (Enum<?> v : values)
+			res[v.ordinal()] = utf8(" "+prefix+"-"+v.name());
+		return res;
+	}
+
 	@Override
 	public void render(ListView view, HtmlWriter out) {
 		out.header();
 		renderMenu(view.menu, out);
+		out.flush(); // browser can start loading the CSS
 		renderList(view, view.results, out);
 
 		out.legend();
@@ -47,6 +83,7 @@ public class ListViewHtmlRenderer implements HtmlRenderer<ListView> {
 			if (e instanceof Criteria) {
 				out.append("<h2>").append("TODO use last name").append("</h2>");
 				render(page, (Criteria) e, matches[i++], out);
+				out.flush();
 			} else {
 				out.append(e.toString());
 				//TODO open new columns on --------
@@ -70,57 +107,57 @@ public class ListViewHtmlRenderer implements HtmlRenderer<ListView> {
 			render(page, task, out);
 		}
 		out.append("</table>");
+		if (!matches.plan.isEmpty()) {
+			// no dash at all so that nothing in the plan can end the comment
+			out.append("<!-- plan: ").append(matches.plan.replace('-', '\u2010')).append(" -->");
+		}
 	}
 
 	private void render(ListView page, Task task, HtmlWriter out) {
-		out.append("<tr");
+		out.append(ROW);
 		renderCssClasses(page, task, out);
-		out.append(" data-heat='").append(String.valueOf(task.emphasis)).append("'");
-		out.append(">");
-		out.append("<td>");
+		out.append(ROW_HEAT).append(task.emphasis);
+		out.append(ROW_BODY);
 		if (page.actor.canEmphasise(page.now) && task.canBeEmphasisedBy(page.actor.alias)) {
 			out.stressLink(task);
 		}
-		out.append("</td>");
-		out.append("<td>");
-		out.append("<h5>");
+		out.append(CELL_GIST);
 			out.taskLink(task);
-		out.append(" ");
+		out.append(' ');
 		if (task.isVisibleTo(page.actor.alias)) {
-			out.append(task.gist.toString());
+			out.append(task.gist);
 		} else {
-			out.append("<i>(protected)</i>");
+			out.append(GIST_PROTECTED);
 		}
-		out.append("</h5>");
+		out.append(CELL_LINKS);
 		if (task.area != null) {
 			out.areaLink(task.area);
 			if (false) {
 				out.append("<span title='").append(task.area.maintainers.toString()).append("'>'").append(String.valueOf(task.area.maintainers.count())).append("</span>");
 			}
 		}
-		out.append("&emsp;");
+		out.append(SPACE);
 		if (task.base != null) {
 			out.versionLink(task);
 		}
-		out.append("</td><td>");
+		out.append(CELL_USERS);
 		if (page.actor.isAuthenticated()) {
 			if (task.aspirants.contains(page.actor) || task.participants.contains(page.actor)) {
-				out.commandLink(task, "btn", Command.abandon, "&minus;");
+				out.commandLink(task, BTN_CSS, Command.abandon, ABANDON_LABEL);
 			} else {
-				out.commandLink(task, "btn", Command.enlist, "&plus;");
+				out.commandLink(task, BTN_CSS, Command.enlist, ENLIST_LABEL);
 			}
 		}
 		renderUsersList(task, out);
-		out.append("</td>");
-		out.append("</tr>");
+		out.append(ROW_END);
 	}
 
 	private void renderUsersList(Task task, HtmlWriter out) {
 		if (task.supporterCount() > 0) {
 			if (task.aspirants.count() > 0) {
-				out.append("<b>[...</b>");
+				out.append(ASPIRANTS);
 				renderUsersLinks(task.aspirants, out);
-				out.append(" <b>]</b>");
+				out.append(ASPIRANTS_END);
 			}
 			renderUsersLinks(task.participants, out);
 		}
@@ -133,15 +170,15 @@ public class ListViewHtmlRenderer implements HtmlRenderer<ListView> {
 	}
 
 	private void renderCssClasses(View page, Task task, HtmlWriter out) {
-		out.append(" class='");
-		out.append(" status-").append(task.status.name());
-		out.append(" goal-").append(task.goal.name());
-		out.append(" cause-").append(task.cause.name());
-		out.append(" heat-").append(task.heat(date(page.now)).name());
+		out.append(CSS);
+		out.append(CSS_STATUS[task.status.ordinal()]);
+		out.append(CSS_GOAL[task.goal.ordinal()]);
+		out.append(CSS_CAUSE[task.cause.ordinal()]);
+		out.append(CSS_HEAT[task.heat(date(page.now)).ordinal()]);
 		if (task.exploitable) {
-			out.append(" exploitable");
+			out.append(CSS_EXPLOITABLE);
 		}
-		out.append("'");
+		out.append(CSS_END);
 	}
 
 }
@@ -1,12 +1,14 @@
 package se.jbee.task.http;
 
-import java.io.PrintWriter;
 import java.net.HttpURLConnection;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import se.jbee.task.api.ListView;
 import se.jbee.task.api.Param;
 import se.jbee.task.api.Params;
+import se.jbee.task.api.Response;
 import se.jbee.task.api.SampleView;
 import se.jbee.task.api.UserInterface;
 import se.jbee.task.api.View;
@@ -29,11 +31,11 @@ public class HttpUserInterface implements UserInterface {
 	}
 
 	@Override
-	public int respond(Params params, PrintWriter out) {
+	public int respond(Params params, Response response) {
 		if (Command.sample.name().equals(params.get(Param.command))) {
-			runAndRender(SampleView.class, params, out);
+			runAndRender(SampleView.class, params, response);
 		} else {
-			runAndRender(ListView.class, params, out);
+			runAndRender(ListView.class, params, response);
 		}
 		//TODO render page
 		if (true)
@@ -41,11 +43,43 @@ public class HttpUserInterface implements UserInterface {
 		return HttpURLConnection.HTTP_NOT_FOUND;
 	}
 
-	private <T extends View> void runAndRender(Class<T> pageType, Params params, PrintWriter out) {
-		T page = views.run(params, pageType);
+	@Override
+	public CompletableFuture<Integer> respondAsync(Params params, Response response, Executor executor) {
+		Class<? extends View> pageType = pageType(params);
+		return views.runAsync(params, pageType).thenApplyAsync((page) -> {
+			render(pageType, page, response);
+			return HttpURLConnection.HTTP_OK;
+		}, executor);
+	}
+
+	@Override
+	public String validator(Params params) {
+		return views.validator(params, pageType(params));
+	}
+
+	private static Class<? extends View> pageType(Params params) {
+		return Command.sample.name().equals(params.get(Param.command))
+				? SampleView.class
+				: ListView.class;
+	}
+
+	private <T extends View> void runAndRender(Class<T> pageType, Params params, Response response) {
+		render(pageType, views.run(params, pageType), response);
+	}
+
+	/**
+	 * The page is available so the status and its validator are known before
+	 * it is written.
+	 */
+	private <T extends View> void render(Class<T> pageType, View page, Response response) {
 		@SuppressWarnings("unchecked")
 		HtmlRenderer<T> renderer = (HtmlRenderer<T>) renderers.get(pageType);
-		renderer.render(page, new HtmlWriter(out));
+		response.status(HttpURLConnection.HTTP_OK);
+		if (page instanceof ListView)
+			response.validator(((ListView) page).validator);
+		try (HtmlWriter html = new HtmlWriter(response.body())) {
+			renderer.render(pageType.cast(page), html);
+		}
 	}
 
 }
@@ -1,7 +1,12 @@
 package se.jbee.task.http;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -9,6 +14,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.server.handler.HandlerList;
@@ -16,25 +22,43 @@ import org.eclipse.jetty.server.handler.ResourceHandler;
 import org.eclipse.jetty.server.session.HashSessionIdManager;
 import org.eclipse.jetty.server.session.HashSessionManager;
 import org.eclipse.jetty.server.session.SessionHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import se.jbee.task.api.Param;
 import se.jbee.task.api.Params;
+import se.jbee.task.api.Response;
 import se.jbee.task.api.UserInterface;
+import se.jbee.task.util.Metrics;
+import se.jbee.task.util.Metrics.Counter;
+import se.jbee.task.util.Metrics.Histogram;
 
 public class JettyHttpServer extends AbstractHandler {
 
+	private static final Histogram REQUESTS = Metrics.histogram("http_request_seconds", "Time to respond to dynamic requests");
+	private static final Counter NOT_MODIFIED = Metrics.counter("http_not_modified_total", "Requests answered with 304 Not Modified");
+	private static final AtomicLong SUSPENDED = new AtomicLong();
+
+	static {
+		Metrics.gauge("http_requests_suspended", "Requests waiting for results without occupying a thread", SUSPENDED::get);
+	}
+
 	public static Server create(se.jbee.task.engine.Server config, UserInterface ui) {
-		Server httpServer = new Server(config.port);
+		QueuedThreadPool pool = new QueuedThreadPool(config.threads);
+		pool.setName("task-http");
+		Server httpServer = new Server(pool);
+		ServerConnector connector = new ServerConnector(httpServer);
+		connector.setPort(config.port);
+		httpServer.addConnector(connector);
 		HandlerList handlers = new HandlerList();
 		handlers.addHandler(staticContentHandler(config));
-		handlers.addHandler(dynamicContentHandler(ui));
+		handlers.addHandler(dynamicContentHandler(ui, config.isAsync()));
 		httpServer.setHandler(handlers);
 		httpServer.setSessionIdManager(new HashSessionIdManager());
 		return httpServer;
 	}
 
-	private static Handler dynamicContentHandler(UserInterface ui) {
-		JettyHttpServer app = new JettyHttpServer(ui);
+	private static Handler dynamicContentHandler(UserInterface ui, boolean async) {
+		JettyHttpServer app = new JettyHttpServer(ui, async);
 		HashSessionManager manager = new HashSessionManager();
 		SessionHandler sessions = new SessionHandler(manager);
 		sessions.setHandler(app);
@@ -54,9 +78,19 @@ public class JettyHttpServer extends AbstractHandler {
 	}
 
 	private final UserInterface ui;
+	/**
+	 * When true requests are suspended while waiting for results computed in
+	 * the background, see {@link UserInterface#respondAsync(Params, Response, java.util.concurrent.Executor)}.
+	 */
+	private final boolean async;
 
 	public JettyHttpServer(UserInterface ui) {
+		this(ui, false);
+	}
+
+	public JettyHttpServer(UserInterface ui, boolean async) {
 		this.ui = ui;
+		this.async = async;
 	}
 
 	@Override
@@ -64,18 +98,120 @@ public class JettyHttpServer extends AbstractHandler {
 			throws IOException, ServletException {
 		if ("/favicon.ico".equals(target)) {
 			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+		} else if ("/metrics".equals(target)) {
+			metrics(request, response);
 		} else {
 			response.setContentType("text/html; charset=utf-8");
-			Params params = Params.fromPath(target, !request.getMethod().equalsIgnoreCase("GET"));
+			boolean isGET = request.getMethod().equalsIgnoreCase("GET");
+			Params params = Params.fromPath(target, !isGET);
 			params.set(Param.actor, baseRequest.getSession(true).getId());
 			if (params.getOrDefault(Param.viewed, "").equals("@")) {
 				params.set(Param.viewed, params.get(Param.actor));
 			}
 			long nsStart = System.nanoTime();
-			response.setStatus(ui.respond(params, response.getWriter()));
-			System.out.println((System.nanoTime() - nsStart)/1000000L+" ms");
+			if (isGET && notModified(params, request, response)) {
+				REQUESTS.since(nsStart);
+			} else if (async) {
+				respondAsync(params, request, response, nsStart);
+			} else {
+				ui.respond(params, response(response));
+				REQUESTS.since(nsStart);
+			}
 		}
 		baseRequest.setHandled(true);
 	}
 
+	/**
+	 * Answers with 304 when the client already has the page in the state it
+	 * would be rendered now. Otherwise the page is rendered and its ETag is
+	 * the validator of what actually got rendered, see
+	 * {@link Response#validator(String)}.
+	 *
+	 * @return true, if the request was answered
+	 */
+	private boolean notModified(Params params, HttpServletRequest request, HttpServletResponse response) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch == null)
+			return false;
+		String etag = ui.validator(params);
+		if (etag == null || !matches(ifNoneMatch, etag))
+			return false;
+		NOT_MODIFIED.inc();
+		response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		response.setHeader("ETag", etag);
+		return true;
+	}
+
+	/**
+	 * @param ifNoneMatch a list of ETags (weak or strong) or <code>*</code>
+	 */
+	static boolean matches(String ifNoneMatch, String etag) {
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.equals("*") || tag.equals(etag) || tag.startsWith("W/") && tag.substring(2).equals(etag))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The request is suspended and the thread returns to the pool. The page
+	 * is written by a pool thread again once its results are available.
+	 *
+	 * The status is set by the {@link UserInterface} before the page is
+	 * written. Only a failure before that can still be answered with an error
+	 * status.
+	 */
+	private void respondAsync(Params params, HttpServletRequest request, HttpServletResponse response, long nsStart) {
+		AsyncContext ctx = request.startAsync();
+		SUSPENDED.incrementAndGet();
+		ui.respondAsync(params, response(response), ctx::start).whenComplete((status, e) -> {
+			SUSPENDED.decrementAndGet();
+			if (e != null && !response.isCommitted())
+				response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			REQUESTS.since(nsStart);
+			ctx.complete();
+		});
+	}
+
+	private static Response response(HttpServletResponse response) {
+		return new Response() {
+
+			@Override
+			public void status(int code) {
+				response.setStatus(code);
+			}
+
+			@Override
+			public void validator(String validator) {
+				if (validator != null) {
+					response.setHeader("ETag", validator);
+					response.setHeader("Cache-Control", "private, no-cache");
+				}
+			}
+
+			@Override
+			public OutputStream body() {
+				try {
+					return response.getOutputStream();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * The {@link Metrics} in Prometheus text format, only available locally.
+	 */
+	private static void metrics(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		if (!InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress()) {
+			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+		response.setStatus(HttpServletResponse.SC_OK);
+		Metrics.write(response.getWriter());
+	}
+
 }
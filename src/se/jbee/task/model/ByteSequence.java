@@ -65,6 +65,19 @@ public interface ByteSequence<T extends ByteSequence<T>> extends CharSequence, C
 		return true;
 	}
 
+	default boolean endsWith(ByteSequence<?> suffix) {
+		byte[] textbody = readonlyBytes();
+		byte[] searchterm = suffix.readonlyBytes();
+		int offset = textbody.length - searchterm.length;
+		if (offset < 0)
+			return false;
+		for (int i = 0; i < searchterm.length; i++) {
+			if (textbody[offset+i] != searchterm[i])
+				return false;
+		}
+		return true;
+	}
+
 	public static int compare(ByteSequence<?> a, ByteSequence<?> b) {
 		byte[] sa = a.readonlyBytes();
 		byte[] sb = b.readonlyBytes();
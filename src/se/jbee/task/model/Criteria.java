@@ -26,6 +26,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.function.BiFunction;
@@ -91,8 +92,33 @@ public final class Criteria implements Iterable<Criteria.Criterium>, Bindable {
 		return new Criteria(new Criterium(Property.output, eq, output));
 	}
 
+	/**
+	 * The number of parsed queries and of compiled {@link Criteria} kept.
+	 */
+	private static final int PLAN_CACHE_SIZE = 256;
+
+	/**
+	 * The most recently parsed queries by their text
+	 */
+	private static final Map<String, Criteria> parsed = lru(PLAN_CACHE_SIZE);
+	/**
+	 * The most recently compiled {@link Criteria} by their {@link #toString()}
+	 */
+	private static final Map<String, TaskPredicate> plans = lru(PLAN_CACHE_SIZE);
+
+	private static <V> Map<String, V> lru(int capacity) {
+		return new LinkedHashMap<String, V>(capacity, 0.75f, true) {
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
 	private final Criterium[] criteria;
 	public final boolean unbound;
+	private TaskPredicate predicate;
 
 	public Criteria(Criterium... criteria) {
 		this.criteria = criteria;
@@ -145,15 +171,41 @@ public final class Criteria implements Iterable<Criteria.Criterium>, Bindable {
 	}
 
 	public Task[] filter(Iterator<Task> tasks, Date today) {
+		TaskPredicate p = compile();
 		List<Task> res = new ArrayList<>();
 		while (tasks.hasNext()) {
 			Task t = tasks.next();
-			if (matches(t, today))
+			if (p.test(t, today))
 				res.add(t);
 		}
 		return res.toArray(new Task[0]);
 	}
 
+	/**
+	 * The compiled form of {@link #matches(Task, Date)}. Equal {@link Criteria}
+	 * (same {@link #toString()}) share the compiled {@link TaskPredicate} as
+	 * long as it is among the most recently used.
+	 */
+	public TaskPredicate compile() {
+		TaskPredicate res = predicate;
+		if (res != null)
+			return res;
+		String key = toString();
+		synchronized (plans) {
+			res = plans.get(key);
+		}
+		if (res == null) {
+			res = TaskPredicate.ALL;
+			for (Criterium c : criteria)
+				res = res.and(TaskPredicates.compile(c));
+			synchronized (plans) {
+				plans.put(key, res);
+			}
+		}
+		predicate = res;
+		return res;
+	}
+
 	public boolean matches(Task t, Date today) {
 		for (Criterium c : criteria)
 			if (!c.matches(t, today))
@@ -185,7 +237,28 @@ public final class Criteria implements Iterable<Criteria.Criterium>, Bindable {
 
 	private static final Pattern CRITERIUM = Pattern.compile("\\s*\\[([a-z]+)\\s*([=<>?!~]{1,2})\\s*([^\\]]+)\\]", Pattern.MULTILINE);
 
+	/**
+	 * Queries given as {@link String} are only parsed once as long as they are
+	 * among the most recently used.
+	 */
 	public static Criteria parse(CharSequence s) throws CriteriumMalformed {
+		if (!(s instanceof String))
+			return parseUncached(s);
+		String query = (String) s;
+		Criteria res;
+		synchronized (parsed) {
+			res = parsed.get(query);
+		}
+		if (res == null) {
+			res = parseUncached(query);
+			synchronized (parsed) {
+				parsed.put(query, res);
+			}
+		}
+		return res;
+	}
+
+	static Criteria parseUncached(CharSequence s) throws CriteriumMalformed {
 		Matcher m = CRITERIUM.matcher(s);
 		List<Criterium> res = new ArrayList<>();
 		while (m.find()) {
@@ -199,8 +272,8 @@ public final class Criteria implements Iterable<Criteria.Criterium>, Bindable {
 			}
 			String[] val = parseValue(v);
 			if (val.length == 1) {
-				// just to get rid of those special cases right away
-				if (!prop.isSetValue()) {
+				// just to get rid of those special cases right away (for texts ~ means contains)
+				if (!prop.isSetValue() && prop.type != text) {
 					if (op == in)
 						op = eq;
 					if (op == nin)
@@ -354,9 +427,17 @@ public final class Criteria implements Iterable<Criteria.Criterium>, Bindable {
 		public boolean matches(Task t, Date today) {
 			if (left.isResultProperty())
 				return true; // basically we ignore these as filter
-			Comparable<?> val = left.access(t, today);
+			return matches(left.access(t, today),
+					isPropertyComparison() ? right.access(t, today) : null);
+		}
+
+		/**
+		 * @param val the value of the {@link #left} property
+		 * @param val2 the value of the {@link #right} property, ignored if this
+		 *        is not a {@link #isPropertyComparison()}
+		 */
+		public boolean matches(Comparable<?> val, Comparable<?> val2) {
 			if (isPropertyComparison()) {
-				Comparable<?> val2 = right.access(t, today);
 				switch (op) {
 				case in:  return contains(val, val2);
 				case eq:  return equals(val, val2);
@@ -369,6 +450,8 @@ public final class Criteria implements Iterable<Criteria.Criterium>, Bindable {
 				default:  return false;
 				}
 			}
+			if (left.type == text)
+				return matchesText(val);
 			switch (op) {
 			// set comparisons
 			case eq:  return equals(val, rvalues);
@@ -384,6 +467,58 @@ public final class Criteria implements Iterable<Criteria.Criterium>, Bindable {
 			}
 		}
 
+		/**
+		 * Texts are compared by content: <code>=</code> is equal to,
+		 * <code>~</code> contains, <code>&gt;</code> starts with and
+		 * <code>&lt;</code> ends with the value. A {@link Property#url}
+		 * matches if any of the {@link Attachments} does.
+		 */
+		private boolean matchesText(Comparable<?> val) {
+			switch (op) {
+			case eq:  return rvalues.length == 1 && matchesText(val, eq, (Gist) rvalues[0]);
+			case neq: return rvalues.length != 1 || !matchesText(val, eq, (Gist) rvalues[0]);
+			case in:  return containsText(val);
+			case nin: return !containsText(val);
+			case gt:
+			case lt:  return matchesText(val, op, (Gist) rvalues[0]);
+			default:  return false;
+			}
+		}
+
+		private boolean containsText(Comparable<?> val) {
+			for (int i = 0; i < rvalues.length; i++)
+				if (matchesText(val, in, (Gist) rvalues[i]))
+					return true;
+			return false;
+		}
+
+		private static boolean matchesText(Comparable<?> val, Operator op, Gist term) {
+			if (val instanceof Attachments) {
+				for (URL url : (Attachments) val)
+					if (matchesText(url.toString(), op, term.toString()))
+						return true;
+				return false;
+			}
+			if (!(val instanceof Gist))
+				return false;
+			Gist text = (Gist) val;
+			switch (op) {
+			case eq: return text.equalTo(term);
+			case gt: return text.startsWith(term);
+			case lt: return text.endsWith(term);
+			default: return text.contains(term);
+			}
+		}
+
+		private static boolean matchesText(String text, Operator op, String term) {
+			switch (op) {
+			case eq: return text.equals(term);
+			case gt: return text.startsWith(term);
+			case lt: return text.endsWith(term);
+			default: return text.contains(term);
+			}
+		}
+
 		private boolean equals(Comparable<?> lv, Comparable<?> rv) {
 			if (left.type == name) {
 				boolean leftIsSet = left.isSetValue();
@@ -443,13 +578,6 @@ public final class Criteria implements Iterable<Criteria.Criterium>, Bindable {
 				}
 				return false;
 			}
-			if (left.type == text) {
-				Gist g = (Gist) val;
-				for (int i = 0; i < anyOf.length; i++)
-					if (g.contains((Gist)anyOf[i]))
-						return true;
-				return false;
-			}
 			if (anyOf.length == 1)
 				return anyOf[0].equals(val);
 			for (int i = 0; i < anyOf.length; i++)
@@ -634,6 +762,7 @@ public final class Criteria implements Iterable<Criteria.Criterium>, Bindable {
 		public Comparable<?> access(Task t, Date today) {
 			switch (this) {
 			case emphasis: return t.emphasis;
+			case temperature: return t.temperature(today);
 			case heat: return t.heat(today);
 			case status: return t.status;
 			case goal: return t.goal;
@@ -643,9 +772,10 @@ public final class Criteria implements Iterable<Criteria.Criterium>, Bindable {
 			case resolved: return t.resolved;
 			case exploitable : return t.exploitable;
 			case archived: return t.archived;
-			case age: t.age(today);
+			case age: return t.age(today);
 			default:
 			case id: return t.id;
+			case url: return t.attachments;
 			case origin: return t.origin;
 			case basis: return t.basis;
 			case serial: return t.serial;
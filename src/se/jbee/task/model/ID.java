@@ -96,13 +96,44 @@ public final class ID extends Identifier<ID> {
 		return entity.type == Type.history ? entity : new ID(Type.history, join(Type.history.symbol, DIVIDER, entity.readonlyBytes()));
 	}
 
+	/**
+	 * @return the key prefix shared by all IDs of the given type that start
+	 *         with the given names, e.g. all {@link Task}s of an
+	 *         {@link Output} or all {@link Page}s of a menu
+	 */
+	public static byte[] prefix(Type type, Name... names) {
+		if (type == Type.event)
+			return new byte[0];
+		// task keys do not start with the type symbol
+		byte[] prefix = type == Type.Task ? null : type.symbol;
+		for (Name n : names) {
+			prefix = prefix == null ? n.readonlyBytes() : join(prefix, DIVIDER, n.readonlyBytes());
+		}
+		return prefix == null ? new byte[0] : join(prefix, DIVIDER);
+	}
+
+	/**
+	 * @return the {@link ID} of a key read from the given type's collection
+	 */
+	public static ID fromBytes(Type type, byte[] bytes) {
+		return new ID(type, bytes);
+	}
+
 	public static ID fromBytes(byte[] bytes) {
 		if (bytes[1] != DIVIDER[0]) {
-			return new ID(Type.event, bytes);
+			// a key without a : is an event, task keys start with the output name
+			return new ID(contains(bytes, DIVIDER[0]) ? Type.Task : Type.event, bytes);
 		}
 		return new ID(Type.fromSymbol(bytes[0]), bytes);
 	}
 
+	private static boolean contains(byte[] bytes, byte b) {
+		for (int i = 0; i < bytes.length; i++)
+			if (bytes[i] == b)
+				return true;
+		return false;
+	}
+
 	public ID entity() {
 		return type == Type.history ? fromBytes(copyOfRange(readonlyBytes(), 2, readonlyBytes().length)) : this;
 	}
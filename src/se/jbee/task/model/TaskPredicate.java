@@ -0,0 +1,31 @@
+package se.jbee.task.model;
+
+import se.jbee.task.model.Criteria.Criterium;
+
+/**
+ * A test of a {@link Task} compiled from {@link Criteria} by
+ * {@link Criteria#compile()}.
+ *
+ * Unlike {@link Criteria#matches(Task, Date)} the {@link Criterium}s are not
+ * interpreted for each {@link Task} again. The {@link Criteria.Operator},
+ * the accessed field and the values are resolved once so that testing a
+ * {@link Task} compares primitives (numbers, dates, enum ordinals and flags)
+ * without boxing or allocating.
+ */
+@FunctionalInterface
+public interface TaskPredicate {
+
+	TaskPredicate ALL = (t, today) -> true;
+
+	TaskPredicate NONE = (t, today) -> false;
+
+	boolean test(Task t, Date today);
+
+	default TaskPredicate and(TaskPredicate other) {
+		if (this == ALL)
+			return other;
+		if (other == ALL)
+			return this;
+		return (t, today) -> test(t, today) && other.test(t, today);
+	}
+}
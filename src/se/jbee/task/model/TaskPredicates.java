@@ -0,0 +1,223 @@
+package se.jbee.task.model;
+
+import se.jbee.task.model.Criteria.Criterium;
+import se.jbee.task.model.Criteria.Operator;
+
+/**
+ * Compiles a {@link Criterium} to a {@link TaskPredicate} with the same
+ * semantics as {@link Criterium#matches(Task, Date)}.
+ *
+ * Numbers, dates, flags and enum constants are all compared as
+ * <code>int</code>s: the number itself, the epoch day, 0/1 or the ordinal.
+ * {@link Name}s are compared directly. Everything else (texts, property
+ * comparisons, {@link IDN}s) is left to {@link Criterium#matches(Task, Date)}.
+ */
+final class TaskPredicates {
+
+	private TaskPredicates() {
+		throw new UnsupportedOperationException("util");
+	}
+
+	@FunctionalInterface
+	private interface IntField {
+
+		int of(Task t, Date today);
+	}
+
+	@FunctionalInterface
+	private interface IntTest {
+
+		boolean test(int val);
+	}
+
+	@FunctionalInterface
+	private interface Field<T> {
+
+		T of(Task t, Date today);
+	}
+
+	static TaskPredicate compile(Criterium c) {
+		if (c.left.isResultProperty())
+			return TaskPredicate.ALL;
+		if (c.unbound || c.isPropertyComparison() || c.rvalues.length == 0)
+			return c::matches;
+		switch (c.left) {
+		case emphasis:    return number((t, today) -> t.emphasis, c);
+		case temperature: return number((t, today) -> t.temperature(today), c);
+		case age:         return number((t, today) -> t.age(today), c);
+		case reported:    return date((t, today) -> t.reported, c);
+		case resolved:    return date((t, today) -> t.resolved, c);
+		case exploitable: return flag((t, today) -> t.exploitable ? 1 : 0, c);
+		case archived:    return flag((t, today) -> t.archived ? 1 : 0, c);
+		case status:      return constant((t, today) -> t.status, c);
+		case goal:        return constant((t, today) -> t.goal, c);
+		case cause:       return constant((t, today) -> t.cause, c);
+		case heat:        return constant((t, today) -> t.heat(today), c);
+		case version:     return name((t, today) -> t.base.name, c);
+		case reporter:    return name((t, today) -> t.reporter, c);
+		case solver:      return name((t, today) -> t.solver, c);
+		case area:        return name((t, today) -> t.area.name, c);
+		case output:      return name((t, today) -> t.output.name, c);
+		case aspirant:    return names((t, today) -> t.aspirants, c);
+		case participant: return names((t, today) -> t.participants, c);
+		case supporter:   return names((t, today) -> t.supporters(), c);
+		case maintainer:  return names((t, today) -> t.area.maintainers, c);
+		case watcher:     return names((t, today) -> t.watchers, c);
+		default:          return c::matches;
+		}
+	}
+
+	private static TaskPredicate number(IntField field, Criterium c) {
+		int[] vals = new int[c.rvalues.length];
+		for (int i = 0; i < vals.length; i++) {
+			if (!(c.rvalues[i] instanceof Integer))
+				return c::matches;
+			vals[i] = (Integer) c.rvalues[i];
+		}
+		IntTest test = test(c.op, vals);
+		return (t, today) -> test.test(field.of(t, today));
+	}
+
+	private static TaskPredicate flag(IntField field, Criterium c) {
+		int[] vals = new int[c.rvalues.length];
+		for (int i = 0; i < vals.length; i++) {
+			if (!(c.rvalues[i] instanceof Boolean))
+				return c::matches;
+			vals[i] = (Boolean) c.rvalues[i] ? 1 : 0;
+		}
+		IntTest test = test(c.op, vals);
+		return (t, today) -> test.test(field.of(t, today));
+	}
+
+	/**
+	 * A {@link Task} without the date only matches the negating
+	 * {@link Operator}s.
+	 */
+	private static TaskPredicate date(Field<Date> field, Criterium c) {
+		int[] vals = new int[c.rvalues.length];
+		for (int i = 0; i < vals.length; i++) {
+			if (!(c.rvalues[i] instanceof Date))
+				return c::matches;
+			vals[i] = ((Date) c.rvalues[i]).epochDay;
+		}
+		IntTest test = test(c.op, vals);
+		boolean absent = isNegation(c.op);
+		return (t, today) -> {
+			Date val = field.of(t, today);
+			return val == null ? absent : test.test(val.epochDay);
+		};
+	}
+
+	private static TaskPredicate constant(Field<? extends Enum<?>> field, Criterium c) {
+		int[] vals = new int[c.rvalues.length];
+		for (int i = 0; i < vals.length; i++) {
+			if (!(c.rvalues[i] instanceof Enum))
+				return c::matches;
+			vals[i] = ((Enum<?>) c.rvalues[i]).ordinal();
+		}
+		IntTest test = test(c.op, vals);
+		boolean absent = isNegation(c.op);
+		return (t, today) -> {
+			Enum<?> val = field.of(t, today);
+			return val == null ? absent : test.test(val.ordinal());
+		};
+	}
+
+	private static TaskPredicate name(Field<Name> field, Criterium c) {
+		Name[] vals = names(c);
+		if (vals == null)
+			return c::matches;
+		switch (c.op) {
+		case eq:  return vals.length != 1 ? TaskPredicate.NONE : (t, today) -> vals[0].equals(field.of(t, today));
+		case neq: return vals.length != 1 ? TaskPredicate.ALL : (t, today) -> !vals[0].equals(field.of(t, today));
+		case in:  return (t, today) -> indexOf(vals, field.of(t, today)) >= 0;
+		case nin: return (t, today) -> indexOf(vals, field.of(t, today)) < 0;
+		default:  return TaskPredicate.NONE;
+		}
+	}
+
+	private static TaskPredicate names(Field<Names> field, Criterium c) {
+		Name[] vals = names(c);
+		if (vals == null)
+			return c::matches;
+		switch (c.op) {
+		case eq:  return (t, today) -> containsExactly(field.of(t, today), vals);
+		case neq: return (t, today) -> !containsExactly(field.of(t, today), vals);
+		case in:  return (t, today) -> containsAny(field.of(t, today), vals);
+		case nin: return (t, today) -> !containsAny(field.of(t, today), vals);
+		default:  return TaskPredicate.NONE;
+		}
+	}
+
+	private static IntTest test(Operator op, int[] vals) {
+		final int val = vals[0];
+		switch (op) {
+		case eq:  return vals.length != 1 ? (v) -> false : (v) -> v == val;
+		case neq: return vals.length != 1 ? (v) -> true : (v) -> v != val;
+		case in:  return in(vals);
+		case nin: IntTest in = in(vals); return (v) -> !in.test(v);
+		case lt:  return (v) -> v <  val;
+		case le:  return (v) -> v <= val;
+		case gt:  return (v) -> v >  val;
+		case ge:  return (v) -> v >= val;
+		default:  return (v) -> false;
+		}
+	}
+
+	/**
+	 * Small values (like enum ordinals) are tested with a bit mask.
+	 */
+	private static IntTest in(int[] vals) {
+		long mask = 0L;
+		for (int v : vals) {
+			if (v < 0 || v >= Long.SIZE) {
+				return (v2) -> {
+					for (int v1 : vals)
+						if (v1 == v2)
+							return true;
+					return false;
+				};
+			}
+			mask |= 1L << v;
+		}
+		final long bits = mask;
+		return (v) -> v >= 0 && v < Long.SIZE && (bits & (1L << v)) != 0L;
+	}
+
+	private static boolean isNegation(Operator op) {
+		return op == Operator.neq || op == Operator.nin;
+	}
+
+	private static Name[] names(Criterium c) {
+		Name[] res = new Name[c.rvalues.length];
+		for (int i = 0; i < res.length; i++) {
+			if (!(c.rvalues[i] instanceof Name))
+				return null;
+			res[i] = (Name) c.rvalues[i];
+		}
+		return res;
+	}
+
+	private static int indexOf(Name[] names, Name name) {
+		for (int i = 0; i < names.length; i++)
+			if (names[i].equals(name))
+				return i;
+		return -1;
+	}
+
+	private static boolean containsAny(Names set, Name[] names) {
+		for (Name n : names)
+			if (set.contains(n))
+				return true;
+		return false;
+	}
+
+	private static boolean containsExactly(Names set, Name[] names) {
+		if (set.count() != names.length)
+			return false;
+		for (Name n : names)
+			if (!set.contains(n))
+				return false;
+		return true;
+	}
+}
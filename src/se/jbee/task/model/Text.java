@@ -1,6 +1,5 @@
 package se.jbee.task.model;
 
-import static java.nio.ByteBuffer.wrap;
 import static java.nio.charset.StandardCharsets.UTF_16BE;
 import static java.util.Arrays.copyOfRange;
 
@@ -38,7 +37,7 @@ public abstract class Text<T extends Text<T>> implements ByteSequence<T> {
 	@Override
 	public final char charAt(int index) {
 		int offset = start + (index * 2);
-		return utf16symbols[offset] == 0 ? (char)utf16symbols[offset+1] : UTF_16BE.decode(wrap(utf16symbols, offset, 2)).get();
+		return (char) ((utf16symbols[offset] & 0xFF) << 8 | utf16symbols[offset+1] & 0xFF);
 	}
 
 	@Override
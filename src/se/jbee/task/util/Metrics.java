@@ -0,0 +1,209 @@
+package se.jbee.task.util;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A registry of the application's metrics that can be written in the
+ * Prometheus text format.
+ *
+ * There are three kinds of metrics: {@link Counter}s, gauges (a
+ * {@link LongSupplier} asked when written) and {@link Histogram}s for
+ * latencies. All of them are identified by name and labels. Labels are given
+ * as pairs of label name and value.
+ *
+ * Recording is cheap enough for hot paths: {@link Histogram}s use buckets of
+ * powers of two so that finding the bucket is a bit operation and all values
+ * are {@link LongAdder}s that do not contend between threads. Metrics should
+ * be looked up once and kept in a (static) field.
+ */
+public final class Metrics {
+
+	private static final Map<String, Family> FAMILIES = new ConcurrentHashMap<>();
+
+	private Metrics() {
+		throw new UnsupportedOperationException("util");
+	}
+
+	public static Counter counter(String name, String help, String... labels) {
+		return (Counter) family(name, help, "counter").metrics.computeIfAbsent(labels(labels), (l) -> new Counter());
+	}
+
+	public static Histogram histogram(String name, String help, String... labels) {
+		return (Histogram) family(name, help, "histogram").metrics.computeIfAbsent(labels(labels), (l) -> new Histogram());
+	}
+
+	public static void gauge(String name, String help, LongSupplier value, String... labels) {
+		family(name, help, "gauge").metrics.put(labels(labels), new Gauge(value));
+	}
+
+	/**
+	 * Removes a metric, e.g. a gauge of an object that is closed.
+	 */
+	public static void remove(String name, String... labels) {
+		Family f = FAMILIES.get(name);
+		if (f != null)
+			f.metrics.remove(labels(labels));
+	}
+
+	/**
+	 * Writes all metrics in the Prometheus text format (version 0.0.4).
+	 */
+	public static void write(Appendable out) throws IOException {
+		for (Family f : new TreeMap<>(FAMILIES).values()) {
+			if (f.metrics.isEmpty())
+				continue;
+			out.append("# HELP ").append(f.name).append(' ').append(f.help).append('\n');
+			out.append("# TYPE ").append(f.name).append(' ').append(f.type).append('\n');
+			for (Map.Entry<String, Metric> m : new TreeMap<>(f.metrics).entrySet())
+				m.getValue().write(f.name, m.getKey(), out);
+		}
+	}
+
+	private static Family family(String name, String help, String type) {
+		Family f = FAMILIES.computeIfAbsent(name, (n) -> new Family(n, help, type));
+		if (!f.type.equals(type))
+			throw new IllegalArgumentException("Metric "+name+" already is a "+f.type);
+		return f;
+	}
+
+	private static String labels(String... labels) {
+		if (labels.length % 2 != 0)
+			throw new IllegalArgumentException("Labels have to be given as name value pairs");
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < labels.length; i += 2) {
+			b.append(b.length() == 0 ? "" : ",").append(labels[i]).append("=\"");
+			b.append(labels[i+1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+		}
+		return b.toString();
+	}
+
+	private static Appendable sample(String name, String labels, Appendable out) throws IOException {
+		out.append(name);
+		if (!labels.isEmpty())
+			out.append('{').append(labels).append('}');
+		return out.append(' ');
+	}
+
+	private static final class Family {
+
+		final String name;
+		final String help;
+		final String type;
+		final Map<String, Metric> metrics = new ConcurrentHashMap<>();
+
+		Family(String name, String help, String type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	private interface Metric {
+
+		void write(String name, String labels, Appendable out) throws IOException;
+	}
+
+	public static final class Counter implements Metric {
+
+		private final LongAdder count = new LongAdder();
+
+		Counter() {
+			// use Metrics.counter
+		}
+
+		public void inc() {
+			count.increment();
+		}
+
+		public void add(long n) {
+			count.add(n);
+		}
+
+		public long count() {
+			return count.sum();
+		}
+
+		@Override
+		public void write(String name, String labels, Appendable out) throws IOException {
+			sample(name, labels, out).append(Long.toString(count.sum())).append('\n');
+		}
+	}
+
+	private static final class Gauge implements Metric {
+
+		private final LongSupplier value;
+
+		Gauge(LongSupplier value) {
+			this.value = value;
+		}
+
+		@Override
+		public void write(String name, String labels, Appendable out) throws IOException {
+			sample(name, labels, out).append(Long.toString(value.getAsLong())).append('\n');
+		}
+	}
+
+	/**
+	 * Records durations in nanoseconds. Bucket <code>i</code> counts values
+	 * below <code>2^(i+10)</code> ns, so from about 1µs to 34s, larger values
+	 * are only counted in the <code>+Inf</code> bucket. Written in seconds.
+	 */
+	public static final class Histogram implements Metric {
+
+		private static final int MIN_SHIFT = 10;
+		private static final int BUCKETS = 26;
+
+		private final LongAdder[] buckets = new LongAdder[BUCKETS+1];
+		private final LongAdder sum = new LongAdder();
+
+		Histogram() {
+			for (int i = 0; i < buckets.length; i++)
+				buckets[i] = new LongAdder();
+		}
+
+		public void record(long nanos) {
+			int i = 64 - Long.numberOfLeadingZeros(Math.max(0L, nanos)) - MIN_SHIFT;
+			buckets[i < 0 ? 0 : i > BUCKETS ? BUCKETS : i].increment();
+			sum.add(nanos);
+		}
+
+		/**
+		 * Records the time since the given start.
+		 *
+		 * @return the current {@link System#nanoTime()} so it can be used as
+		 *         start of the next phase
+		 */
+		public long since(long startNanos) {
+			long now = System.nanoTime();
+			record(now - startNanos);
+			return now;
+		}
+
+		public long count() {
+			long count = 0;
+			for (LongAdder b : buckets)
+				count += b.sum();
+			return count;
+		}
+
+		@Override
+		public void write(String name, String labels, Appendable out) throws IOException {
+			String sep = labels.isEmpty() ? "" : ",";
+			long count = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				count += buckets[i].sum();
+				String le = Double.toString((1L << (i+MIN_SHIFT)) / 1e9d);
+				sample(name+"_bucket", labels+sep+"le=\""+le+"\"", out).append(Long.toString(count)).append('\n');
+			}
+			count += buckets[BUCKETS].sum();
+			sample(name+"_bucket", labels+sep+"le=\"+Inf\"", out).append(Long.toString(count)).append('\n');
+			sample(name+"_sum", labels, out).append(Double.toString(sum.sum() / 1e9d)).append('\n');
+			sample(name+"_count", labels, out).append(Long.toString(count)).append('\n');
+		}
+	}
+}
@@ -4,26 +4,45 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
+import se.jbee.task.api.TestCachedViewService;
 import se.jbee.task.api.TestURLToParams;
+import se.jbee.task.cache.TestCacheCluster;
+import se.jbee.task.cache.TestCacheWorker;
+import se.jbee.task.cache.TestChangeSequencer;
+import se.jbee.task.cache.TestOrdering;
+import se.jbee.task.cache.TestResultCache;
 import se.jbee.task.cache.TestTaskSet;
 import se.jbee.task.db.TestHeapMapDB;
 import se.jbee.task.engine.TestConvert;
+import se.jbee.task.engine.TestEntityCache;
+import se.jbee.task.engine.TestOptimistic;
+import se.jbee.task.engine.TestHistoryCompactor;
 import se.jbee.task.engine.TestLMDB;
+import se.jbee.task.engine.TestMigration;
 import se.jbee.task.engine.TestOTP;
+import se.jbee.task.engine.TestShardedDB;
+import se.jbee.task.html.TestHtmlWriter;
 import se.jbee.task.model.TestByteSequenceSecurity;
 import se.jbee.task.model.TestCriteria;
 import se.jbee.task.model.TestCriterium;
 import se.jbee.task.model.TestGist;
 import se.jbee.task.model.TestName;
+import se.jbee.task.model.TestTaskPredicate;
 import se.jbee.task.model.TestTemplate;
 import se.jbee.task.model.TestURL;
+import se.jbee.task.util.TestMetrics;
 
 @RunWith(Suite.class)
 @SuiteClasses({ TestTracker.class, TestConvert.class, TestLMDB.class,
 		TestCriteria.class, TestOTP.class, TestUseCode.class,
 		TestCriterium.class, TestGist.class, TestTaskSet.class,
 		TestByteSequenceSecurity.class, TestURL.class, TestName.class, TestURLToParams.class,
-		TestTemplate.class, TestHeapMapDB.class })
+		TestTemplate.class, TestHeapMapDB.class, TestCacheWorker.class, TestOrdering.class,
+		TestChangeSequencer.class, TestMetrics.class, TestMigration.class,
+		TestShardedDB.class, TestHistoryCompactor.class,
+		TestEntityCache.class,
+		TestOptimistic.class, TestTaskPredicate.class, TestResultCache.class,
+		TestHtmlWriter.class, TestCachedViewService.class, TestCacheCluster.class })
 public class TrackerSuit {
 	// run all tests...
 }
@@ -0,0 +1,100 @@
+package se.jbee.task.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static se.jbee.task.engine.Change.propose;
+import static se.jbee.task.engine.Fixture.OUTPUT;
+import static se.jbee.task.engine.Fixture.USER;
+import static se.jbee.task.engine.Fixture.setup;
+import static se.jbee.task.engine.Server.Switch.OPEN;
+import static se.jbee.task.model.Gist.gist;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lmdbjava.Env;
+
+import se.jbee.task.Application;
+import se.jbee.task.cache.CacheCluster;
+import se.jbee.task.db.DB;
+import se.jbee.task.db.LMDB;
+import se.jbee.task.engine.LinearLimits;
+import se.jbee.task.engine.Server;
+import se.jbee.task.engine.Transaction;
+import se.jbee.task.model.Name;
+
+public class TestCachedViewService {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	private final Server server = new Server().with(new LinearLimits(50)).with(OPEN);
+
+	@Test
+	public void listViewsAreValidatedByTheSerialsOfTheirOutputs() throws Exception {
+		try (DB db = new LMDB(Env.create().setMapSize(1014*1024*10), tmp.newFolder())) {
+			setup(db, server);
+			Transaction.run(propose(OUTPUT, gist("task 1"), USER, Name.UNKNOWN), db, server);
+			try (CacheCluster cache = new CacheCluster(db, System::currentTimeMillis)) {
+				ViewService views = new CachedViewService(server, db, cache);
+				Params request = new Params().set(Param.output, "p1").set(Param.area, "area1");
+				assertNull(views.validator(request, ListView.class)); // not cached yet
+				assertNull(views.run(request, ListView.class).validator);
+
+				String validator = views.validator(request, ListView.class);
+				assertNotNull(validator);
+				assertEquals(validator, views.run(request, ListView.class).validator);
+				assertEquals(validator, views.validator(request, ListView.class));
+				assertNull(views.validator(request, SampleView.class));
+
+				cache.invalidate(Transaction.run(propose(OUTPUT, gist("task 2"), USER, Name.UNKNOWN), db, server)).get();
+				String changed = views.validator(request, ListView.class);
+				assertNotEquals(validator, changed);
+				assertEquals(changed, views.run(request, ListView.class).validator);
+			}
+		}
+	}
+
+	@Test
+	public void responsesAreValidatedByTheRenderedView() throws Exception {
+		try (DB db = new LMDB(Env.create().setMapSize(1014*1024*10), tmp.newFolder())) {
+			setup(db, server);
+			Transaction.run(propose(OUTPUT, gist("task 1"), USER, Name.UNKNOWN), db, server);
+			try (CacheCluster cache = new CacheCluster(db, System::currentTimeMillis)) {
+				ViewService views = new CachedViewService(server, db, cache);
+				UserInterface ui = Application.createHttpUserInterface(views);
+				Params request = new Params().set(Param.output, "p1").set(Param.area, "area1");
+				List<String> validators = new ArrayList<>();
+				Response response = new Response() {
+
+					@Override
+					public void status(int code) {
+						assertEquals(200, code);
+					}
+
+					@Override
+					public void validator(String validator) {
+						validators.add(validator);
+					}
+
+					@Override
+					public OutputStream body() {
+						return new ByteArrayOutputStream();
+					}
+				};
+				ui.respond(request, response);
+				assertNull(validators.get(0)); // not cached yet
+				ui.respond(request, response);
+				assertNotNull(validators.get(1));
+				assertEquals(views.validator(request, ListView.class), validators.get(1));
+			}
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package se.jbee.task.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static se.jbee.task.engine.Change.propose;
+import static se.jbee.task.engine.Fixture.OUTPUT;
+import static se.jbee.task.engine.Fixture.USER;
+import static se.jbee.task.engine.Fixture.setup;
+import static se.jbee.task.engine.Server.Switch.OPEN;
+import static se.jbee.task.model.Gist.gist;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lmdbjava.Env;
+
+import se.jbee.task.db.DB;
+import se.jbee.task.db.LMDB;
+import se.jbee.task.engine.Indexes;
+import se.jbee.task.engine.LinearLimits;
+import se.jbee.task.engine.Server;
+import se.jbee.task.engine.Transaction;
+import se.jbee.task.model.Criteria;
+import se.jbee.task.model.Name;
+import se.jbee.task.model.User;
+
+public class TestCacheCluster {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	private final Server server = new Server().with(new LinearLimits(50)).with(OPEN);
+
+	@Test
+	public void lookupsInUncachedOutputsUseTheIndexes() throws Exception {
+		try (DB db = new LMDB(Env.create().setMapSize(1014*1024*10), tmp.newFolder(), 8, true)) {
+			Indexes.build(db);
+			User actor = setup(db, server);
+			for (int i = 0; i < 4; i++)
+				Transaction.run(propose(OUTPUT, gist("task "+i), USER, Name.UNKNOWN), db, server);
+			try (CacheCluster cache = new CacheCluster(db, System::currentTimeMillis)) {
+				Matches matches = cache.matchesFor(actor, Criteria.parse("[output=p1][reporter=user1][gist=task 1]")).get();
+				assertEquals(1, matches.total);
+				assertEquals(2, matches.tasks[0].id.num);
+				assertTrue(matches.includedOutputs.contains(OUTPUT));
+				assertTrue(matches.plan.contains("db [reporter = user1]"));
+
+				matches = cache.matchesFor(actor, Criteria.parse("[output=p1][gist=task 1]")).get();
+				assertEquals(0, matches.total);
+				assertTrue(matches.excludedOutputs.contains(OUTPUT));
+			}
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package se.jbee.task.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static se.jbee.task.engine.Change.propose;
+import static se.jbee.task.engine.Change.rephrase;
+import static se.jbee.task.engine.Fixture.OUTPUT;
+import static se.jbee.task.engine.Fixture.USER;
+import static se.jbee.task.engine.Fixture.setup;
+import static se.jbee.task.engine.Server.Switch.OPEN;
+import static se.jbee.task.model.Gist.gist;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lmdbjava.Env;
+
+import se.jbee.task.db.DB;
+import se.jbee.task.db.LMDB;
+import se.jbee.task.engine.LinearLimits;
+import se.jbee.task.engine.Server;
+import se.jbee.task.engine.Transaction;
+import se.jbee.task.model.Criteria;
+import se.jbee.task.model.Date;
+import se.jbee.task.model.IDN;
+import se.jbee.task.model.Name;
+import se.jbee.task.model.User;
+
+public class TestCacheWorker {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	private long now = System.currentTimeMillis();
+	private final Server server = new Server().with(new LinearLimits(50)).with(OPEN).with(this::tick);
+
+	private long tick() {
+		now += 60000;
+		return now;
+	}
+
+	@Test
+	public void restoredWorkerReplaysChangesMadeAfterSnapshot() throws Exception {
+		File snapshot = new File(tmp.newFolder(), "p1.cache");
+		try (DB db = new LMDB(Env.create().setMapSize(1014*1024*10), tmp.newFolder())) {
+			User actor = setup(db, server);
+			report(db, 3);
+			Date today = Date.date(now);
+			CacheWorker worker = new CacheWorker(OUTPUT, db, today, snapshot, now);
+			assertEquals(3, all(worker, actor).total);
+			worker.close();
+			assertTrue(snapshot.exists());
+
+			report(db, 2);
+			worker = new CacheWorker(OUTPUT, db, today, snapshot, now);
+			assertEquals(5, all(worker, actor).total);
+			worker.rollover(today.plusDays(1)).get();
+			assertEquals(5, all(worker, actor).total);
+			worker.close();
+		}
+	}
+
+	@Test
+	public void corruptSnapshotIsIgnored() throws Exception {
+		File snapshot = new File(tmp.newFolder(), "p1.cache");
+		Files.write(snapshot.toPath(), new byte[] {0, 0, 0, 1, 2});
+		try (DB db = new LMDB(Env.create().setMapSize(1014*1024*10), tmp.newFolder())) {
+			User actor = setup(db, server);
+			report(db, 2);
+			CacheWorker worker = new CacheWorker(OUTPUT, db, Date.date(now), snapshot, now);
+			assertEquals(2, all(worker, actor).total);
+			worker.close();
+		}
+	}
+
+	@Test
+	public void planIntersectsIndexesBeforeFiltering() throws Exception {
+		File snapshot = new File(tmp.newFolder(), "p1.cache");
+		try (DB db = new LMDB(Env.create().setMapSize(1014*1024*10), tmp.newFolder())) {
+			User actor = setup(db, server);
+			report(db, 5);
+			CacheWorker worker = new CacheWorker(OUTPUT, db, Date.date(now), snapshot, now);
+			Matches matches = worker.matchesFor(actor, Criteria.parse("[reporter=user1][id>2][id!~{4}]")).get();
+			assertEquals(matches.plan, 2, matches.total);
+			assertTrue(matches.plan, matches.plan.contains("=> 2"));
+			assertTrue(matches.plan, !matches.plan.startsWith("scan"));
+			matches = worker.matchesFor(actor, Criteria.parse("[emphasis>=0]")).get();
+			assertEquals(5, matches.total);
+			assertTrue(matches.plan, matches.plan.startsWith("scan 5"));
+			worker.close();
+		}
+	}
+
+	@Test
+	public void textCriteriaAreNarrowedDownByTrigrams() throws Exception {
+		File snapshot = new File(tmp.newFolder(), "p1.cache");
+		try (DB db = new LMDB(Env.create().setMapSize(1014*1024*10), tmp.newFolder())) {
+			User actor = setup(db, server);
+			report(db, 12);
+			CacheWorker worker = new CacheWorker(OUTPUT, db, Date.date(now), snapshot, now);
+			Matches matches = worker.matchesFor(actor, Criteria.parse("[gist~task 1]")).get();
+			assertEquals(matches.plan, 3, matches.total);
+			assertTrue(matches.plan, !matches.plan.startsWith("scan"));
+			assertEquals(1, worker.matchesFor(actor, Criteria.parse("[gist=task 1]")).get().total);
+			assertEquals(12, worker.matchesFor(actor, Criteria.parse("[gist>task]")).get().total);
+			assertEquals(2, worker.matchesFor(actor, Criteria.parse("[gist<1]")).get().total);
+			assertEquals(4, worker.matchesFor(actor, Criteria.parse("[gist~{task 1,sk 2}]")).get().total);
+			assertEquals(0, worker.matchesFor(actor, Criteria.parse("[gist>ask]")).get().total);
+			assertEquals(0, worker.matchesFor(actor, Criteria.parse("[conclusion~task]")).get().total);
+
+			worker.invalidate(Transaction.run(rephrase(OUTPUT, IDN.idn(2), gist("rephrased gist"), USER), db, server)).get();
+			matches = worker.matchesFor(actor, Criteria.parse("[gist~phrase]")).get();
+			assertEquals(matches.plan, 1, matches.total);
+			assertEquals(2, worker.matchesFor(actor, Criteria.parse("[gist~task 1]")).get().total);
+			worker.close();
+
+			worker = new CacheWorker(OUTPUT, db, Date.date(now), snapshot, now);
+			matches = worker.matchesFor(actor, Criteria.parse("[gist~phrase]")).get();
+			assertEquals(matches.plan, 1, matches.total);
+			assertTrue(matches.plan, !matches.plan.startsWith("scan"));
+			worker.close();
+		}
+	}
+
+	private void report(DB db, int n) {
+		for (int i = 0; i < n; i++)
+			Transaction.run(propose(OUTPUT, gist("task "+i), USER, Name.UNKNOWN), db, server);
+	}
+
+	private static Matches all(CacheWorker worker, User actor) throws Exception {
+		return worker.matchesFor(actor, Criteria.parse("")).get();
+	}
+}
@@ -0,0 +1,76 @@
+package se.jbee.task.cache;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+import se.jbee.task.engine.Change;
+import se.jbee.task.engine.ChangeLog;
+import se.jbee.task.model.Task;
+
+public class TestChangeSequencer {
+
+	private final List<Long> released = new ArrayList<>();
+	private final List<Long> gaps = new ArrayList<>();
+
+	@Test
+	public void outOfOrderChangesAreReleasedInOrder() throws Exception {
+		ChangeLog c1 = changes(1), c2 = changes(2), c3 = changes(3);
+		try (ChangeSequencer seq = new ChangeSequencer(c1.sequence-1, 0L, 10_000L, this::release, gaps::add)) {
+			CompletableFuture<Void> f3 = seq.accept(c3);
+			seq.accept(c2);
+			assertEquals(2, seq.waiting());
+			assertTrue(released.isEmpty());
+			seq.accept(c1);
+			f3.get(1, SECONDS);
+			assertEquals(0, seq.waiting());
+			assertEquals(asList(c1.sequence, c2.sequence, c3.sequence), released);
+			assertTrue(gaps.isEmpty());
+		}
+	}
+
+	@Test
+	public void gapIsSkippedAfterTimeout() throws Exception {
+		ChangeLog c1 = changes(1), c2 = changes(2), c3 = changes(3);
+		try (ChangeSequencer seq = new ChangeSequencer(c1.sequence-1, 0L, 50L, this::release, gaps::add)) {
+			seq.accept(c1);
+			seq.accept(c3).get(5, SECONDS);
+			assertEquals(asList(c1.sequence, c3.sequence), released);
+			assertEquals(asList(c1.timestamp), gaps);
+			assertTrue(seq.accept(c2).isDone());
+			assertEquals(asList(c1.sequence, c3.sequence), released);
+		}
+	}
+
+	@Test
+	public void unpublishedChangesLeaveNoGap() throws Exception {
+		ChangeLog c1 = changes(1);
+		ChangeLog unpublished = ChangeLog.changes(2, new ChangeLog.Entry<?>[] { c1.get(0) }, false);
+		ChangeLog c3 = changes(3);
+		try (ChangeSequencer seq = new ChangeSequencer(c1.sequence-1, 0L, 10_000L, this::release, gaps::add)) {
+			seq.accept(c1);
+			seq.accept(c3).get(1, SECONDS);
+			assertEquals(asList(c1.sequence, c3.sequence), released);
+			assertTrue(gaps.isEmpty());
+			assertTrue(unpublished.serial > c1.serial);
+			assertEquals(-1L, unpublished.sequence);
+		}
+	}
+
+	private synchronized CompletableFuture<Void> release(ChangeLog changes) {
+		released.add(changes.sequence);
+		return CompletableFuture.completedFuture(null);
+	}
+
+	private static ChangeLog changes(long timestamp) {
+		return ChangeLog.changes(timestamp, new ChangeLog.Entry<?>[] {
+			new ChangeLog.Entry<>(null, new Change.Operation[0], new Task(1)) });
+	}
+}
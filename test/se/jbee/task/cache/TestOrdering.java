@@ -0,0 +1,87 @@
+package se.jbee.task.cache;
+
+import static org.junit.Assert.assertEquals;
+import static se.jbee.task.model.IDN.idn;
+import static se.jbee.task.model.Name.as;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import se.jbee.task.model.Criteria;
+import se.jbee.task.model.Date;
+import se.jbee.task.model.Task;
+
+public class TestOrdering {
+
+	private final Date today = Date.today();
+
+	@Test
+	public void topKEqualsPrefixOfFullSort() {
+		Task[] tasks = tasks(1000);
+		Criteria criteria = Criteria.parse("[order<<{emphasis,reporter}]");
+		Task[] expected = tasks.clone();
+		Arrays.sort(expected, Comparator.<Task>comparingInt(t -> t.emphasis)
+				.thenComparing(t -> t.reporter).reversed());
+		for (int k : new int[] { 0, 1, 10, 50, 250, 1000, 2000 }) {
+			Task[] actual = Ordering.order(tasks, k, criteria, today);
+			assertEquals("k="+k, ids(expected).subList(0, Math.min(k, tasks.length)), ids(actual));
+		}
+	}
+
+	@Test
+	public void tiesKeepOriginalOrder() {
+		Task[] tasks = tasks(200);
+		Criteria criteria = Criteria.parse("[order>>exploitable]");
+		Task[] expected = tasks.clone();
+		Arrays.sort(expected, Comparator.comparing(t -> t.exploitable));
+		assertEquals(ids(expected).subList(0, 20), ids(Ordering.order(tasks, 20, criteria, today)));
+	}
+
+	@Test
+	public void mergeOfOrderedRunsEqualsOrderOfAll() {
+		Task[] tasks = tasks(600);
+		Criteria criteria = Criteria.parse("[order<<{emphasis,reporter}]");
+		Task[][] runs = new Task[3][];
+		for (int i = 0; i < runs.length; i++)
+			runs[i] = Ordering.order(Arrays.copyOfRange(tasks, i*200, i*200+200), 60, criteria, today);
+		assertEquals(ids(Ordering.order(tasks, 60, criteria, today)), ids(Ordering.merge(runs, 60, criteria, today)));
+		assertEquals(0, Ordering.merge(new Task[0][], 60, criteria, today).length);
+	}
+
+	@Test
+	public void orderAndSliceUsesOffset() {
+		Task[] tasks = tasks(300);
+		Matches matches = CacheWorker.orderAndSlice(tasks, Criteria.parse("[order>>id][offset=40][length=10]"), today);
+		assertEquals(300, matches.total);
+		assertEquals(10, matches.tasks.length);
+		for (int i = 0; i < 10; i++)
+			assertEquals(41+i, matches.tasks[i].id.num);
+	}
+
+	private Task[] tasks(int n) {
+		Random rnd = new Random(42);
+		Task[] tasks = new Task[n];
+		for (int i = 0; i < n; i++) {
+			Task t = new Task(1);
+			t.id = idn(n-i);
+			t.emphasis = rnd.nextInt(20);
+			t.exploitable = rnd.nextBoolean();
+			t.reporter = as("user"+rnd.nextInt(5));
+			t.reported = today;
+			tasks[i] = t;
+		}
+		return tasks;
+	}
+
+	private static List<Integer> ids(Task[] tasks) {
+		List<Integer> ids = new ArrayList<>();
+		for (Task t : tasks)
+			ids.add(t.id.num);
+		return ids;
+	}
+}
@@ -0,0 +1,66 @@
+package se.jbee.task.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static se.jbee.task.model.Name.as;
+import static se.jbee.task.model.Names.names;
+
+import org.junit.Test;
+
+import se.jbee.task.model.Criteria;
+import se.jbee.task.model.Names;
+import se.jbee.task.model.Task;
+
+public class TestResultCache {
+
+	private final Names p1 = names("p1");
+	private final Names p1p2 = names("p1", "p2");
+	private final Criteria criteria = Criteria.parse("[status=unsolved][length=5]");
+
+	@Test
+	public void resultsAreOnlyUsedForTheSameGenerations() {
+		ResultCache cache = new ResultCache(1000);
+		String key = ResultCache.key(p1, criteria);
+		Matches m = matches(3);
+		cache.put(key, p1, new long[] { 7L }, m);
+		assertSame(m, cache.get(key, new long[] { 7L }));
+		assertNull(cache.get(key, new long[] { 8L }));
+		assertNull(cache.get(ResultCache.key(p1p2, criteria), new long[] { 7L, 1L }));
+	}
+
+	@Test
+	public void changesDropOnlyResultsOfTheChangedOutput() {
+		ResultCache cache = new ResultCache(1000);
+		String key1 = ResultCache.key(p1, criteria);
+		String key2 = ResultCache.key(names("p2"), criteria);
+		String key12 = ResultCache.key(p1p2, criteria);
+		cache.put(key1, p1, new long[] { 1L }, matches(1));
+		cache.put(key2, names("p2"), new long[] { 1L }, matches(1));
+		cache.put(key12, p1p2, new long[] { 1L, 1L }, matches(2));
+		assertEquals(3, cache.size());
+		cache.invalidate(as("p1"));
+		assertNull(cache.get(key1, new long[] { 1L }));
+		assertNull(cache.get(key12, new long[] { 1L, 1L }));
+		assertEquals(1, cache.size());
+		assertEquals(2, cache.cost());
+	}
+
+	@Test
+	public void leastRecentlyUsedResultsAreDroppedWhenFull() {
+		ResultCache cache = new ResultCache(100);
+		for (int i = 0; i < 20; i++)
+			cache.put("q"+i, p1, new long[] { 1L }, matches(9));
+		assertEquals(10, cache.size());
+		assertEquals(100, cache.cost());
+		assertNull(cache.get("q0", new long[] { 1L }));
+		cache.get("q10", new long[] { 1L });
+		cache.put("q20", p1, new long[] { 1L }, matches(9));
+		assertEquals(9, cache.get("q10", new long[] { 1L }).tasks.length);
+		assertNull(cache.get("q11", new long[] { 1L }));
+	}
+
+	private static Matches matches(int n) {
+		return new Matches(new Task[n], n);
+	}
+}
@@ -1,9 +1,13 @@
 package se.jbee.task.cache;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static se.jbee.task.model.IDN.idn;
 
+import java.util.Random;
+import java.util.TreeSet;
+
 import org.junit.Test;
 
 import se.jbee.task.cache.CacheWorker.TaskSet;
@@ -31,4 +35,66 @@ public class TestTaskSet {
 		assertFalse(set.contains(idn(88)));
 		
 	}
+
+	@Test
+	public void supportsIDNsBeyondShortRange() {
+		TaskSet set = new TaskSet();
+		set.add(idn(40000));
+		set.add(idn(1048575));
+		set.add(idn(3));
+		assertTrue(set.contains(idn(40000)));
+		assertTrue(set.contains(idn(1048575)));
+		assertEquals(3, set.size());
+		assertEquals(3, set.first());
+		assertEquals(40000, set.next(4));
+		assertEquals(1048575, set.next(40001));
+		assertEquals(-1, set.next(1048576));
+	}
+
+	@Test
+	public void denseChunksSwitchToBitmapAndBack() {
+		TaskSet set = new TaskSet();
+		for (int i = 1; i <= 10000; i++)
+			set.add(idn(i));
+		assertEquals(10000, set.size());
+		for (int i = 1; i <= 10000; i+=2)
+			set.remove(idn(i));
+		for (int i = 1; i <= 9000; i+=2)
+			set.remove(idn(i+1));
+		assertEquals(500, set.size());
+		assertEquals(9002, set.first());
+		assertTrue(set.contains(idn(10000)));
+		assertFalse(set.contains(idn(9001)));
+	}
+
+	@Test
+	public void setAlgebraMatchesSortedSets() {
+		Random rnd = new Random(42);
+		TaskSet a = new TaskSet();
+		TaskSet b = new TaskSet();
+		TreeSet<Integer> ea = new TreeSet<>();
+		TreeSet<Integer> eb = new TreeSet<>();
+		for (int i = 0; i < 20000; i++) {
+			int x = 1 + rnd.nextInt(150000);
+			a.add(idn(x)); ea.add(x);
+			int y = 1 + (i % 3 == 0 ? rnd.nextInt(6000) : rnd.nextInt(150000));
+			b.add(idn(y)); eb.add(y);
+		}
+		TreeSet<Integer> and = new TreeSet<>(ea); and.retainAll(eb);
+		TreeSet<Integer> or = new TreeSet<>(ea); or.addAll(eb);
+		TreeSet<Integer> andNot = new TreeSet<>(ea); andNot.removeAll(eb);
+		assertMembers(and, a.and(b));
+		assertMembers(or, a.or(b));
+		assertMembers(andNot, a.andNot(b));
+	}
+
+	private static void assertMembers(TreeSet<Integer> expected, TaskSet actual) {
+		assertEquals(expected.size(), actual.size());
+		int idn = actual.first();
+		for (int e : expected) {
+			assertEquals(e, idn);
+			idn = actual.next(idn+1);
+		}
+		assertEquals(-1, idn);
+	}
 }
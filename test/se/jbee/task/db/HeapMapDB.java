@@ -3,13 +3,13 @@ package se.jbee.task.db;
 import static java.util.Collections.emptySortedMap;
 
 import java.nio.ByteBuffer;
-import java.util.Iterator;
 import java.util.Map.Entry;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiPredicate;
+import java.util.function.Predicate;
 
 import se.jbee.task.db.DB;
 import se.jbee.task.model.ID;
@@ -58,6 +58,11 @@ public final class HeapMapDB implements DB {
 		}
 	}
 
+	@Override
+	public boolean isIndexed() {
+		return false;
+	}
+
 	@Override
 	public void close() {
 		if (emptyOnClose) {
@@ -76,7 +81,8 @@ public final class HeapMapDB implements DB {
 
 		@Override
 		public ByteBuffer get(ID key) {
-			return entities.get(key);
+			ByteBuffer value = entities.get(key);
+			return value == null ? null : value.duplicate();
 		}
 
 		@Override
@@ -86,17 +92,44 @@ public final class HeapMapDB implements DB {
 
 		@Override
 		public void range(ID first, BiPredicate<ID, ByteBuffer> consumer) {
-			Iterator<Entry<ID, ByteBuffer>> iter = entities.entrySet().iterator();
-			Entry<ID, ByteBuffer> e = null;
-			while (iter.hasNext() && (e == null || !e.getKey().equalTo(first)))
-				e = iter.next();
-			if (e != null && e.getKey().equalTo(first)) {
-				boolean cont = consumer.test(first, e.getValue());
-				while (cont && iter.hasNext())
-					cont = consumer.test(first, e.getValue());
+			// like LMDB: all keys of the same type starting from the first
+			for (Entry<ID, ByteBuffer> e : entities.tailMap(first).entrySet()) {
+				if (e.getKey().type == first.type && !consumer.test(e.getKey(), e.getValue().duplicate()))
+					return;
+			}
+		}
+
+		@Override
+		public void range(ID.Type type, byte[] prefix, BiPredicate<ByteBuffer, ByteBuffer> consumer) {
+			boolean inRange = false;
+			for (Entry<ID, ByteBuffer> e : entities.entrySet()) {
+				if (e.getKey().type == type) {
+					byte[] key = e.getKey().readonlyBytes();
+					boolean match = startsWith(key, prefix);
+					if (inRange && !match)
+						return;
+					inRange = match;
+					if (match && !consumer.test(ByteBuffer.wrap(key).asReadOnlyBuffer(), e.getValue().duplicate()))
+						return;
+				}
 			}
 		}
 
+		@Override
+		public void indexed(Index index, byte[] key, Predicate<ID> consumer) {
+			throw new UnsupportedOperationException("not indexed");
+		}
+
+		private static boolean startsWith(byte[] key, byte[] prefix) {
+			if (key.length < prefix.length)
+				return false;
+			for (int i = 0; i < prefix.length; i++) {
+				if (key[i] != prefix[i])
+					return false;
+			}
+			return true;
+		}
+
 	}
 
 	private static class HeapMapWrite extends HeapMapRead implements Write {
@@ -111,7 +144,10 @@ public final class HeapMapDB implements DB {
 
 		@Override
 		public void put(ID key, ByteBuffer value) {
-			entities.put(key, value);
+			// the buffer passed is reused by the caller
+			ByteBuffer copy = ByteBuffer.allocate(value.remaining());
+			copy.put(value.duplicate()).flip();
+			entities.put(key, copy);
 		}
 
 		@Override
@@ -119,6 +155,16 @@ public final class HeapMapDB implements DB {
 			entities.remove(key);
 		}
 
+		@Override
+		public void index(Index index, byte[] key, ID id) {
+			throw new UnsupportedOperationException("not indexed");
+		}
+
+		@Override
+		public void unindex(Index index, byte[] key, ID id) {
+			throw new UnsupportedOperationException("not indexed");
+		}
+
 		@Override
 		public void commit() {
 			db.entities.set(entities);
@@ -0,0 +1,57 @@
+package se.jbee.task.engine;
+
+import static se.jbee.task.engine.Change.authenticate;
+import static se.jbee.task.engine.Change.envision;
+import static se.jbee.task.engine.Change.register;
+import static se.jbee.task.model.Email.email;
+import static se.jbee.task.model.Name.as;
+
+import se.jbee.task.db.DB;
+import se.jbee.task.model.Name;
+import se.jbee.task.model.Output;
+import se.jbee.task.model.User;
+
+/**
+ * The state most tests working on a {@link DB} start from: the {@link #USER}
+ * is registered, authenticated and has envisioned the {@link #OUTPUT}.
+ */
+public final class Fixture {
+
+	public static final Name USER = as("user1");
+	public static final Name OUTPUT = as("p1");
+
+	private Fixture() {
+		throw new UnsupportedOperationException("util");
+	}
+
+	/**
+	 * @return the {@link #USER} as registered
+	 */
+	public static User setup(DB db, Server server) {
+		return setup(db, server, OUTPUT);
+	}
+
+	/**
+	 * @param outputs envisioned by the {@link #USER}
+	 * @return the {@link #USER} as registered
+	 */
+	public static User setup(DB db, Server server, Name... outputs) {
+		ChangeLog changes = Transaction.run(register(USER, email("user1@example.com")), db, server);
+		User actor = (User) changes.get(0).after;
+		Change c = authenticate(USER, actor.otp);
+		for (Name output : outputs)
+			c = c.and(envision(output, USER));
+		Transaction.run(c, db, server);
+		return actor;
+	}
+
+	/**
+	 * @param shared the {@link EntityCache} to read through or null
+	 * @return the {@link #OUTPUT} as currently stored
+	 */
+	public static Output output(DB db, EntityCache shared) {
+		try (Repository rep = new DAO(db.read(), shared)) {
+			return rep.output(OUTPUT);
+		}
+	}
+}
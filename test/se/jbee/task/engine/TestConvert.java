@@ -1,6 +1,8 @@
 package se.jbee.task.engine;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static se.jbee.task.engine.Bincoder.area2bin;
 import static se.jbee.task.engine.Bincoder.bin2area;
@@ -16,6 +18,7 @@ import static se.jbee.task.engine.Bincoder.output2bin;
 import static se.jbee.task.engine.Bincoder.page2bin;
 import static se.jbee.task.engine.Bincoder.poll2bin;
 import static se.jbee.task.engine.Bincoder.task2bin;
+import static se.jbee.task.engine.Bincoder.task2binEVN1;
 import static se.jbee.task.engine.Bincoder.user2bin;
 import static se.jbee.task.engine.Bincoder.version2bin;
 import static se.jbee.task.engine.Server.Switch.OPEN;
@@ -34,8 +37,10 @@ import se.jbee.task.engine.Change;
 import se.jbee.task.engine.Event;
 import se.jbee.task.engine.History;
 import se.jbee.task.engine.NoLimits;
+import se.jbee.task.db.DB.Index;
 import se.jbee.task.engine.Repository;
 import se.jbee.task.engine.Server;
+import se.jbee.task.engine.TaskView;
 import se.jbee.task.engine.Tracker;
 import se.jbee.task.engine.Event.Transition;
 import se.jbee.task.model.Area;
@@ -116,6 +121,73 @@ public class TestConvert {
 		assertConsistentConversion(bin2task, task2bin, task1);
 	}
 
+	@Test
+	public void taskViewChecksOutputOfRecord() {
+		assertViewChecksOutputOfRecord(task2bin);
+	}
+
+	@Test
+	public void taskViewChecksOutputOfEVN1Record() {
+		assertViewChecksOutputOfRecord(task2binEVN1);
+	}
+
+	@Test
+	public void taskEVN1RecordIsDecodedAndRewrittenAsEVN2() {
+		User user1 = newTestUser();
+		Output prod1 = tracker.envision(as("p1"), user1);
+		Task task1 = tracker.reportDefect(prod1, gist("Grüße, 5€ ärger"), user1, prod1.somewhere, prod1.somewhen, true);
+		ByteBuffer evn1 = task2binEVN1.convert(task1, ByteBuffer.allocate(2048));
+		evn1.flip();
+		Task read = bin2task.convert(new TestRepository(), evn1);
+		assertEquals(task1.gist, read.gist);
+		assertEquals(task1.watchers.toString(), read.watchers.toString());
+		ByteBuffer evn2 = task2bin.convert(read, ByteBuffer.allocate(2048));
+		evn2.flip();
+		assertEquals(2, evn2.get(0));
+		assertTrue(evn2.remaining() < evn1.limit());
+		Task reread = bin2task.convert(new TestRepository(), evn2);
+		assertEquals(task1.gist, reread.gist);
+		assertEquals(task1.reporter, reread.reporter);
+		assertEquals(task1.watchers.toString(), reread.watchers.toString());
+		assertEquals(task1.reported, reread.reported);
+		assertEquals(task1.exploitable, reread.exploitable);
+	}
+
+	@Test
+	public void versionIsReadAccordingToTheRecordType() {
+		User user1 = newTestUser();
+		Output prod1 = tracker.envision(as("p1"), user1);
+		Task task1 = tracker.reportDefect(prod1, gist("broken"), user1, prod1.somewhere, prod1.somewhen, true);
+		ByteBuffer evn2 = task2bin.convert(task1, ByteBuffer.allocate(2048));
+		evn2.flip();
+		assertEquals(task1.version(), Bincoder.bin2version(ID.Type.Task, evn2));
+		ByteBuffer evn1 = task2binEVN1.convert(task1, ByteBuffer.allocate(2048));
+		evn1.flip();
+		assertEquals(task1.version(), Bincoder.bin2version(ID.Type.Task, evn1));
+		ByteBuffer area = ByteBuffer.allocate(8);
+		area.put((byte) 2).putInt(7).flip(); // a future EVN 2 with an int version
+		assertEquals(7, Bincoder.bin2version(ID.Type.Area, area));
+	}
+
+	private void assertViewChecksOutputOfRecord(Bincoder<Task, ByteBuffer> encoder) {
+		User user1 = newTestUser();
+		Output prod1 = tracker.envision(as("p1"), user1);
+		Task task1 = tracker.reportDefect(prod1, gist("broken"), user1, prod1.somewhere, prod1.somewhen, true);
+		ByteBuffer buf = ByteBuffer.allocate(2048);
+		buf.putInt(42); // view should not depend on the record starting at 0
+		encoder.convert(task1, buf);
+		buf.flip();
+		buf.position(4);
+		TaskView view = new TaskView().wrap(buf);
+		assertTrue(view.outputEquals(as("p1")));
+		assertFalse(view.outputEquals(as("p2")));
+		assertFalse(view.outputEquals(as("p11")));
+		assertEquals(4, buf.position());
+		Task read = view.task(new TestRepository());
+		assertEquals(task1.id, read.id);
+		assertEquals(task1.gist, read.gist);
+	}
+
 	@Test
 	public void logEntryConversion() {
 		long timestamp = System.currentTimeMillis();
@@ -216,6 +288,12 @@ public class TestConvert {
 
 		}
 
+		@Override
+		public void tasks(Index index, Name output, Name value, Predicate<Task> consumer) {
+			// TODO Auto-generated method stub
+
+		}
+
 		@Override
 		public Output[] outputs() {
 			// TODO Auto-generated method stub
@@ -0,0 +1,97 @@
+package se.jbee.task.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static se.jbee.task.engine.Change.propose;
+import static se.jbee.task.engine.Fixture.OUTPUT;
+import static se.jbee.task.engine.Fixture.USER;
+import static se.jbee.task.engine.Fixture.output;
+import static se.jbee.task.model.Gist.gist;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lmdbjava.Env;
+
+import se.jbee.task.db.DB;
+import se.jbee.task.db.LMDB;
+import se.jbee.task.model.ID;
+import se.jbee.task.model.Name;
+import se.jbee.task.model.Output;
+import se.jbee.task.model.User;
+
+public class TestEntityCache {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	private final Server server = new Server().with(new NoLimits()).with(Server.Switch.OPEN);
+
+	private DB db;
+	private EntityCache cache;
+
+	@Before
+	public void setup() throws Exception {
+		db = new LMDB(Env.create().setMapSize(1014*1024*10), tmp.newFolder());
+		cache = EntityCache.open(db, 100);
+		Fixture.setup(db, server);
+	}
+
+	@After
+	public void close() {
+		EntityCache.close(db);
+		db.close();
+	}
+
+	@Test
+	public void entitiesAreSharedBetweenDAOs() {
+		Output first = output(db, cache);
+		assertSame(first, output(db, cache));
+		try (Repository rep = new DAO(db.read())) {
+			assertNotSame(first, rep.output(OUTPUT));
+		}
+	}
+
+	@Test
+	public void changedEntitiesAreInvalidated() {
+		Output before = output(db, cache);
+		Transaction.run(propose(OUTPUT, gist("first"), USER, Name.UNKNOWN), db, server);
+		Output after = output(db, cache);
+		assertNotSame(before, after);
+		assertEquals(before.tasks + 1, after.tasks);
+		cache.put(before); // e.g. from a DAO reading an older snapshot
+		assertSame(after, output(db, cache));
+	}
+
+	@Test
+	public void outdatedEntitiesAreNotCached() {
+		Output before = output(db, cache);
+		try (DB.Read snapshot = db.read()) {
+			Transaction.run(propose(OUTPUT, gist("first"), USER, Name.UNKNOWN), db, server);
+			try (Repository rep = new DAO(snapshot, cache)) {
+				assertEquals(before.tasks, rep.output(OUTPUT).tasks);
+			}
+			assertNull(cache.get(ID.outputId(OUTPUT)));
+		}
+		assertEquals(before.tasks + 1, output(db, cache).tasks);
+	}
+
+	@Test
+	public void transactionsDoNotChangeSharedUsers() {
+		User shared;
+		try (Repository rep = new DAO(db.read(), cache)) {
+			shared = rep.user(USER);
+		}
+		int version = shared.version();
+		Transaction.run(propose(OUTPUT, gist("first"), USER, Name.UNKNOWN), db, server);
+		assertEquals(version, shared.version());
+		try (Repository rep = new DAO(db.read(), cache)) {
+			assertEquals(version + 1, rep.user(USER).version());
+		}
+	}
+
+}
@@ -0,0 +1,83 @@
+package se.jbee.task.engine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static se.jbee.task.engine.Change.propose;
+import static se.jbee.task.engine.Change.unwatch;
+import static se.jbee.task.engine.Change.watch;
+import static se.jbee.task.engine.Fixture.OUTPUT;
+import static se.jbee.task.engine.Fixture.USER;
+import static se.jbee.task.engine.Fixture.setup;
+import static se.jbee.task.model.Gist.gist;
+import static se.jbee.task.model.IDN.idn;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lmdbjava.Env;
+
+import se.jbee.task.db.DB;
+import se.jbee.task.db.LMDB;
+import se.jbee.task.model.ID;
+import se.jbee.task.model.Name;
+
+public class TestHistoryCompactor {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+
+	@Test
+	public void deferredHistoriesAreReadableBeforeAndAfterCompaction() throws Exception {
+		Server server = new Server().with(new NoLimits()).with(Server.Switch.OPEN);
+		Server deferred = server.with(Server.Switch.OPEN, Server.Switch.DEFERRED);
+		try (DB db = new LMDB(Env.create().setMapSize(1014*1024*10), tmp.newFolder())) {
+			setup(db, server);
+			Transaction.run(propose(OUTPUT, gist("first"), USER, Name.UNKNOWN), db, server);
+			ID task = ID.taskId(OUTPUT, idn(1));
+			long[] before = history(db, task).events;
+			assertEquals(1, before.length-1);
+
+			HistoryCompactor compactor = new HistoryCompactor(db, server.clock, 1);
+			compactor.mark();
+			Transaction.run(unwatch(OUTPUT, idn(1), USER), db, deferred);
+			Transaction.run(watch(OUTPUT, idn(1), USER), db, deferred);
+			assertArrayEquals(before, record(db, task));
+			long[] deferredHistory = history(db, task).events;
+			assertEquals(3, deferredHistory.length-1);
+
+			long until = Transaction.finishedUntil(server.clock);
+			while (compactor.compact(until)) { /* next batch */ }
+			assertArrayEquals(deferredHistory, record(db, task));
+			assertArrayEquals(deferredHistory, history(db, task).events);
+
+			Transaction.run(unwatch(OUTPUT, idn(1), USER), db, deferred);
+			HistoryCompactor.drain(db);
+			try (DB.Read tx = db.read()) {
+				assertNull(tx.get(HistoryCompactor.COMPACTED));
+			}
+			assertEquals(4, record(db, task).length-1);
+			assertFalse(compactor.compact(Long.MAX_VALUE));
+		}
+	}
+
+	private static History history(DB db, ID entity) {
+		try (Repository rep = new DAO(db.read())) {
+			return rep.history(entity);
+		}
+	}
+
+	private static long[] record(DB db, ID entity) {
+		try (DB.Read tx = db.read()) {
+			ID hid = ID.historyId(entity);
+			ByteBuffer record = tx.get(hid);
+			assertNotNull(record);
+			return Bincoder.bin2history.convert(hid, record).events;
+		}
+	}
+}
@@ -2,14 +2,20 @@ package se.jbee.task.engine;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static se.jbee.task.engine.Change.authenticate;
 import static se.jbee.task.engine.Change.compose;
+import static se.jbee.task.engine.Change.envision;
+import static se.jbee.task.engine.Change.propose;
 import static se.jbee.task.engine.Change.register;
+import static se.jbee.task.engine.Change.unwatch;
 import static se.jbee.task.engine.Sample.sample;
 import static se.jbee.task.model.Email.email;
+import static se.jbee.task.model.Gist.gist;
 import static se.jbee.task.model.Name.as;
 import static se.jbee.task.model.Names.names;
 import static se.jbee.task.model.Template.parseTemplate;
@@ -17,6 +23,13 @@ import static se.jbee.task.model.Template.parseTemplate;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Assert;
 import org.junit.Ignore;
@@ -30,6 +43,7 @@ import org.lmdbjava.Txn;
 
 import se.jbee.task.db.DB;
 import se.jbee.task.db.LMDB;
+import se.jbee.task.db.DB.Index;
 import se.jbee.task.db.DB.Read;
 import se.jbee.task.db.DB.Write;
 import se.jbee.task.engine.Bincoder;
@@ -43,6 +57,7 @@ import se.jbee.task.engine.Tracker;
 import se.jbee.task.engine.Transaction;
 import se.jbee.task.model.Email;
 import se.jbee.task.model.ID;
+import se.jbee.task.model.IDN;
 import se.jbee.task.model.Name;
 import se.jbee.task.model.Names;
 import se.jbee.task.model.Page;
@@ -79,6 +94,109 @@ public class TestLMDB {
 		}
 	}
 
+	@Test
+	public void readersAreReusedAndWaitForAFreeReader() throws Exception {
+		ID key = ID.userId(as("user1"));
+		try (DB db = new LMDB(Env.create().setMapSize(1014*1024*10), tmp.newFolder(), 2)) {
+			Read r1 = db.read();
+			Read r2 = db.read();
+			CompletableFuture<ByteBuffer> r3 = CompletableFuture.supplyAsync(() -> {
+				try (Read r = db.read()) {
+					return r.get(key);
+				}
+			});
+			Thread.sleep(100);
+			assertFalse(r3.isDone());
+			try (Write w = db.write()) {
+				ByteBuffer val = ByteBuffer.allocateDirect(3);
+				val.put("foo".getBytes()).flip();
+				w.put(key, val);
+				w.commit();
+			}
+			assertNull(r1.get(key));
+			r1.close();
+			assertNotNull("renewed reader should see the commit", r3.get(1, TimeUnit.SECONDS));
+			r2.close();
+			r2.close(); // closing twice does not release twice
+			try (Read r4 = db.read(); Read r5 = db.read()) {
+				assertNotNull(r4.get(key));
+				assertNotNull(r5.get(key));
+			}
+		}
+	}
+
+	@Test
+	public void rangeStopsAtTheEndOfThePrefix() throws Exception {
+		try (DB db = new LMDB(Env.create().setMapSize(1014*1024*10), tmp.newFolder())) {
+			try (Write w = db.write()) {
+				for (String output : new String[] { "out1", "out12", "out2" }) {
+					for (int i = 1; i <= 3; i++) {
+						ByteBuffer val = ByteBuffer.allocateDirect(4);
+						val.putInt(i).flip();
+						w.put(ID.taskId(as(output), IDN.idn(i)), val);
+					}
+				}
+				w.commit();
+			}
+			try (Read r = db.read()) {
+				List<String> keys = new ArrayList<>();
+				r.range(Type.Task, ID.prefix(Type.Task, as("out1")), (k,v) -> {
+					byte[] key = new byte[k.remaining()];
+					k.get(key);
+					return keys.add(new String(key));
+				});
+				assertEquals(Arrays.asList("out1:0001", "out1:0002", "out1:0003"), keys);
+				keys.clear();
+				r.range(Type.Task, ID.prefix(Type.Task, as("out2")), (k,v) -> keys.add("") && keys.size() < 2);
+				assertEquals(2, keys.size());
+				r.range(Type.Task, ID.prefix(Type.Task, as("out3")), (k,v) -> keys.add(""));
+				assertEquals(2, keys.size());
+			}
+		}
+	}
+
+	@Test
+	public void indexesFollowTaskChanges() throws Exception {
+		final File path = tmp.newFolder();
+		Name user = as("user1");
+		Name output = as("p1");
+		Server server = new Server().with(new NoLimits()).with(Server.Switch.OPEN);
+		try (DB db = new LMDB(Env.create().setMapSize(1014*1024*10), path)) {
+			ChangeLog changes = Transaction.run(register(user, email("user1@example.com")), db, server);
+			User actor = (User) changes.get(0).after;
+			Transaction.run(authenticate(user, actor.otp).and(envision(output, user)), db, server);
+			Transaction.run(propose(output, gist("first"), user, Name.UNKNOWN), db, server);
+		}
+		try (DB db = new LMDB(Env.create().setMapSize(1014*1024*10), path, 8, true)) {
+			Indexes.build(db);
+			assertEquals(Arrays.asList(1), indexed(db, Index.reporter, null, user));
+			Transaction.run(propose(output, gist("second"), user, Name.UNKNOWN), db, server);
+			assertEquals(Arrays.asList(1, 2), indexed(db, Index.reporter, null, user));
+			assertEquals(Arrays.asList(1, 2), indexed(db, Index.area, output, Name.UNKNOWN));
+			assertEquals(Arrays.asList(1, 2), indexed(db, Index.watcher, null, user));
+			Transaction.run(unwatch(output, IDN.idn(1), user), db, server);
+			assertEquals(Arrays.asList(2), indexed(db, Index.watcher, null, user));
+			Indexes.build(db);
+			assertEquals(Arrays.asList(1, 2), indexed(db, Index.reporter, null, user));
+		}
+		try (DB db = new LMDB(Env.create().setMapSize(1014*1024*10), path)) {
+			Transaction.run(propose(output, gist("third"), user, Name.UNKNOWN), db, server);
+		}
+		try (DB db = new LMDB(Env.create().setMapSize(1014*1024*10), path, 8, true)) {
+			Indexes.build(db); // the third was not indexed
+			assertEquals(Arrays.asList(1, 2, 3), indexed(db, Index.reporter, null, user));
+			assertEquals(Arrays.asList(2, 3), indexed(db, Index.watcher, null, user));
+		}
+	}
+
+	private static List<Integer> indexed(DB db, Index index, Name output, Name value) {
+		List<Integer> ids = new ArrayList<>();
+		try (Repository rep = new DAO(db.read())) {
+			rep.tasks(index, output, value, (task) -> ids.add(task.id.num));
+		}
+		return ids;
+	}
+
 	@Test
 	public void putGetAdapterAPI() throws IOException {
 		Tracker tracker = new Tracker(new Server().with(new NoLimits()));
@@ -178,6 +296,37 @@ public class TestLMDB {
 		}
 	}
 
+	@Test
+	public void groupCommitCompletesEachTransactionWithItsOwnChangeLog() throws Exception {
+		final File path = tmp.newFolder();
+		Server server = new Server().with(new NoLimits()).withGroupCommit(4, 5);
+		try (DB db = new LMDB(Env.create().setMapSize(1014*1024*10).setMaxReaders(16), path)) {
+			final int n = 12;
+			ChangeLog[] logs = new ChangeLog[n];
+			Thread[] threads = new Thread[n];
+			for (int i = 0; i < n; i++) {
+				final int k = i;
+				threads[i] = new Thread(() -> {
+					logs[k] = Transaction.run(register(as("user"+k), email("user"+k+"@example.com")), db, server);
+				});
+				threads[i].start();
+			}
+			for (Thread t : threads)
+				t.join();
+			Transaction.closeGroupCommit(db);
+			Set<Long> serials = new HashSet<>();
+			try (Read tx = db.read()) {
+				for (int i = 0; i < n; i++) {
+					assertEquals(1, logs[i].length());
+					assertEquals(as("user"+i), ((User)logs[i].get(0).after).alias);
+					assertTrue(serials.add(logs[i].serial));
+					assertNotNull(tx.get(ID.userId(as("user"+i))));
+					assertNotNull(tx.get(ID.eventId(logs[i].timestamp)));
+				}
+			}
+		}
+	}
+
 	@Test
 	@Ignore
 	public void runSampleTransaction() throws Exception {
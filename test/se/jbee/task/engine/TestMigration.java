@@ -0,0 +1,103 @@
+package se.jbee.task.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static se.jbee.task.engine.Change.authenticate;
+import static se.jbee.task.engine.Change.envision;
+import static se.jbee.task.engine.Change.propose;
+import static se.jbee.task.engine.Change.register;
+import static se.jbee.task.model.Email.email;
+import static se.jbee.task.model.Gist.gist;
+import static se.jbee.task.model.IDN.idn;
+import static se.jbee.task.model.Name.as;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lmdbjava.Env;
+
+import se.jbee.task.db.DB;
+import se.jbee.task.db.DB.Write;
+import se.jbee.task.db.LMDB;
+import se.jbee.task.model.ID;
+import se.jbee.task.model.Name;
+import se.jbee.task.model.Task;
+import se.jbee.task.model.User;
+
+public class TestMigration {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void oldRecordsAreMigratedInResumableBatches() throws Exception {
+		File path = tmp.newFolder();
+		File progress = new File(path, "migration");
+		Name user = as("user1");
+		Name output = as("p1");
+		Server server = new Server().with(new NoLimits()).with(Server.Switch.OPEN);
+		try (DB db = new LMDB(Env.create().setMapSize(1014*1024*10), path)) {
+			ChangeLog changes = Transaction.run(register(user, email("user1@example.com")), db, server);
+			User actor = (User) changes.get(0).after;
+			Transaction.run(authenticate(user, actor.otp).and(envision(output, user)), db, server);
+			for (int i = 0; i < 5; i++)
+				Transaction.run(propose(output, gist("task "+i), user, Name.UNKNOWN), db, server);
+			rewriteAsEVN1(db, output);
+			assertEquals(5, countEVN(db, 1));
+
+			assertTrue(new Migration(db, progress, 2, 100).migrateBatch());
+			assertEquals(3, countEVN(db, 1));
+			Properties state = new Properties();
+			try (InputStream in = new FileInputStream(progress)) {
+				state.load(in);
+			}
+			assertTrue(state.getProperty("Task").startsWith("2:"));
+
+			// a new migration continues from the progress file
+			Migration resumed = new Migration(db, progress, 2, 100);
+			while (resumed.migrateBatch()) { /* next batch */ }
+			assertEquals(0, countEVN(db, 1));
+			assertEquals(5, countEVN(db, 2));
+			assertFalse(new Migration(db, progress, 2, 100).migrateBatch());
+			try (Repository rep = new DAO(db.read())) {
+				assertEquals("task 3", rep.task(output, idn(4)).gist.toString());
+			}
+		}
+	}
+
+	private static void rewriteAsEVN1(DB db, Name output) {
+		List<Task> tasks = new ArrayList<>();
+		try (Write tx = db.write()) {
+			DAO rep = new DAO(tx);
+			rep.tasks(output, tasks::add);
+			ByteBuffer buf = ByteBuffer.allocateDirect(4096);
+			for (Task t : tasks) {
+				buf.clear();
+				Bincoder.task2binEVN1.convert(t, buf).flip();
+				tx.put(t.uniqueID(), buf);
+			}
+			tx.commit();
+		}
+	}
+
+	private static int countEVN(DB db, int evn) {
+		int[] count = { 0 };
+		try (DB.Read tx = db.read()) {
+			tx.range(ID.Type.Task, new byte[0], (k, v) -> {
+				if (v.get(v.position()) == evn)
+					count[0]++;
+				return true;
+			});
+		}
+		return count[0];
+	}
+}
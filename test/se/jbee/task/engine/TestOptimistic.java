@@ -0,0 +1,117 @@
+package se.jbee.task.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static se.jbee.task.engine.Change.propose;
+import static se.jbee.task.engine.Fixture.OUTPUT;
+import static se.jbee.task.engine.Fixture.USER;
+import static se.jbee.task.engine.Fixture.output;
+import static se.jbee.task.model.Gist.gist;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lmdbjava.Env;
+
+import se.jbee.task.db.DB;
+import se.jbee.task.db.LMDB;
+import se.jbee.task.model.Name;
+
+public class TestOptimistic {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	private final Server server = new Server().with(new NoLimits()).with(Server.Switch.OPEN, Server.Switch.OPTIMISTIC);
+
+	private DB db;
+
+	@Before
+	public void setup() throws Exception {
+		db = new LMDB(Env.create().setMapSize(1014*1024*10), tmp.newFolder());
+		Fixture.setup(db, server);
+	}
+
+	@After
+	public void close() {
+		db.close();
+	}
+
+	@Test
+	public void conflictingChangesAreAppliedAgain() {
+		AtomicInteger attempts = new AtomicInteger();
+		Change first = propose(OUTPUT, gist("first"), USER, Name.UNKNOWN);
+		Change conflicting = (t, tx) -> {
+			first.apply(t, tx);
+			if (attempts.incrementAndGet() == 1)
+				runConcurrently(propose(OUTPUT, gist("second"), USER, Name.UNKNOWN));
+		};
+		Transaction.run(conflicting, db, server);
+		assertEquals(2, attempts.get());
+		assertEquals(2, output(db, null).tasks);
+	}
+
+	@Test
+	public void conflictsAreAppliedAgainOnlyBoundedTimes() {
+		AtomicInteger attempts = new AtomicInteger();
+		Change conflicting = (t, tx) -> {
+			propose(OUTPUT, gist("first"), USER, Name.UNKNOWN).apply(t, tx);
+			attempts.incrementAndGet();
+			runConcurrently(propose(OUTPUT, gist("second"), USER, Name.UNKNOWN));
+		};
+		try {
+			Transaction.run(conflicting, db, server);
+			fail("Expected a conflict");
+		} catch (Transaction.Conflict e) {
+			assertEquals(Transaction.MAX_ATTEMPTS, attempts.get());
+		}
+		assertEquals(Transaction.MAX_ATTEMPTS, output(db, null).tasks);
+	}
+
+	@Test
+	public void conflictsWithinAGroupCommitOnlyFailTheConflictingChange() throws Exception {
+		Server grouped = server.withGroupCommit(2, 1000);
+		AtomicInteger attempts = new AtomicInteger();
+		CyclicBarrier bothApplied = new CyclicBarrier(2);
+		Change change = (t, tx) -> {
+			propose(OUTPUT, gist("task"), USER, Name.UNKNOWN).apply(t, tx);
+			if (attempts.incrementAndGet() <= 2)
+				await(bothApplied); // both read the same output version
+		};
+		Thread other = new Thread(() -> Transaction.run(change, db, grouped));
+		other.start();
+		Transaction.run(change, db, grouped);
+		other.join();
+		Transaction.closeGroupCommit(db);
+		assertEquals(3, attempts.get());
+		assertEquals(2, output(db, null).tasks);
+	}
+
+	private static void await(CyclicBarrier barrier) {
+		try {
+			barrier.await();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Runs the change in another thread, like a request that is processed at
+	 * the same time, and waits for it to be committed.
+	 */
+	private void runConcurrently(Change change) {
+		Thread other = new Thread(() -> Transaction.run(change, db, server));
+		other.start();
+		try {
+			other.join();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,263 @@
+package se.jbee.task.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static se.jbee.task.engine.Change.propose;
+import static se.jbee.task.engine.Fixture.USER;
+import static se.jbee.task.engine.Fixture.setup;
+import static se.jbee.task.model.Gist.gist;
+import static se.jbee.task.model.IDN.idn;
+import static se.jbee.task.model.Name.as;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lmdbjava.Env;
+
+import se.jbee.task.db.DB;
+import se.jbee.task.db.DB.Index;
+import se.jbee.task.db.DB.Write;
+import se.jbee.task.db.LMDB;
+import se.jbee.task.db.ShardedDB;
+import se.jbee.task.model.ID;
+import se.jbee.task.model.Name;
+
+public class TestShardedDB {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	private final Server server = new Server().with(new NoLimits()).with(Server.Switch.OPEN);
+
+	@Test
+	public void eachOutputIsStoredInAShardOfItsOwn() throws Exception {
+		File path = tmp.newFolder();
+		try (ShardedDB db = open(path)) {
+			setup(db, server, as("p1"), as("p1-b"));
+			Transaction.run(propose(as("p1"), gist("first"), USER, Name.UNKNOWN), db, server);
+			Transaction.run(propose(as("p1-b"), gist("second"), USER, Name.UNKNOWN), db, server);
+			Transaction.run(propose(as("p1"), gist("third"), USER, Name.UNKNOWN), db, server);
+			assertEquals(2, db.shards());
+			assertTrue(new File(path, "outputs/p1").isDirectory());
+			try (Repository rep = new DAO(db.read())) {
+				assertEquals(Arrays.asList("first", "third"), gists(rep, "p1"));
+				assertEquals(Arrays.asList("second"), gists(rep, "p1-b"));
+				assertEquals(2, rep.outputs().length);
+			}
+		}
+		// the global environment does not contain any task
+		try (LMDB global = new LMDB(Env.create().setMapSize(1014*1024*10), path)) {
+			try (DB.Read tx = global.read()) {
+				int[] tasks = { 0 };
+				tx.range(ID.Type.Task, new byte[0], (k, v) -> ++tasks[0] > 0);
+				assertEquals(0, tasks[0]);
+			}
+		}
+		// shards are found again
+		try (ShardedDB db = open(path)) {
+			assertEquals(2, db.shards());
+			try (Repository rep = new DAO(db.read())) {
+				assertEquals(Arrays.asList("second"), gists(rep, "p1-b"));
+			}
+		}
+	}
+
+	@Test
+	public void scansAcrossShardsAreInKeyOrder() throws Exception {
+		try (ShardedDB db = open(tmp.newFolder())) {
+			setup(db, server, as("p1"), as("p1-b"), as("ab"));
+			for (String output : new String[] { "p1", "p1-b", "ab" })
+				Transaction.run(propose(as(output), gist("task"), USER, Name.UNKNOWN), db, server);
+			List<String> keys = new ArrayList<>();
+			try (DB.Read tx = db.read()) {
+				tx.range(ID.Type.Task, new byte[0], (k, v) -> keys.add(string(k)));
+			}
+			assertEquals(Arrays.asList("ab:0001", "p1-b:0001", "p1:0001"), keys);
+			List<String> from = new ArrayList<>();
+			try (DB.Read tx = db.read()) {
+				tx.range(ID.taskId(as("p1-b"), idn(1)), (k, v) -> from.add(k.toString()));
+			}
+			assertEquals(Arrays.asList("p1-b:0001", "p1:0001"), from);
+		}
+	}
+
+	@Test
+	public void writesAreVisibleToGetsOfTheSameWriteButOnlyAfterCommitToOthers() throws Exception {
+		try (ShardedDB db = open(tmp.newFolder())) {
+			ID id = ID.areaId(as("p1"), as("xy"));
+			try (Write tx = db.write()) {
+				tx.put(id, value("foo"));
+				assertEquals(value("foo"), tx.get(id));
+				try (DB.Read r = db.read()) {
+					assertNull(r.get(id));
+				}
+				tx.commit();
+			}
+			try (DB.Read r = db.read()) {
+				assertEquals(value("foo"), r.get(id));
+			}
+			try (Write tx = db.write()) {
+				tx.delete(id);
+				assertNull(tx.get(id));
+			}
+			try (DB.Read r = db.read()) {
+				assertEquals(value("foo"), r.get(id));
+			}
+		}
+	}
+
+	@Test
+	public void writesWaitForTheWriteBeforeToBeClosed() throws Exception {
+		try (ShardedDB db = open(tmp.newFolder())) {
+			ID id = ID.areaId(as("p1"), as("xy"));
+			AtomicReference<String> seen = new AtomicReference<>();
+			Thread w2 = new Thread(() -> {
+				try (Write tx = db.write()) {
+					seen.set(string(tx.get(id)));
+				}
+			});
+			try (Write tx = db.write()) {
+				w2.start();
+				Thread.sleep(20);
+				assertTrue(w2.isAlive());
+				tx.put(id, value("foo"));
+				tx.commit();
+			}
+			w2.join();
+			assertEquals("foo", seen.get());
+		}
+	}
+
+	@Test
+	public void writesOfDifferentOutputsDoNotWaitForEachOther() throws Exception {
+		try (ShardedDB db = open(tmp.newFolder())) {
+			ID p1 = ID.areaId(as("p1"), as("xy"));
+			ID p2 = ID.areaId(as("p2"), as("xy"));
+			AtomicReference<String> seen = new AtomicReference<>();
+			Thread w2 = new Thread(() -> {
+				try (Write tx = db.write(Arrays.asList(p2))) {
+					tx.put(p2, value("bar"));
+					tx.commit();
+				}
+			});
+			Thread w3 = new Thread(() -> {
+				try (Write tx = db.write(Arrays.asList(p1))) {
+					seen.set(string(tx.get(p1)));
+				}
+			});
+			try (Write tx = db.write(Arrays.asList(p1))) {
+				w2.start();
+				w2.join(5000);
+				assertFalse(w2.isAlive());
+				w3.start();
+				Thread.sleep(20);
+				assertTrue(w3.isAlive());
+				tx.put(p1, value("foo"));
+				tx.commit();
+			}
+			w3.join();
+			assertEquals("foo", seen.get());
+			try (DB.Read r = db.read()) {
+				assertEquals(value("bar"), r.get(p2));
+			}
+		}
+	}
+
+	@Test
+	public void writesOnlyTouchTheOutputsTheyDeclare() throws Exception {
+		try (ShardedDB db = open(tmp.newFolder())) {
+			ID p1 = ID.areaId(as("p1"), as("xy"));
+			try (Write tx = db.write(Arrays.asList(p1))) {
+				tx.put(p1, value("foo"));
+				tx.put(ID.userId(USER), value("bar"));
+				try {
+					tx.put(ID.areaId(as("p2"), as("xy")), value("baz"));
+					fail("p2 was not declared");
+				} catch (IllegalStateException e) {
+					// expected
+				}
+			}
+		}
+	}
+
+	@Test
+	public void singleOutputTransactionsAreStoredInTheShardOfTheirOutput() throws Exception {
+		File path = tmp.newFolder();
+		try (ShardedDB db = open(path)) {
+			setup(db, server, as("p1"), as("p2"));
+			Transaction.run(propose(as("p1"), gist("first"), USER, Name.UNKNOWN), db, server);
+			Transaction.run(propose(as("p2"), gist("second"), USER, Name.UNKNOWN), db, server);
+			Transaction.run(propose(as("p1"), gist("third"), USER, Name.UNKNOWN), db, server);
+			List<String> events = new ArrayList<>();
+			try (DB.Read tx = db.read()) {
+				tx.range(ID.Type.event, new byte[0], (k, v) -> events.add(string(k)));
+			}
+			List<String> sorted = new ArrayList<>(events);
+			Collections.sort(sorted);
+			assertEquals(sorted, events);
+			assertEquals(5, events.size());
+			try (Repository rep = new DAO(db.read())) {
+				assertEquals(2, rep.outputs().length);
+			}
+		}
+		try (LMDB shard = new LMDB(Env.create().setMapSize(1014*1024*10), new File(path, "outputs/p1"))) {
+			try (DB.Read tx = shard.read()) {
+				assertTrue(tx.get(ID.outputId(as("p1"))) != null);
+				int[] events = { 0 };
+				tx.range(ID.Type.event, new byte[0], (k, v) -> ++events[0] > 0);
+				assertEquals(2, events[0]);
+			}
+		}
+	}
+
+	@Test
+	public void userIndexesSpanAllShards() throws Exception {
+		try (ShardedDB db = new ShardedDB(() -> Env.create().setMapSize(1014*1024*10), tmp.newFolder(), 8, true)) {
+			setup(db, server, as("p1"), as("p2"));
+			Transaction.run(propose(as("p2"), gist("first"), USER, Name.UNKNOWN), db, server);
+			Transaction.run(propose(as("p1"), gist("second"), USER, Name.UNKNOWN), db, server);
+			List<String> reported = new ArrayList<>();
+			List<String> inArea = new ArrayList<>();
+			try (Repository rep = new DAO(db.read())) {
+				rep.tasks(Index.reporter, null, USER, (task) -> reported.add(task.gist.toString()));
+				rep.tasks(Index.area, as("p2"), Name.UNKNOWN, (task) -> inArea.add(task.gist.toString()));
+			}
+			assertEquals(Arrays.asList("second", "first"), reported);
+			assertEquals(Arrays.asList("first"), inArea);
+		}
+	}
+
+
+	private static List<String> gists(Repository rep, String output) {
+		List<String> gists = new ArrayList<>();
+		rep.tasks(as(output), (task) -> gists.add(task.gist.toString()));
+		return gists;
+	}
+
+	private static ShardedDB open(File path) {
+		return new ShardedDB(() -> Env.create().setMapSize(1014*1024*10), path, 8, false);
+	}
+
+	private static String string(ByteBuffer key) {
+		byte[] bytes = new byte[key.remaining()];
+		key.duplicate().get(bytes);
+		return new String(bytes);
+	}
+
+	private static ByteBuffer value(String value) {
+		ByteBuffer buf = ByteBuffer.allocateDirect(16);
+		buf.put(value.getBytes()).flip();
+		return buf;
+	}
+}
@@ -0,0 +1,50 @@
+package se.jbee.task.html;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static se.jbee.task.model.Gist.gist;
+import static se.jbee.task.model.Name.as;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public class TestHtmlWriter {
+
+	@Test
+	public void textIsWrittenAsUtf8() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (HtmlWriter html = new HtmlWriter(out)) {
+			html.append(HtmlWriter.utf8("<b>")).append(as("user1")).append(' ').append(gist("Grüße für 5€")).append(42).append(0).append(-7).append("</b>");
+		}
+		assertEquals("<b>user1 Grüße für 5€420-7</b>", new String(out.toByteArray(), UTF_8));
+	}
+
+	@Test
+	public void flushSendsWhatHasBeenWrittenSoFar() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (HtmlWriter html = new HtmlWriter(out)) {
+			html.append("<head>");
+			assertEquals(0, out.size());
+			html.flush();
+			assertEquals(6, out.size());
+			html.append("<body>");
+		}
+		assertEquals("<head><body>", new String(out.toByteArray(), UTF_8));
+	}
+
+	@Test
+	public void pagesLargerThanTheBufferAreWrittenInParts() {
+		StringBuilder expected = new StringBuilder();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (HtmlWriter html = new HtmlWriter(out)) {
+			for (int i = 0; i < 5000; i++) {
+				html.append("<li>").append(i).append("</li>");
+				expected.append("<li>").append(i).append("</li>");
+			}
+			html.append(HtmlWriter.utf8(expected.toString()));
+			expected.append(expected);
+		}
+		assertEquals(expected.toString(), new String(out.toByteArray(), UTF_8));
+	}
+}
@@ -0,0 +1,123 @@
+package se.jbee.task.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static se.jbee.task.model.Name.as;
+import static se.jbee.task.model.Names.names;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestTaskPredicate {
+
+	private final Date today = Date.today();
+	private final List<Task> tasks = new ArrayList<>();
+
+	@Before
+	public void setUp() {
+		for (int i = 0; i < 24; i++)
+			tasks.add(task(i));
+	}
+
+	private Task task(int i) {
+		Output output = new Output(1);
+		output.name = as(i % 2 == 0 ? "p1" : "p2");
+		Area area = new Area(1);
+		area.name = as("area"+(i % 3));
+		area.maintainers = i % 4 == 0 ? names("user1", "user2") : names("user3");
+		Version base = new Version(1);
+		base.name = as(i % 2 == 0 ? "1.0" : "2.0");
+		Task t = new Task(1);
+		t.output = output;
+		t.area = area;
+		t.base = base;
+		t.id = IDN.idn(i+1);
+		t.reporter = as("user"+(i % 5));
+		t.reported = today.minusDays(i * 10);
+		t.resolved = i % 3 == 0 ? today.minusDays(i) : null;
+		t.solver = i % 3 == 0 ? as("user1") : null;
+		t.gist = Gist.gist("Task number "+i);
+		t.status = Status.values()[i % Status.values().length];
+		t.cause = Cause.values()[i % Cause.values().length];
+		t.goal = Goal.values()[i % Goal.values().length];
+		t.emphasis = i * 3;
+		t.exploitable = i % 5 == 0;
+		t.aspirants = i % 2 == 0 ? names("user2") : Names.empty();
+		t.participants = i % 3 == 0 ? names("user3", "user4") : Names.empty();
+		t.watchers = i % 4 == 0 ? names("user1", "user3") : names("user2");
+		return t;
+	}
+
+	@Test
+	public void compiledCriteriaMatchLikeInterpretedCriteria() {
+		String[] queries = {
+				"",
+				"[status=unsolved]",
+				"[status~{resolved,dissolved}][cause!=finding]",
+				"[goal!~{elaboration,adaptation}][order<<temperature][length=20]",
+				"[heat>=warm]",
+				"[heat<tepid]",
+				"[emphasis>=30][emphasis<60]",
+				"[heat~{cold,hot}]",
+				"[heat!~{cold}][temperature>0]",
+				"[age<=100][age>20]",
+				"[reported=2016]",
+				"[reported>=2000-01-01]",
+				"[resolved=2016-01-01]",
+				"[exploitable=true]",
+				"[exploitable!=false]",
+				"[reporter=user1]",
+				"[reporter~{user1,user2}][output=p1]",
+				"[reporter!~{user1,user2}][area!=area1]",
+				"[solver=user1]",
+				"[version~{1.0}]",
+				"[maintainer~{user1,user9}]",
+				"[watcher={user1,user3}]",
+				"[watcher!={user1,user3}]",
+				"[supporter~user3][participant!~user4]",
+				"[aspirant=user2]",
+				"[gist~number][id>2]",
+				"[reporter=@solver]",
+				"[output=@][area=@]",
+		};
+		for (String query : queries) {
+			Criteria criteria = Criteria.parse(query);
+			TaskPredicate compiled = criteria.compile();
+			for (Task t : tasks) {
+				assertEquals(query+" for "+t.id, criteria.matches(t, today), compiled.test(t, today));
+			}
+		}
+	}
+
+	@Test
+	public void queriesAreParsedAndCompiledOnce() {
+		String query = "[reporter~{user1,user2}][status=unsolved][length=5]";
+		Criteria criteria = Criteria.parse(query);
+		assertSame(criteria, Criteria.parse(query));
+		Criteria other = Criteria.parseUncached(query);
+		assertSame(criteria.compile(), other.compile());
+	}
+
+	@Test
+	public void filterUsesCompiledCriteria() {
+		Criteria criteria = Criteria.parse("[emphasis>=30][reporter!=user0]");
+		Task[] matches = criteria.filter(tasks.iterator(), today);
+		for (Task t : matches)
+			assertTrue(t.emphasis >= 30 && !t.reporter.equals(as("user0")));
+		for (Task t : tasks)
+			if (t.emphasis >= 30 && !t.reporter.equals(as("user0")))
+				assertFalse(indexOf(matches, t) < 0);
+	}
+
+	private static int indexOf(Task[] tasks, Task t) {
+		for (int i = 0; i < tasks.length; i++)
+			if (tasks[i] == t)
+				return i;
+		return -1;
+	}
+}
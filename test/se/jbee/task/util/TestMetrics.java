@@ -0,0 +1,56 @@
+package se.jbee.task.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import se.jbee.task.util.Metrics.Counter;
+import se.jbee.task.util.Metrics.Histogram;
+
+public class TestMetrics {
+
+	@Test
+	public void countersWithSameLabelsAreShared() throws IOException {
+		Counter c = Metrics.counter("test_counter_total", "A test counter", "kind", "a");
+		c.inc();
+		Metrics.counter("test_counter_total", "A test counter", "kind", "a").add(2);
+		Metrics.counter("test_counter_total", "A test counter", "kind", "b").inc();
+		assertEquals(3, c.count());
+		String text = text();
+		assertTrue(text.contains("# TYPE test_counter_total counter\n"));
+		assertTrue(text.contains("test_counter_total{kind=\"a\"} 3\n"));
+		assertTrue(text.contains("test_counter_total{kind=\"b\"} 1\n"));
+	}
+
+	@Test
+	public void histogramBucketsAreCumulative() throws IOException {
+		Histogram h = Metrics.histogram("test_latency_seconds", "A test histogram");
+		h.record(500L);       // < 1024ns
+		h.record(1500L);      // < 2048ns
+		h.record(1L << 40);   // beyond largest bucket
+		assertEquals(3, h.count());
+		String text = text();
+		assertTrue(text, text.contains("test_latency_seconds_bucket{le=\"1.024E-6\"} 1\n"));
+		assertTrue(text, text.contains("test_latency_seconds_bucket{le=\"2.048E-6\"} 2\n"));
+		assertTrue(text, text.contains("test_latency_seconds_bucket{le=\"+Inf\"} 3\n"));
+		assertTrue(text, text.contains("test_latency_seconds_count 3\n"));
+	}
+
+	@Test
+	public void removedGaugesAreNotWritten() throws IOException {
+		Metrics.gauge("test_gauge", "A test gauge", () -> 42L, "output", "x");
+		assertTrue(text().contains("test_gauge{output=\"x\"} 42\n"));
+		Metrics.remove("test_gauge", "output", "x");
+		assertFalse(text().contains("test_gauge"));
+	}
+
+	private static String text() throws IOException {
+		StringBuilder out = new StringBuilder();
+		Metrics.write(out);
+		return out.toString();
+	}
+}